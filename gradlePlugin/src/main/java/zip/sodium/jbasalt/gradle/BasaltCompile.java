@@ -0,0 +1,169 @@
+package zip.sodium.jbasalt.gradle;
+
+import org.gradle.api.DefaultTask;
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileSystemOperations;
+import org.gradle.api.file.FileType;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.IgnoreEmptyDirectories;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.OutputDirectory;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.SkipWhenEmpty;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.work.ChangeType;
+import org.gradle.work.FileChange;
+import org.gradle.work.Incremental;
+import org.gradle.work.InputChanges;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutor;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@CacheableTask
+public abstract class BasaltCompile extends DefaultTask {
+    private static final String EXTENSION = ".bas";
+
+    @Incremental
+    @SkipWhenEmpty
+    @IgnoreEmptyDirectories
+    @PathSensitive(PathSensitivity.RELATIVE)
+    @InputFiles
+    public abstract ConfigurableFileCollection getSource();
+
+    @Classpath
+    public abstract ConfigurableFileCollection getClasspath();
+
+    @OutputDirectory
+    public abstract DirectoryProperty getDestinationDirectory();
+
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
+
+    @Inject
+    protected abstract FileSystemOperations getFileSystemOperations();
+
+    @TaskAction
+    public void compile(InputChanges inputChanges) {
+        final File destination = getDestinationDirectory().get().getAsFile();
+
+        if (!inputChanges.isIncremental())
+            getFileSystemOperations().delete(spec -> spec.delete(destination));
+        destination.mkdirs();
+
+        // Class name (with "/" separators) -> source file
+        final Set<String> changed = new HashSet<>();
+        final Map<String, SourceFile> toCompile = new HashMap<>();
+
+        for (FileChange change : inputChanges.getFileChanges(getSource())) {
+            if (change.getFileType() == FileType.DIRECTORY || !change.getNormalizedPath().endsWith(EXTENSION))
+                continue;
+
+            final SourceFile source = SourceFile.of(change.getFile(), change.getNormalizedPath());
+            deleteOutputs(destination, source.className());
+            changed.add(source.className());
+
+            if (change.getChangeType() != ChangeType.REMOVED)
+                toCompile.put(source.className(), source);
+        }
+
+        // Unchanged sources that import a changed class have to be recompiled against its new shape,
+        // and so do the sources importing those, since a header can mention the types of its imports.
+        if (inputChanges.isIncremental() && !changed.isEmpty()) {
+            final Map<String, SourceFile> sources = new HashMap<>();
+            getSource().getAsFileTree().visit(details -> {
+                if (details.isDirectory() || !details.getName().endsWith(EXTENSION))
+                    return;
+
+                final SourceFile source = SourceFile.of(details.getFile(), details.getRelativePath().getPathString());
+                sources.put(source.className(), source);
+            });
+
+            final Map<String, Set<String>> importers = new HashMap<>();
+            for (SourceFile source : sources.values())
+                for (String imported : imports(source.file()))
+                    importers.computeIfAbsent(imported, x -> new HashSet<>()).add(source.className());
+
+            final Set<String> affected = new HashSet<>(changed);
+            final Deque<String> pending = new ArrayDeque<>(changed);
+            while (!pending.isEmpty())
+                for (String importer : importers.getOrDefault(pending.pop(), Set.of())) {
+                    if (!affected.add(importer))
+                        continue;
+
+                    pending.add(importer);
+                    if (!toCompile.containsKey(importer)) {
+                        deleteOutputs(destination, importer);
+                        toCompile.put(importer, sources.get(importer));
+                    }
+                }
+        }
+
+        final WorkQueue queue = getWorkerExecutor().classLoaderIsolation(spec ->
+                spec.getClasspath().from(getClasspath()));
+
+        for (SourceFile source : toCompile.values()) {
+            queue.submit(BasaltCompileAction.class, parameters -> {
+                parameters.getSourceFile().set(source.file());
+                parameters.getSourceDirectory().set(source.root());
+                parameters.getDestinationDirectory().set(destination);
+            });
+        }
+
+        queue.await();
+    }
+
+    private static void deleteOutputs(File destination, String className) {
+        final File classFile = new File(destination, className + ".class");
+        final File[] nested = classFile.getParentFile().listFiles((dir, name) ->
+                name.startsWith(classFile.getName().replace(".class", "$")) && name.endsWith(".class"));
+
+        classFile.delete();
+        if (nested != null)
+            for (File f : nested)
+                f.delete();
+    }
+
+    // Class names with "/" separators
+    private static Set<String> imports(File file) {
+        final List<String> lines;
+        try {
+            lines = Files.readAllLines(file.toPath());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        final Set<String> imports = new HashSet<>();
+        for (String line : lines) {
+            final String stripped = line.strip();
+            if (stripped.startsWith("import "))
+                imports.add(stripped.substring("import ".length()).strip().replace(".", "/"));
+        }
+
+        return imports;
+    }
+
+    private record SourceFile(File file, File root, String className) {
+        static SourceFile of(File file, String relativePath) {
+            File root = file.getParentFile();
+            for (int i = relativePath.indexOf('/'); i != -1; i = relativePath.indexOf('/', i + 1))
+                root = root.getParentFile();
+
+            return new SourceFile(file, root, relativePath.substring(0, relativePath.length() - EXTENSION.length()));
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package zip.sodium.jbasalt.gradle;
+
+import org.gradle.workers.WorkAction;
+import zip.sodium.jbasalt.compiler.EphemeralRunner;
+import zip.sodium.jbasalt.compiler.SourceCompiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+public abstract class BasaltCompileAction implements WorkAction<BasaltCompileParameters> {
+    @Override
+    public void execute() {
+        final File sourceDirectory = getParameters().getSourceDirectory().get().getAsFile();
+        final File destination = getParameters().getDestinationDirectory().get().getAsFile();
+
+        // Up-to-date classes from previous builds are loaded from the destination directory,
+        // everything that went stale was deleted by the task and gets compiled from source on demand.
+        try (URLClassLoader previousOutput = new URLClassLoader(new URL[] { destination.toURI().toURL() }, getClass().getClassLoader())) {
+            final EphemeralRunner runner = new EphemeralRunner(previousOutput);
+            final SourceCompiler compiler = new SourceCompiler(sourceDirectory, destination);
+
+            runner.setSourceDirectory(sourceDirectory);
+            runner.setCompileFunction(compiler);
+
+            compiler.apply(runner, getParameters().getSourceFile().get().getAsFile());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package zip.sodium.jbasalt.gradle;
+
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.workers.WorkParameters;
+
+public interface BasaltCompileParameters extends WorkParameters {
+    RegularFileProperty getSourceFile();
+
+    DirectoryProperty getSourceDirectory();
+
+    DirectoryProperty getDestinationDirectory();
+}
@@ -0,0 +1,31 @@
+package zip.sodium.jbasalt.gradle;
+
+import org.gradle.api.Plugin;
+import org.gradle.api.Project;
+import org.gradle.api.plugins.JavaPlugin;
+import org.gradle.api.tasks.SourceSetContainer;
+import org.gradle.api.tasks.TaskProvider;
+import org.gradle.language.base.plugins.LifecycleBasePlugin;
+
+import java.util.Map;
+
+public class BasaltPlugin implements Plugin<Project> {
+    @Override
+    public void apply(Project project) {
+        project.getPluginManager().apply(JavaPlugin.class);
+
+        final SourceSetContainer sourceSets = project.getExtensions().getByType(SourceSetContainer.class);
+        sourceSets.all(sourceSet -> {
+            final TaskProvider<BasaltCompile> compile = project.getTasks().register(sourceSet.getCompileTaskName("basalt"), BasaltCompile.class, task -> {
+                task.setDescription("Compiles the " + sourceSet.getName() + " Basalt source.");
+                task.setGroup(LifecycleBasePlugin.BUILD_GROUP);
+
+                task.getSource().from(project.file("src/" + sourceSet.getName() + "/basalt"));
+                task.getClasspath().from(sourceSet.getCompileClasspath(), sourceSet.getJava().getClassesDirectory());
+                task.getDestinationDirectory().set(project.getLayout().getBuildDirectory().dir("classes/basalt/" + sourceSet.getName()));
+            });
+
+            sourceSet.getOutput().dir(Map.of("builtBy", compile), compile.flatMap(BasaltCompile::getDestinationDirectory));
+        });
+    }
+}
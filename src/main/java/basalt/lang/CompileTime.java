@@ -0,0 +1,16 @@
+package basalt.lang;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Calls to a static function marked with this, or declared as "const fn", are run while compiling
+ * if all of their arguments are constants, the result is embedded in place of the call.
+ * A run that takes more than the given number of steps (calls and loop iterations) or milliseconds fails the build.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface CompileTime {
+    int steps() default 10_000_000;
+
+    int timeout() default 2_000;
+}
@@ -0,0 +1,308 @@
+package basalt.lang;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bootstrap for operators whose left operand is only known as {@link Object} at compile time.
+ * Every call site keeps a small polymorphic inline cache guarded by the exact receiver class,
+ * once it sees too many classes it falls back to a per-class lookup shared by all sites.
+ */
+public final class DynamicOperators {
+    private static final String MAGIC_PREFIX = "magic^";
+    private static final int MAX_DEPTH = 4;
+
+    private static final MethodType GENERIC_TYPE = MethodType.methodType(Object.class, Object.class, Object.class);
+
+    private static final MethodHandle FALLBACK;
+    private static final MethodHandle CHECK_CLASS;
+    private static final MethodHandle MEGAMORPHIC;
+    private static final MethodHandle NOT;
+
+    private static final Map<String, ClassValue<MethodHandle>> TARGETS = new ConcurrentHashMap<>();
+
+    // Only these are computed on directly, any other Number (BigInteger, AtomicLong, ...) would lose its value through intValue()
+    private static final Set<Class<?>> PRIMITIVE_NUMBERS = Set.of(Byte.class, Short.class, Integer.class,
+            Long.class, Float.class, Double.class);
+
+    static {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+        try {
+            FALLBACK = lookup.findStatic(DynamicOperators.class, "fallback",
+                    MethodType.methodType(Object.class, InlineCache.class, Object.class, Object.class));
+            CHECK_CLASS = lookup.findStatic(DynamicOperators.class, "checkClass",
+                    MethodType.methodType(boolean.class, Class.class, Object.class));
+            MEGAMORPHIC = lookup.findStatic(DynamicOperators.class, "megamorphic",
+                    MethodType.methodType(Object.class, ClassValue.class, String.class, Object.class, Object.class));
+            NOT = lookup.findStatic(DynamicOperators.class, "not",
+                    MethodType.methodType(boolean.class, boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private DynamicOperators() {
+        throw new AssertionError("Cannot instantiate DynamicOperators!");
+    }
+
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String operator, MethodType type) {
+        final InlineCache site = new InlineCache(operator, type);
+        site.setTarget(MethodHandles.insertArguments(FALLBACK, 0, site).asType(type));
+
+        return site;
+    }
+
+    private static final class InlineCache extends MutableCallSite {
+        private final String operator;
+        private int depth;
+
+        private InlineCache(String operator, MethodType type) {
+            super(type);
+
+            this.operator = operator;
+        }
+    }
+
+    private static boolean checkClass(Class<?> expected, Object receiver) {
+        return receiver != null && receiver.getClass() == expected;
+    }
+
+    private static boolean not(boolean value) {
+        return !value;
+    }
+
+    private static Object fallback(InlineCache site, Object left, Object right) throws Throwable {
+        if (left == null)
+            return nullOperator(site.operator, right);
+
+        final Class<?> receiver = left.getClass();
+        final MethodHandle target = targets(site.operator).get(receiver);
+
+        synchronized (site) {
+            if (site.depth < MAX_DEPTH) {
+                site.depth++;
+
+                final MethodHandle guard = MethodHandles.dropArguments(
+                        CHECK_CLASS.bindTo(receiver), 1, Object.class);
+                site.setTarget(MethodHandles.guardWithTest(
+                        guard.asType(site.type().changeReturnType(boolean.class)),
+                        target.asType(site.type()),
+                        site.getTarget()));
+            } else site.setTarget(MethodHandles.insertArguments(MEGAMORPHIC, 0, targets(site.operator), site.operator).asType(site.type()));
+        }
+
+        return target.invoke(left, right);
+    }
+
+    private static Object megamorphic(ClassValue<MethodHandle> targets, String operator, Object left, Object right) throws Throwable {
+        if (left == null)
+            return nullOperator(operator, right);
+
+        return targets.get(left.getClass()).invokeExact(left, right);
+    }
+
+    private static Object nullOperator(String operator, Object right) {
+        return switch (operator) {
+            case "eq" -> right == null;
+            case "ne" -> right != null;
+            default -> throw new NullPointerException("Can't apply operator " + operator + " to null");
+        };
+    }
+
+    private static ClassValue<MethodHandle> targets(String operator) {
+        return TARGETS.computeIfAbsent(operator, x -> new ClassValue<>() {
+            @Override
+            protected MethodHandle computeValue(Class<?> type) {
+                return resolve(type, x);
+            }
+        });
+    }
+
+    private static MethodHandle resolve(Class<?> receiver, String operator) {
+        final boolean negate = operator.equals("ne");
+        final String name = negate ? "eq" : operator;
+
+        MethodHandle handle = findMagic(receiver, name);
+        if (handle == null)
+            handle = findBuiltin(receiver, name);
+        if (handle == null)
+            handle = MethodHandles.dropArguments(MethodHandles.insertArguments(
+                    MethodHandles.throwException(Object.class, UnsupportedOperationException.class), 0,
+                    new UnsupportedOperationException("Can't apply operator " + name + " to " + receiver.getName())), 0, Object.class, Object.class);
+
+        if (negate)
+            handle = MethodHandles.filterReturnValue(handle.asType(handle.type().changeReturnType(boolean.class)), NOT);
+
+        return handle.asType(GENERIC_TYPE);
+    }
+
+    private static MethodHandle findMagic(Class<?> receiver, String name) {
+        for (Method method : receiver.getMethods()) {
+            if (!method.getName().equals(MAGIC_PREFIX + name) || method.getParameterCount() != 1 || Modifier.isStatic(method.getModifiers()))
+                continue;
+
+            try {
+                return MethodHandles.publicLookup().unreflect(method);
+            } catch (IllegalAccessException e) {
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    private static MethodHandle findBuiltin(Class<?> receiver, String name) {
+        final String builtin;
+        if (PRIMITIVE_NUMBERS.contains(receiver))
+            builtin = switch (name) {
+                case "add", "subtract", "multiply", "divide", "eq" -> name;
+                case "lt", "le", "gt", "ge" -> "number" + name.toUpperCase();
+                default -> null;
+            };
+        else if (name.equals("eq"))
+            builtin = "objectEquals";
+        else if (receiver == String.class && name.equals("add"))
+            builtin = "concat";
+        else if (Comparable.class.isAssignableFrom(receiver))
+            builtin = switch (name) {
+                case "lt", "le", "gt", "ge" -> "compare" + name.toUpperCase();
+                default -> null;
+            };
+        else builtin = null;
+
+        if (builtin == null)
+            return null;
+
+        try {
+            return MethodHandles.lookup().findStatic(DynamicOperators.class, builtin,
+                    MethodType.methodType(name.equals("add") || name.equals("subtract") || name.equals("multiply") || name.equals("divide")
+                            ? Object.class
+                            : boolean.class, Object.class, Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private enum NumberKind { INT, LONG, DOUBLE }
+
+    private static NumberKind kind(Object left, Object right) {
+        if (left instanceof Double || left instanceof Float || right instanceof Double || right instanceof Float)
+            return NumberKind.DOUBLE;
+        if (left instanceof Long || right instanceof Long)
+            return NumberKind.LONG;
+
+        return NumberKind.INT;
+    }
+
+    private static Number number(Object value, String operator) {
+        if (value == null)
+            throw new NullPointerException("Can't apply operator " + operator + " to null");
+        if (!PRIMITIVE_NUMBERS.contains(value.getClass()))
+            throw new UnsupportedOperationException("Can't apply operator " + operator + " to " + value.getClass().getName()
+                    + ", only boxed primitive numbers have builtin arithmetic");
+
+        return (Number) value;
+    }
+
+    private static Object add(Object left, Object right) {
+        final Number x = (Number) left, y = number(right, "add");
+        return switch (kind(x, y)) {
+            case INT -> x.intValue() + y.intValue();
+            case LONG -> x.longValue() + y.longValue();
+            case DOUBLE -> x.doubleValue() + y.doubleValue();
+        };
+    }
+
+    private static Object subtract(Object left, Object right) {
+        final Number x = (Number) left, y = number(right, "subtract");
+        return switch (kind(x, y)) {
+            case INT -> x.intValue() - y.intValue();
+            case LONG -> x.longValue() - y.longValue();
+            case DOUBLE -> x.doubleValue() - y.doubleValue();
+        };
+    }
+
+    private static Object multiply(Object left, Object right) {
+        final Number x = (Number) left, y = number(right, "multiply");
+        return switch (kind(x, y)) {
+            case INT -> x.intValue() * y.intValue();
+            case LONG -> x.longValue() * y.longValue();
+            case DOUBLE -> x.doubleValue() * y.doubleValue();
+        };
+    }
+
+    private static Object divide(Object left, Object right) {
+        final Number x = (Number) left, y = number(right, "divide");
+        return switch (kind(x, y)) {
+            case INT -> x.intValue() / y.intValue();
+            case LONG -> x.longValue() / y.longValue();
+            case DOUBLE -> x.doubleValue() / y.doubleValue();
+        };
+    }
+
+    private static int compareNumbers(Object left, Object right) {
+        final Number x = (Number) left, y = number(right, "compare");
+        return switch (kind(x, y)) {
+            case INT, LONG -> Long.compare(x.longValue(), y.longValue());
+            case DOUBLE -> Double.compare(x.doubleValue(), y.doubleValue());
+        };
+    }
+
+    private static boolean eq(Object left, Object right) {
+        return right != null && PRIMITIVE_NUMBERS.contains(right.getClass()) && compareNumbers(left, right) == 0;
+    }
+
+    private static boolean numberLT(Object left, Object right) {
+        return compareNumbers(left, right) < 0;
+    }
+
+    private static boolean numberLE(Object left, Object right) {
+        return compareNumbers(left, right) <= 0;
+    }
+
+    private static boolean numberGT(Object left, Object right) {
+        return compareNumbers(left, right) > 0;
+    }
+
+    private static boolean numberGE(Object left, Object right) {
+        return compareNumbers(left, right) >= 0;
+    }
+
+    private static boolean objectEquals(Object left, Object right) {
+        return left.equals(right);
+    }
+
+    private static Object concat(Object left, Object right) {
+        return ((String) left).concat(String.valueOf(right));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compare(Object left, Object right) {
+        return ((Comparable) left).compareTo(right);
+    }
+
+    private static boolean compareLT(Object left, Object right) {
+        return compare(left, right) < 0;
+    }
+
+    private static boolean compareLE(Object left, Object right) {
+        return compare(left, right) <= 0;
+    }
+
+    private static boolean compareGT(Object left, Object right) {
+        return compare(left, right) > 0;
+    }
+
+    private static boolean compareGE(Object left, Object right) {
+        return compare(left, right) >= 0;
+    }
+}
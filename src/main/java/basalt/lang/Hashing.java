@@ -0,0 +1,26 @@
+package basalt.lang;
+
+final class Hashing {
+    private static final int PHI = 0x9E3779B9;
+    private static final long LONG_PHI = 0x9E3779B97F4A7C15L;
+
+    static final float LOAD_FACTOR = 0.75f;
+
+    private Hashing() {}
+
+    static int mix(int x) {
+        final int h = x * PHI;
+        return h ^ (h >>> 16);
+    }
+
+    static int mix(long x) {
+        long h = x * LONG_PHI;
+        h ^= h >>> 32;
+        return (int) (h ^ (h >>> 16));
+    }
+
+    static int tableSize(int expectedSize) {
+        final int size = (int) Math.ceil(Math.max(expectedSize, 2) / LOAD_FACTOR);
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+}
@@ -0,0 +1,195 @@
+package basalt.lang;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map with int keys, which stores its keys and values without boxing them.
+ * It has no size operator: {@code for ... in} subscripts indices from 0 up to the size, which aren't its keys.
+ * Loop over {@link #keys()} instead.
+ */
+public final class IntObjectMap<V> {
+    private int[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    // The empty key marks free slots, so it is stored outside the table.
+    private boolean hasEmptyKey;
+    private Object emptyKeyValue;
+
+    public IntObjectMap() {
+        this(16);
+    }
+
+    public IntObjectMap(int expectedSize) {
+        allocate(Hashing.tableSize(expectedSize));
+    }
+
+    @Operator(type = OperatorType.SUBSCRIPT)
+    public V get(int key) {
+        return getOrDefault(key, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V getOrDefault(int key, V defaultValue) {
+        if (key == 0)
+            return hasEmptyKey ? (V) emptyKeyValue : defaultValue;
+
+        final int slot = find(key);
+        return slot < 0 ? defaultValue : (V) values[slot];
+    }
+
+    public boolean containsKey(int key) {
+        return key == 0 ? hasEmptyKey : find(key) >= 0;
+    }
+
+    @Operator(type = OperatorType.SUBSCRIPT_ASSIGN)
+    public void put(int key, V value) {
+        if (key == 0) {
+            if (!hasEmptyKey)
+                size++;
+
+            hasEmptyKey = true;
+            emptyKeyValue = value;
+            return;
+        }
+
+        final int slot = find(key);
+        if (slot >= 0) {
+            values[slot] = value;
+            return;
+        }
+
+        insert(~slot, key, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        if (key == 0) {
+            if (!hasEmptyKey)
+                return null;
+
+            final V value = (V) emptyKeyValue;
+            hasEmptyKey = false;
+            emptyKeyValue = null;
+            size--;
+            return value;
+        }
+
+        final int slot = find(key);
+        if (slot < 0)
+            return null;
+
+        final V value = (V) values[slot];
+        size--;
+        shiftKeys(slot);
+        return value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * A snapshot of the keys in no particular order.
+     */
+    public IntList keys() {
+        final IntList keys = new IntList(size);
+        if (hasEmptyKey)
+            keys.add(0);
+
+        for (int key : this.keys)
+            if (key != 0)
+                keys.add(key);
+
+        return keys;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        hasEmptyKey = false;
+        emptyKeyValue = null;
+        size = 0;
+    }
+
+    /**
+     * @return the slot of the key, or the complement of the free slot it would be inserted into
+     */
+    private int find(int key) {
+        int slot = Hashing.mix(key) & mask;
+        for (;;) {
+            final int current = keys[slot];
+            if (current == 0)
+                return ~slot;
+            if (current == key)
+                return slot;
+
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void insert(int slot, int key, Object value) {
+        keys[slot] = key;
+        values[slot] = value;
+
+        if (++size - (hasEmptyKey ? 1 : 0) > (int) (keys.length * Hashing.LOAD_FACTOR))
+            rehash(keys.length << 1);
+    }
+
+    private void shiftKeys(int slot) {
+        for (;;) {
+            final int last = slot;
+            slot = (slot + 1) & mask;
+
+            int key;
+            for (;;) {
+                key = keys[slot];
+                if (key == 0) {
+                    keys[last] = 0;
+                    values[last] = null;
+                    return;
+                }
+
+                final int home = Hashing.mix(key) & mask;
+                if (last <= slot ? last >= home || home > slot : last >= home && home > slot)
+                    break;
+
+                slot = (slot + 1) & mask;
+            }
+
+            keys[last] = key;
+            values[last] = values[slot];
+        }
+    }
+
+    private void rehash(int capacity) {
+        final int[] oldKeys = keys;
+        final Object[] oldValues = values;
+
+        allocate(capacity);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            final int key = oldKeys[i];
+            if (key == 0)
+                continue;
+
+            int slot = Hashing.mix(key) & mask;
+            while (keys[slot] != 0)
+                slot = (slot + 1) & mask;
+
+            keys[slot] = key;
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+}
@@ -0,0 +1,10 @@
+package basalt.lang;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Marks the accessor of a "lazy let" field, whose value is only computed on its first read.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Lazy { }
@@ -0,0 +1,67 @@
+package basalt.lang;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+public final class LongList {
+    private long[] elements;
+    private int size;
+
+    public LongList() {
+        this(10);
+    }
+
+    public LongList(int capacity) {
+        elements = new long[capacity];
+    }
+
+    public void add(long element) {
+        if (size == elements.length)
+            elements = Arrays.copyOf(elements, Math.max(8, elements.length + (elements.length >> 1)));
+
+        elements[size++] = element;
+    }
+
+    @Operator(type = OperatorType.SUBSCRIPT)
+    public long get(int index) {
+        Objects.checkIndex(index, size);
+
+        return elements[index];
+    }
+
+    @Operator(type = OperatorType.SUBSCRIPT_ASSIGN)
+    public void set(int index, long element) {
+        Objects.checkIndex(index, size);
+
+        elements[index] = element;
+    }
+
+    @Operator(type = OperatorType.ADD_ASSIGN)
+    public void addTo(int index, long delta) {
+        Objects.checkIndex(index, size);
+
+        elements[index] += delta;
+    }
+
+    @Operator(type = OperatorType.SIZE)
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public long[] toArray() {
+        return Arrays.copyOf(elements, size);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
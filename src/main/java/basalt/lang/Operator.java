@@ -0,0 +1,9 @@
+package basalt.lang;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Operator {
+    OperatorType type();
+}
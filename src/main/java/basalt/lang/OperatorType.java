@@ -0,0 +1,5 @@
+package basalt.lang;
+
+public enum OperatorType {
+    SUBSCRIPT, SUBSCRIPT_ASSIGN, ADD_ASSIGN, SIZE
+}
@@ -2,6 +2,9 @@ package zip.sodium.jbasalt;
 
 import zip.sodium.jbasalt.token.Token;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class Parser {
     private Token current;
     private Token beforePrevious;
@@ -10,10 +13,24 @@ public class Parser {
     private boolean hadError;
     private boolean panicMode;
 
+    private final List<Diagnostic> errors = new ArrayList<>();
+
     public boolean hadError() {
         return hadError;
     }
 
+    public void addError(Diagnostic error) {
+        errors.add(error);
+        hadError = true;
+    }
+
+    /**
+     * The errors reported so far, in the order they were reported.
+     */
+    public List<Diagnostic> getErrors() {
+        return List.copyOf(errors);
+    }
+
     public Token getCurrent() {
         return current;
     }
@@ -32,6 +49,8 @@ public class Parser {
 
     public void setHadError(boolean hadError) {
         this.hadError = hadError;
+        if (!hadError)
+            errors.clear();
     }
 
     public void setPanicMode(boolean panicMode) {
@@ -49,4 +68,14 @@ public class Parser {
     public Token getBeforePrevious() {
         return beforePrevious;
     }
+
+    /**
+     * An error in a source, the location is where in the line it is, like " at end", and may be empty.
+     */
+    public record Diagnostic(String fileName, int line, String location, String message) {
+        @Override
+        public String toString() {
+            return "[file %s] [line %d] Error%s -> %s".formatted(fileName, line, location, message);
+        }
+    }
 }
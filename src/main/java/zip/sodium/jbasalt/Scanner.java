@@ -29,8 +29,10 @@ public class Scanner {
         keywords.put("let",    TokenType.TOKEN_LET);
         keywords.put("const",  TokenType.TOKEN_CONST);
         keywords.put("while",  TokenType.TOKEN_WHILE);
+        keywords.put("when",   TokenType.TOKEN_WHEN);
         keywords.put("import", TokenType.TOKEN_IMPORT);
         keywords.put("inline", TokenType.TOKEN_INLINE);
+        keywords.put("lazy",   TokenType.TOKEN_LAZY);
         keywords.put("static", TokenType.TOKEN_STATIC);
         keywords.put("final",  TokenType.TOKEN_FINAL);
         keywords.put("private",TokenType.TOKEN_PRIVATE);
@@ -81,7 +83,7 @@ public class Scanner {
             case '[' -> makeToken(TokenType.TOKEN_LEFT_BRACK);
             case ']' -> makeToken(TokenType.TOKEN_RIGHT_BRACK);
             case ',' -> makeToken(TokenType.TOKEN_COMMA);
-            case '.' -> makeToken(TokenType.TOKEN_DOT);
+            case '.' -> makeToken(match('.') ? (match('<') ? TokenType.TOKEN_DOT_DOT_LESS : TokenType.TOKEN_DOT_DOT) : TokenType.TOKEN_DOT);
             case '-' -> makeToken(match('=') ? TokenType.TOKEN_MINUS_EQUAL : (match('>') ? TokenType.TOKEN_INTO : TokenType.TOKEN_MINUS));
             case '+' -> makeToken(match('=') ? TokenType.TOKEN_PLUS_EQUAL : TokenType.TOKEN_PLUS);
             case ';' -> makeToken(TokenType.TOKEN_SEMICOLON);
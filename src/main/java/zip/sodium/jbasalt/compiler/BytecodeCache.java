@@ -0,0 +1,307 @@
+package zip.sodium.jbasalt.compiler;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the bytecode of compiled sources in a directory, so it survives restarts.
+ * Entries are keyed by the SHA-256 of the source, the compiler version and the compiler options,
+ * along with a fingerprint of the class path the source was compiled against.
+ * They're written atomically and carry a checksum, a damaged entry is deleted and compiled again.
+ * Setting -Dbasalt.cache.dir turns it on for every runner and script.
+ */
+public final class BytecodeCache {
+    public static final BytecodeCache DEFAULT = System.getProperty("basalt.cache.dir") == null
+            ? null
+            : new BytecodeCache(Path.of(System.getProperty("basalt.cache.dir")));
+
+    private static final int MAGIC = 0xBA5A17CA;
+    private static final int FORMAT = 1;
+    private static final int CHECKSUM_LENGTH = 32;
+
+    // Snapshots change without their version changing, so the classes of the compiler and of ASM are part of it
+    private static final String COMPILER_VERSION = compilerVersion(BytecodeCache.class, ClassWriter.class, ClassNode.class);
+
+    private static final Map<ClassLoader, String> FINGERPRINTS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final Path directory;
+
+    public BytecodeCache(Path directory) {
+        this.directory = directory;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the cached entry for a key, or null if there is none or it doesn't pass its integrity checks.
+     */
+    public Entry load(String key) {
+        final Path file = file(key);
+
+        final byte[] data;
+        try {
+            data = Files.readAllBytes(file);
+        } catch (IOException e) {
+            return null;
+        }
+
+        final Entry entry = read(key, data);
+        if (entry == null)
+            delete(file);
+
+        return entry;
+    }
+
+    /**
+     * Stores the classes of a key, along with the sources it depends on by their class name and hash.
+     * A cache that can't be written to is the same as no cache, so failures are ignored.
+     */
+    public void store(String key, Map<String, byte[]> classes, Map<String, String> dependencies) {
+        final Path file = file(key);
+
+        Path temp = null;
+        try {
+            Files.createDirectories(file.getParent());
+
+            // Other processes may be loading from the same directory, they must never observe a partially written entry
+            temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            Files.write(temp, write(key, classes, dependencies));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (temp != null)
+                delete(temp);
+        }
+    }
+
+    private Path file(String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key + ".bin");
+    }
+
+    private static byte[] write(String key, Map<String, byte[]> classes, Map<String, String> dependencies) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeUTF(key);
+
+            out.writeInt(classes.size());
+            for (Map.Entry<String, byte[]> clazz : classes.entrySet()) {
+                out.writeUTF(clazz.getKey());
+                out.writeInt(clazz.getValue().length);
+                out.write(clazz.getValue());
+            }
+
+            out.writeInt(dependencies.size());
+            for (Map.Entry<String, String> dependency : dependencies.entrySet()) {
+                out.writeUTF(dependency.getKey());
+                out.writeUTF(dependency.getValue());
+            }
+
+            out.write(digest().digest(bytes.toByteArray()));
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private static Entry read(String key, byte[] data) {
+        if (data.length < CHECKSUM_LENGTH)
+            return null;
+
+        final int length = data.length - CHECKSUM_LENGTH;
+        final MessageDigest digest = digest();
+        digest.update(data, 0, length);
+        if (!MessageDigest.isEqual(digest.digest(), Arrays.copyOfRange(data, length, data.length)))
+            return null;
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 0, length))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT || !in.readUTF().equals(key))
+                return null;
+
+            final int classCount = in.readInt();
+            final Map<String, byte[]> classes = new LinkedHashMap<>();
+            for (int i = 0; i < classCount; i++) {
+                final String name = in.readUTF();
+                final byte[] classData = new byte[in.readInt()];
+                in.readFully(classData);
+
+                classes.put(name, classData);
+            }
+
+            final int dependencyCount = in.readInt();
+            final Map<String, String> dependencies = new LinkedHashMap<>();
+            for (int i = 0; i < dependencyCount; i++)
+                dependencies.put(in.readUTF(), in.readUTF());
+
+            return in.available() == 0 ? new Entry(Map.copyOf(classes), Map.copyOf(dependencies)) : null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {}
+    }
+
+    public record Entry(Map<String, byte[]> classes, Map<String, String> dependencies) {}
+
+    /**
+     * The SHA-256 of the given parts, the compiler version and options, everything that changes what a source compiles to.
+     */
+    static String key(String... parts) {
+        final MessageDigest digest = digest();
+
+        digest.update(COMPILER_VERSION.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(options().getBytes(StandardCharsets.UTF_8));
+        for (String part : parts) {
+            digest.update((byte) 0);
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+        }
+
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    static String hash(byte[] data) {
+        return HexFormat.of().formatHex(digest().digest(data));
+    }
+
+    private static String options() {
+        return Arrays.stream(Optimization.values())
+                .filter(Optimization::isEnabled)
+                .map(Enum::name)
+                .collect(Collectors.joining(","));
+    }
+
+    /**
+     * Identifies what the classes of a loader and its parents resolve to: the loaders themselves, the entries
+     * of their class path along with their size and modification time, and the Java version.
+     * Sources are compiled against the signatures of those classes, a change to them has to miss.
+     */
+    static String fingerprint(ClassLoader loader) {
+        if (loader == null)
+            return Runtime.version().toString();
+
+        String fingerprint = FINGERPRINTS.get(loader);
+        if (fingerprint == null) {
+            final StringBuilder builder = new StringBuilder(Runtime.version().toString());
+            for (ClassLoader current = loader; current != null; current = current.getParent()) {
+                builder.append('\0').append(current.getClass().getName()).append(':').append(current.getName());
+
+                if (current instanceof URLClassLoader urlLoader)
+                    for (URL url : urlLoader.getURLs())
+                        appendEntry(builder, url.toString(), toPath(url));
+                else if (current == ClassLoader.getSystemClassLoader())
+                    for (String entry : System.getProperty("java.class.path", "").split(File.pathSeparator))
+                        appendEntry(builder, entry, entry.isEmpty() ? null : Path.of(entry));
+            }
+
+            fingerprint = hash(builder.toString().getBytes(StandardCharsets.UTF_8));
+            FINGERPRINTS.put(loader, fingerprint);
+        }
+
+        return fingerprint;
+    }
+
+    private static void appendEntry(StringBuilder builder, String name, Path path) {
+        builder.append('\0').append(name);
+
+        if (path != null)
+            try {
+                builder.append(':').append(Files.size(path)).append(':').append(Files.getLastModifiedTime(path).toMillis());
+            } catch (IOException ignored) {}
+    }
+
+    /**
+     * The hash of everything the given classes were loaded from, every class of their jar or directory.
+     * A location that can't be read gives a version of its own to every run, nothing is loaded from the cache then.
+     */
+    private static String compilerVersion(Class<?>... compilerClasses) {
+        final String version = BytecodeCache.class.getPackage().getImplementationVersion();
+
+        final MessageDigest digest = digest();
+        for (Class<?> clazz : compilerClasses) {
+            final CodeSource codeSource = clazz.getProtectionDomain().getCodeSource();
+            final Path location = codeSource == null ? null : toPath(codeSource.getLocation());
+
+            try {
+                if (location == null)
+                    throw new IOException("Unknown location of " + clazz.getName());
+
+                digestLocation(digest, location);
+            } catch (IOException | UncheckedIOException e) {
+                digest.update(UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        return (version == null ? "dev" : version) + "+" + HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static void digestLocation(MessageDigest digest, Path location) throws IOException {
+        if (!Files.isDirectory(location)) {
+            digest.update(Files.readAllBytes(location));
+
+            return;
+        }
+
+        final List<Path> classFiles;
+        try (Stream<Path> files = Files.walk(location)) {
+            classFiles = files.filter(x -> x.toString().endsWith(".class")).sorted().toList();
+        }
+
+        for (Path classFile : classFiles) {
+            digest.update(location.relativize(classFile).toString().getBytes(StandardCharsets.UTF_8));
+            digest.update(Files.readAllBytes(classFile));
+        }
+    }
+
+    private static Path toPath(URL url) {
+        if (url == null || !url.getProtocol().equals("file"))
+            return null;
+
+        try {
+            return Path.of(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package zip.sodium.jbasalt.compiler;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.util.List;
+import java.util.Optional;
+
+public record ClassHeader(String name, String superName, int access, List<Field> fields, List<Method> methods) {
+    public record Method(String name, String descriptor, int access, boolean inline) {}
+    public record Field(String name, Type type, int access, boolean inline, boolean lazy) {}
+
+    public Optional<Method> findMethod(String name, int arity) {
+        return methods.stream()
+                .filter(x -> x.name.equals(name) && Type.getArgumentTypes(x.descriptor).length == arity)
+                .findFirst();
+    }
+
+    public Optional<Field> findField(String name) {
+        return fields.stream().filter(x -> x.name.equals(name)).findFirst();
+    }
+
+    public boolean isInterface() {
+        return (access & Opcodes.ACC_INTERFACE) == Opcodes.ACC_INTERFACE;
+    }
+}
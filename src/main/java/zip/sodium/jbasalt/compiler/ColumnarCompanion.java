@@ -0,0 +1,312 @@
+package zip.sodium.jbasalt.compiler;
+
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.InstructionAdapter;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.List;
+
+/**
+ * Generates the {@code $Columns} companion of a columnar magic class. Every component is stored
+ * in its own growable array, so rows don't need an object each. The arrays are public for tight
+ * loops, rows are only materialized through {@code get}. The row class gets static {@code columns}
+ * factories, since the companion can't be named from source.
+ */
+final class ColumnarCompanion {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private final ClassNode row;
+    private final List<Compiler.Pair<String, Type>> components;
+
+    private final ClassNode classNode = new ClassNode();
+    private final Type rowType;
+
+    private ColumnarCompanion(ClassNode row, List<Compiler.Pair<String, Type>> components) {
+        this.row = row;
+        this.components = components;
+
+        rowType = Type.getObjectType(row.name);
+    }
+
+    public static ClassNode generate(ClassNode row, List<Compiler.Pair<String, Type>> components) {
+        final ColumnarCompanion companion = new ColumnarCompanion(row, components);
+        companion.generate();
+
+        return companion.classNode;
+    }
+
+    private void generate() {
+        classNode.version = row.version;
+        classNode.access = Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER;
+        classNode.name = row.name + "$Columns";
+        classNode.superName = "java/lang/Object";
+
+        classNode.visitInnerClass(classNode.name, row.name, "Columns", Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL);
+
+        classNode.fields.add(new FieldNode(Opcodes.ACC_PUBLIC, "size", "I", null, null));
+        for (Compiler.Pair<String, Type> component : components)
+            classNode.fields.add(new FieldNode(Opcodes.ACC_PUBLIC, component.k(), arrayType(component.v()).getDescriptor(), null, null));
+
+        constructors();
+        grow();
+        add();
+        addRow();
+        get();
+        set();
+        accessors();
+        size();
+        clear();
+        forEachRow();
+
+        factories();
+    }
+
+    private static Type arrayType(Type type) {
+        return Type.getType("[" + type.getDescriptor());
+    }
+
+    private InstructionAdapter method(int access, String name, String descriptor) {
+        final MethodNode methodNode = new MethodNode(access, name, descriptor, null, null);
+        classNode.methods.add(methodNode);
+
+        return new InstructionAdapter(methodNode);
+    }
+
+    private void getColumn(InstructionAdapter method, Compiler.Pair<String, Type> component) {
+        method.load(0, InstructionAdapter.OBJECT_TYPE);
+        method.getfield(classNode.name, component.k(), arrayType(component.v()).getDescriptor());
+    }
+
+    private void checkIndex(InstructionAdapter method, int index) {
+        method.load(index, Type.INT_TYPE);
+        method.load(0, InstructionAdapter.OBJECT_TYPE);
+        method.getfield(classNode.name, "size", "I");
+        method.invokestatic("java/util/Objects", "checkIndex", "(II)I", false);
+        method.pop();
+    }
+
+    private void factories() {
+        final Type companionType = Type.getObjectType(classNode.name);
+
+        for (Type[] arguments : List.of(new Type[0], new Type[] { Type.INT_TYPE })) {
+            final MethodNode methodNode = new MethodNode(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "columns", Type.getMethodDescriptor(companionType, arguments), null, null);
+            row.methods.add(methodNode);
+
+            final InstructionAdapter method = new InstructionAdapter(methodNode);
+            method.anew(companionType);
+            method.dup();
+            if (arguments.length == 1)
+                method.load(0, Type.INT_TYPE);
+            method.invokespecial(classNode.name, "<init>", Type.getMethodDescriptor(Type.VOID_TYPE, arguments), false);
+            method.areturn(companionType);
+        }
+    }
+
+    private void constructors() {
+        final InstructionAdapter empty = method(Opcodes.ACC_PUBLIC, "<init>", "()V");
+        empty.load(0, InstructionAdapter.OBJECT_TYPE);
+        empty.iconst(DEFAULT_CAPACITY);
+        empty.invokespecial(classNode.name, "<init>", "(I)V", false);
+        empty.areturn(Type.VOID_TYPE);
+
+        final InstructionAdapter sized = method(Opcodes.ACC_PUBLIC, "<init>", "(I)V");
+        sized.load(0, InstructionAdapter.OBJECT_TYPE);
+        sized.invokespecial("java/lang/Object", "<init>", "()V", false);
+
+        for (Compiler.Pair<String, Type> component : components) {
+            sized.load(0, InstructionAdapter.OBJECT_TYPE);
+            sized.load(1, Type.INT_TYPE);
+            sized.newarray(component.v());
+            sized.putfield(classNode.name, component.k(), arrayType(component.v()).getDescriptor());
+        }
+
+        sized.areturn(Type.VOID_TYPE);
+    }
+
+    private void grow() {
+        final InstructionAdapter method = method(Opcodes.ACC_PRIVATE, "grow", "()V");
+
+        // newCapacity = max(length * 2, 1)
+        getColumn(method, components.get(0));
+        method.arraylength();
+        method.iconst(1);
+        method.shl(Type.INT_TYPE);
+        method.iconst(1);
+        method.invokestatic("java/lang/Math", "max", "(II)I", false);
+        method.store(1, Type.INT_TYPE);
+
+        for (Compiler.Pair<String, Type> component : components) {
+            final Type arrayType = arrayType(component.v());
+            final boolean isReference = component.v().getSort() == Type.OBJECT || component.v().getSort() == Type.ARRAY;
+            final Type copyType = isReference ? Type.getType("[Ljava/lang/Object;") : arrayType;
+
+            method.load(0, InstructionAdapter.OBJECT_TYPE);
+            getColumn(method, component);
+            method.load(1, Type.INT_TYPE);
+            method.invokestatic("java/util/Arrays", "copyOf", Type.getMethodDescriptor(copyType, copyType, Type.INT_TYPE), false);
+            if (isReference)
+                method.checkcast(arrayType);
+            method.putfield(classNode.name, component.k(), arrayType.getDescriptor());
+        }
+
+        method.areturn(Type.VOID_TYPE);
+    }
+
+    private void add() {
+        final Type[] arguments = components.stream().map(Compiler.Pair::v).toArray(Type[]::new);
+        final InstructionAdapter method = method(Opcodes.ACC_PUBLIC, "add", Type.getMethodDescriptor(Type.INT_TYPE, arguments));
+
+        final Label hasCapacity = new Label();
+        method.load(0, InstructionAdapter.OBJECT_TYPE);
+        method.getfield(classNode.name, "size", "I");
+        getColumn(method, components.get(0));
+        method.arraylength();
+        method.ificmplt(hasCapacity);
+        method.load(0, InstructionAdapter.OBJECT_TYPE);
+        method.invokespecial(classNode.name, "grow", "()V", false);
+        method.mark(hasCapacity);
+
+        int index = 1;
+        for (Compiler.Pair<String, Type> component : components) {
+            getColumn(method, component);
+            method.load(0, InstructionAdapter.OBJECT_TYPE);
+            method.getfield(classNode.name, "size", "I");
+            method.load(index, component.v());
+            method.astore(component.v());
+
+            index += component.v().getSize();
+        }
+
+        method.load(0, InstructionAdapter.OBJECT_TYPE);
+        method.dup();
+        method.getfield(classNode.name, "size", "I");
+        method.dupX1();
+        method.iconst(1);
+        method.add(Type.INT_TYPE);
+        method.putfield(classNode.name, "size", "I");
+        method.areturn(Type.INT_TYPE);
+    }
+
+    private void addRow() {
+        final InstructionAdapter method = method(Opcodes.ACC_PUBLIC, "add", Type.getMethodDescriptor(Type.INT_TYPE, rowType));
+
+        method.load(0, InstructionAdapter.OBJECT_TYPE);
+        for (Compiler.Pair<String, Type> component : components) {
+            method.load(1, rowType);
+            method.getfield(row.name, component.k(), component.v().getDescriptor());
+        }
+
+        final Type[] arguments = components.stream().map(Compiler.Pair::v).toArray(Type[]::new);
+        method.invokevirtual(classNode.name, "add", Type.getMethodDescriptor(Type.INT_TYPE, arguments), false);
+        method.areturn(Type.INT_TYPE);
+    }
+
+    private void get() {
+        final InstructionAdapter method = method(Opcodes.ACC_PUBLIC, "get", Type.getMethodDescriptor(rowType, Type.INT_TYPE));
+        checkIndex(method, 1);
+
+        method.anew(rowType);
+        method.dup();
+        for (Compiler.Pair<String, Type> component : components) {
+            getColumn(method, component);
+            method.load(1, Type.INT_TYPE);
+            method.aload(component.v());
+        }
+
+        final Type[] arguments = components.stream().map(Compiler.Pair::v).toArray(Type[]::new);
+        method.invokespecial(row.name, "<init>", Type.getMethodDescriptor(Type.VOID_TYPE, arguments), false);
+        method.areturn(rowType);
+    }
+
+    private void set() {
+        final InstructionAdapter method = method(Opcodes.ACC_PUBLIC, "set", Type.getMethodDescriptor(Type.VOID_TYPE, Type.INT_TYPE, rowType));
+        checkIndex(method, 1);
+
+        for (Compiler.Pair<String, Type> component : components) {
+            getColumn(method, component);
+            method.load(1, Type.INT_TYPE);
+            method.load(2, rowType);
+            method.getfield(row.name, component.k(), component.v().getDescriptor());
+            method.astore(component.v());
+        }
+
+        method.areturn(Type.VOID_TYPE);
+    }
+
+    private void accessors() {
+        for (Compiler.Pair<String, Type> component : components) {
+            final InstructionAdapter getter = method(Opcodes.ACC_PUBLIC, component.k(), Type.getMethodDescriptor(component.v(), Type.INT_TYPE));
+            checkIndex(getter, 1);
+            getColumn(getter, component);
+            getter.load(1, Type.INT_TYPE);
+            getter.aload(component.v());
+            getter.areturn(component.v());
+
+            final InstructionAdapter setter = method(Opcodes.ACC_PUBLIC, component.k(), Type.getMethodDescriptor(Type.VOID_TYPE, Type.INT_TYPE, component.v()));
+            checkIndex(setter, 1);
+            getColumn(setter, component);
+            setter.load(1, Type.INT_TYPE);
+            setter.load(2, component.v());
+            setter.astore(component.v());
+            setter.areturn(Type.VOID_TYPE);
+        }
+    }
+
+    private void size() {
+        final InstructionAdapter method = method(Opcodes.ACC_PUBLIC, "size", "()I");
+        method.load(0, InstructionAdapter.OBJECT_TYPE);
+        method.getfield(classNode.name, "size", "I");
+        method.areturn(Type.INT_TYPE);
+    }
+
+    private void clear() {
+        final InstructionAdapter method = method(Opcodes.ACC_PUBLIC, "clear", "()V");
+
+        // Drop the references so cleared rows don't keep anything alive.
+        for (Compiler.Pair<String, Type> component : components) {
+            if (component.v().getSort() != Type.OBJECT && component.v().getSort() != Type.ARRAY)
+                continue;
+
+            getColumn(method, component);
+            method.iconst(0);
+            method.load(0, InstructionAdapter.OBJECT_TYPE);
+            method.getfield(classNode.name, "size", "I");
+            method.aconst(null);
+            method.invokestatic("java/util/Arrays", "fill", "([Ljava/lang/Object;IILjava/lang/Object;)V", false);
+        }
+
+        method.load(0, InstructionAdapter.OBJECT_TYPE);
+        method.iconst(0);
+        method.putfield(classNode.name, "size", "I");
+        method.areturn(Type.VOID_TYPE);
+    }
+
+    private void forEachRow() {
+        final InstructionAdapter method = method(Opcodes.ACC_PUBLIC, "forEachRow", "(Ljava/util/function/IntConsumer;)V");
+
+        final Label condition = new Label();
+        final Label body = new Label();
+
+        method.iconst(0);
+        method.store(2, Type.INT_TYPE);
+        method.goTo(condition);
+
+        method.mark(body);
+        method.load(1, InstructionAdapter.OBJECT_TYPE);
+        method.load(2, Type.INT_TYPE);
+        method.invokeinterface("java/util/function/IntConsumer", "accept", "(I)V");
+        method.iinc(2, 1);
+
+        method.mark(condition);
+        method.load(2, Type.INT_TYPE);
+        method.load(0, InstructionAdapter.OBJECT_TYPE);
+        method.getfield(classNode.name, "size", "I");
+        method.ificmplt(body);
+
+        method.areturn(Type.VOID_TYPE);
+    }
+}
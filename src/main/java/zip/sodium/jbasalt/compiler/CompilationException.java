@@ -0,0 +1,26 @@
+package zip.sodium.jbasalt.compiler;
+
+import zip.sodium.jbasalt.Parser;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Thrown for a source that doesn't compile, with every error the compiler reported for it.
+ */
+public class CompilationException extends RuntimeException {
+    private final List<Parser.Diagnostic> errors;
+
+    public CompilationException(List<Parser.Diagnostic> errors) {
+        this(errors, null);
+    }
+
+    public CompilationException(List<Parser.Diagnostic> errors, Throwable cause) {
+        super(errors.stream().map(Parser.Diagnostic::toString).collect(Collectors.joining("\n")), cause);
+        this.errors = List.copyOf(errors);
+    }
+
+    public List<Parser.Diagnostic> getErrors() {
+        return errors;
+    }
+}
@@ -0,0 +1,43 @@
+package zip.sodium.jbasalt.compiler;
+
+/**
+ * Called by the copies of compile-time functions on every method entry and backward jump,
+ * stops the evaluation once it used up its steps or time.
+ */
+public final class CompileTimeBudget {
+    private static final ThreadLocal<CompileTimeBudget> CURRENT = new ThreadLocal<>();
+
+    private final long deadline;
+    private long steps;
+
+    private CompileTimeBudget(long steps, long deadline) {
+        this.steps = steps;
+        this.deadline = deadline;
+    }
+
+    public static void step() {
+        final CompileTimeBudget budget = CURRENT.get();
+        if (budget == null)
+            return;
+
+        if (--budget.steps < 0)
+            throw new Exceeded("ran out of steps");
+        if (System.nanoTime() - budget.deadline > 0)
+            throw new Exceeded("ran out of time");
+    }
+
+    static void install(long steps, long timeoutMillis) {
+        CURRENT.set(new CompileTimeBudget(steps, System.nanoTime() + timeoutMillis * 1_000_000));
+    }
+
+    static void uninstall() {
+        CURRENT.remove();
+    }
+
+    // An Error so that it can't be swallowed by a catch of Exception in the evaluated code
+    static final class Exceeded extends Error {
+        private Exceeded(String message) {
+            super(message, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package zip.sodium.jbasalt.compiler;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs calls to compile-time functions whose arguments are constants and turns their result into instructions.
+ * The function and everything it calls are copied into a class of their own, instrumented with {@link CompileTimeBudget}
+ * and defined in a throwaway loader, so nothing of the class being compiled has to be loadable yet.
+ */
+final class CompileTimeEvaluator {
+    static final String DESCRIPTOR = "Lbasalt/lang/CompileTime;";
+
+    private static final int MAX_ARRAY_LENGTH = 1024;
+    private static final int MAX_STRING_LENGTH = 65535;
+    // How long a run that doesn't come back to check its budget, e.g. inside of a library call, is waited for
+    private static final long GRACE_MILLIS = 500;
+
+    private static final Set<String> PURE_OWNERS = Set.of(
+            "java/lang/Math", "java/lang/StrictMath", "java/lang/String", "java/lang/StringBuilder",
+            "java/lang/Boolean", "java/lang/Character", "java/lang/Byte", "java/lang/Short",
+            "java/lang/Integer", "java/lang/Long", "java/lang/Float", "java/lang/Double",
+            "java/util/Arrays", "java/util/Objects");
+
+    private CompileTimeEvaluator() {
+        throw new AssertionError("Cannot instantiate CompileTimeEvaluator!");
+    }
+
+    static boolean isCompileTime(MethodNode methodNode) {
+        return methodNode.visibleAnnotations != null
+                && methodNode.visibleAnnotations.stream().anyMatch(x -> x.desc.equals(DESCRIPTOR));
+    }
+
+    /**
+     * @return why the given compile-time function can't be run while compiling, or null if it can
+     */
+    static String findImpurity(ClassNode classNode, MethodNode methodNode) {
+        if ((methodNode.access & Opcodes.ACC_STATIC) == 0)
+            return "it isn't static";
+        if (methodNode.tryCatchBlocks != null && !methodNode.tryCatchBlocks.isEmpty())
+            return "it catches exceptions";
+
+        final Type returnType = Type.getReturnType(methodNode.desc);
+        if (!isEmbeddable(returnType))
+            return "its result of type " + returnType.getClassName() + " can't be embedded";
+
+        for (AbstractInsnNode node : methodNode.instructions) {
+            if (node instanceof MethodInsnNode call && call.owner.equals(classNode.name)) {
+                final MethodNode callee = find(classNode, call);
+                if (callee != null && callee != methodNode && !isCompileTime(callee))
+                    return "it calls \"" + call.name + "\" which isn't a compile-time function";
+
+                continue;
+            }
+
+            if (!isPure(node))
+                return "it " + describe(node);
+        }
+
+        return null;
+    }
+
+    /**
+     * Evaluates the call of the given function on the arguments emitted after the given instruction.
+     *
+     * @param evaluable the finished compile-time functions, only those can be run
+     * @return the instructions pushing the result, or null if the call has to stay
+     * @throws IllegalStateException if the evaluation failed or ran out of budget
+     */
+    static InsnList evaluate(ClassNode classNode, MethodNode target, InsnList instructions, AbstractInsnNode beforeArguments,
+                             Set<MethodNode> evaluable) {
+        final List<AbstractInsnNode> arguments = new ArrayList<>();
+        for (AbstractInsnNode node = beforeArguments == null ? instructions.getFirst() : beforeArguments.getNext();
+             node != null; node = node.getNext())
+            arguments.add(node);
+
+        if (!isClosed(classNode, arguments))
+            return null;
+
+        final Set<MethodNode> methods = callees(classNode, target, arguments, evaluable);
+        if (methods == null)
+            return null;
+
+        final String name = classNode.name + "$$CompileTime";
+        final ClassNode copy = new ClassNode();
+        copy.visit(classNode.version, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, name, null, "java/lang/Object", null);
+
+        for (MethodNode methodNode : methods) {
+            final MethodNode method = new MethodNode(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, methodNode.name, methodNode.desc, null, null);
+            method.instructions = copy(methodNode.instructions, classNode.name, name);
+            method.instructions.insert(budgetCheck());
+            copy.methods.add(method);
+        }
+
+        final Type returnType = Type.getReturnType(target.desc);
+        final MethodNode entry = new MethodNode(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "evaluate", Type.getMethodDescriptor(returnType), null, null);
+        entry.instructions = copy(arguments, classNode.name, name);
+        entry.instructions.add(new MethodInsnNode(Opcodes.INVOKESTATIC, name, target.name, target.desc));
+        entry.instructions.add(new InsnNode(returnType.getOpcode(Opcodes.IRETURN)));
+        copy.methods.add(entry);
+
+        final AnnotationNode annotation = target.visibleAnnotations.stream().filter(x -> x.desc.equals(DESCRIPTOR)).findFirst().orElseThrow();
+        final Object value = run(name.replace('/', '.'), Compiler.write(copy),
+                intValue(annotation, "steps", 10_000_000), intValue(annotation, "timeout", 2_000));
+
+        return push(value, returnType);
+    }
+
+    private static Object run(String name, byte[] bytes, int steps, int timeout) {
+        final EphemeralRunner loader = EphemeralRunner.disposable(CompileTimeEvaluator.class.getClassLoader());
+        loader.classes.put(name, bytes);
+
+        final FutureTask<Object> task = new FutureTask<>(() -> {
+            CompileTimeBudget.install(steps, timeout);
+            try {
+                return loader.loadClass(name).getMethod("evaluate").invoke(null);
+            } finally {
+                CompileTimeBudget.uninstall();
+            }
+        });
+
+        final Thread thread = new Thread(task, "basalt-compile-time");
+        thread.setDaemon(true);
+        thread.start();
+
+        try {
+            return task.get(timeout + GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            task.cancel(true);
+
+            throw new IllegalStateException("didn't finish within " + timeout + "ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IllegalStateException("was interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InvocationTargetException invocation)
+                cause = invocation.getCause();
+
+            if (cause instanceof CompileTimeBudget.Exceeded)
+                throw new IllegalStateException(cause.getMessage() + " (at most " + steps + " steps in " + timeout + "ms)");
+
+            throw new IllegalStateException("threw " + cause);
+        }
+    }
+
+    // region Purity
+
+    private static boolean isPure(AbstractInsnNode node) {
+        if (node instanceof FieldInsnNode)
+            return false;
+        if (node instanceof MethodInsnNode call)
+            return PURE_OWNERS.contains(call.owner);
+        if (node instanceof InvokeDynamicInsnNode indy)
+            return indy.bsm.getOwner().equals("java/lang/invoke/StringConcatFactory");
+        if (node instanceof LdcInsnNode ldc)
+            return ldc.cst instanceof Number || ldc.cst instanceof String;
+        if (node instanceof TypeInsnNode type && type.getOpcode() == Opcodes.NEW)
+            return type.desc.equals("java/lang/StringBuilder") || type.desc.equals("java/lang/String");
+
+        return node.getOpcode() != Opcodes.MONITORENTER && node.getOpcode() != Opcodes.MONITOREXIT;
+    }
+
+    private static String describe(AbstractInsnNode node) {
+        if (node instanceof FieldInsnNode field)
+            return "accesses the field \"" + field.name + "\"";
+        if (node instanceof MethodInsnNode call)
+            return "calls " + call.owner.replace('/', '.') + "." + call.name;
+        if (node instanceof TypeInsnNode type)
+            return "creates an instance of " + type.desc.replace('/', '.');
+        if (node instanceof InvokeDynamicInsnNode)
+            return "creates a lambda";
+        if (node instanceof LdcInsnNode ldc)
+            return "loads the constant " + ldc.cst;
+
+        return "synchronizes";
+    }
+
+    /**
+     * Arguments can only be evaluated on their own if they don't read any locals or jump out of themselves.
+     */
+    private static boolean isClosed(ClassNode classNode, List<AbstractInsnNode> arguments) {
+        final Set<LabelNode> labels = new LinkedHashSet<>();
+        for (AbstractInsnNode node : arguments)
+            if (node instanceof LabelNode label)
+                labels.add(label);
+
+        for (AbstractInsnNode node : arguments) {
+            if (node instanceof VarInsnNode || node instanceof IincInsnNode || node instanceof FrameNode)
+                return false;
+            if (node instanceof JumpInsnNode jump && !labels.contains(jump.label))
+                return false;
+            if (node instanceof TableSwitchInsnNode || node instanceof LookupSwitchInsnNode)
+                return false;
+            if (node instanceof MethodInsnNode call && call.owner.equals(classNode.name))
+                continue;
+            if (node.getOpcode() >= 0 && !isPure(node))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the target and every function it or the arguments call, or null if one of them can't be run
+     */
+    private static Set<MethodNode> callees(ClassNode classNode, MethodNode target, List<AbstractInsnNode> arguments,
+                                           Set<MethodNode> evaluable) {
+        final Set<MethodNode> methods = new LinkedHashSet<>();
+        final Deque<MethodNode> queue = new ArrayDeque<>();
+        queue.add(target);
+
+        for (AbstractInsnNode node : arguments) {
+            if (node instanceof MethodInsnNode call && call.owner.equals(classNode.name))
+                queue.add(find(classNode, call));
+        }
+
+        while (!queue.isEmpty()) {
+            final MethodNode methodNode = queue.poll();
+            if (methodNode == null || !evaluable.contains(methodNode))
+                return null;
+            if (!methods.add(methodNode))
+                continue;
+
+            for (AbstractInsnNode node : methodNode.instructions) {
+                if (node instanceof MethodInsnNode call && call.owner.equals(classNode.name))
+                    queue.add(find(classNode, call));
+            }
+        }
+
+        return methods;
+    }
+
+    private static MethodNode find(ClassNode classNode, MethodInsnNode call) {
+        for (MethodNode methodNode : classNode.methods) {
+            if (methodNode.name.equals(call.name) && methodNode.desc.equals(call.desc))
+                return methodNode;
+        }
+
+        return null;
+    }
+
+    // endregion
+
+    // region Copying
+
+    private static InsnList copy(Iterable<AbstractInsnNode> instructions, String owner, String copyOwner) {
+        final Map<LabelNode, LabelNode> labels = new HashMap<>();
+        for (AbstractInsnNode node : instructions) {
+            if (node instanceof LabelNode label)
+                labels.put(label, new LabelNode());
+        }
+
+        final Set<LabelNode> seen = new HashSet<>();
+        final InsnList copy = new InsnList();
+        for (AbstractInsnNode node : instructions) {
+            if (node instanceof LineNumberNode || node instanceof FrameNode)
+                continue;
+
+            final AbstractInsnNode clone = node.clone(labels);
+            if (clone instanceof MethodInsnNode call && call.owner.equals(owner))
+                call.owner = copyOwner;
+
+            // Every backward jump could close a loop
+            if (isBackward(clone, seen))
+                copy.add(budgetCheck());
+
+            copy.add(clone);
+            if (clone instanceof LabelNode label)
+                seen.add(label);
+        }
+
+        return copy;
+    }
+
+    private static boolean isBackward(AbstractInsnNode node, Set<LabelNode> seen) {
+        if (node instanceof JumpInsnNode jump)
+            return seen.contains(jump.label);
+        if (node instanceof TableSwitchInsnNode table)
+            return seen.contains(table.dflt) || table.labels.stream().anyMatch(seen::contains);
+        if (node instanceof LookupSwitchInsnNode lookup)
+            return seen.contains(lookup.dflt) || lookup.labels.stream().anyMatch(seen::contains);
+
+        return false;
+    }
+
+    private static MethodInsnNode budgetCheck() {
+        return new MethodInsnNode(Opcodes.INVOKESTATIC, "zip/sodium/jbasalt/compiler/CompileTimeBudget", "step", "()V");
+    }
+
+    // endregion
+
+    // region Embedding
+
+    private static boolean isEmbeddable(Type type) {
+        if (type.getSort() == Type.ARRAY)
+            return type.getDimensions() == 1 && type.getElementType().getSort() <= Type.DOUBLE;
+
+        return type.getSort() != Type.VOID && (type.getSort() <= Type.DOUBLE || type.getDescriptor().equals("Ljava/lang/String;"));
+    }
+
+    private static InsnList push(Object value, Type type) {
+        final InsnList instructions = new InsnList();
+
+        if (value == null)
+            instructions.add(new InsnNode(Opcodes.ACONST_NULL));
+        else if (value instanceof String string) {
+            if (string.length() > MAX_STRING_LENGTH / 3)
+                return null;
+
+            instructions.add(new LdcInsnNode(string));
+        } else if (value.getClass().isArray()) {
+            final int length = Array.getLength(value);
+            if (length > MAX_ARRAY_LENGTH)
+                return null;
+
+            final Type elementType = type.getElementType();
+            instructions.add(pushNumber(length));
+            instructions.add(new IntInsnNode(Opcodes.NEWARRAY, arrayType(elementType)));
+            for (int i = 0; i < length; i++) {
+                final Object element = Array.get(value, i);
+                if (isDefault(element))
+                    continue;
+
+                instructions.add(new InsnNode(Opcodes.DUP));
+                instructions.add(pushNumber(i));
+                instructions.add(pushPrimitive(element));
+                instructions.add(new InsnNode(elementType.getOpcode(Opcodes.IASTORE)));
+            }
+        } else instructions.add(pushPrimitive(value));
+
+        return instructions;
+    }
+
+    private static AbstractInsnNode pushPrimitive(Object value) {
+        if (value instanceof Boolean bool)
+            return new InsnNode(bool ? Opcodes.ICONST_1 : Opcodes.ICONST_0);
+        if (value instanceof Character character)
+            return pushNumber((int) character);
+
+        return pushNumber((Number) value);
+    }
+
+    private static AbstractInsnNode pushNumber(Number number) {
+        if (number instanceof Long value) {
+            if (value == 0 || value == 1)
+                return new InsnNode(Opcodes.LCONST_0 + value.intValue());
+
+            return new LdcInsnNode(value);
+        }
+        if (number instanceof Float value) {
+            if (value == 0 && Float.floatToRawIntBits(value) == 0 || value == 1 || value == 2)
+                return new InsnNode(Opcodes.FCONST_0 + value.intValue());
+
+            return new LdcInsnNode(value);
+        }
+        if (number instanceof Double value) {
+            if (value == 0 && Double.doubleToRawLongBits(value) == 0 || value == 1)
+                return new InsnNode(Opcodes.DCONST_0 + value.intValue());
+
+            return new LdcInsnNode(value);
+        }
+
+        final int value = number.intValue();
+        if (value >= -1 && value <= 5)
+            return new InsnNode(Opcodes.ICONST_0 + value);
+        if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+            return new IntInsnNode(Opcodes.BIPUSH, value);
+        if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+            return new IntInsnNode(Opcodes.SIPUSH, value);
+
+        return new LdcInsnNode(value);
+    }
+
+    private static boolean isDefault(Object element) {
+        if (element instanceof Boolean bool)
+            return !bool;
+        if (element instanceof Character character)
+            return character == 0;
+        if (element instanceof Float value)
+            return Float.floatToRawIntBits(value) == 0;
+        if (element instanceof Double value)
+            return Double.doubleToRawLongBits(value) == 0;
+
+        return ((Number) element).longValue() == 0;
+    }
+
+    private static int arrayType(Type elementType) {
+        return switch (elementType.getSort()) {
+            case Type.BOOLEAN -> Opcodes.T_BOOLEAN;
+            case Type.CHAR -> Opcodes.T_CHAR;
+            case Type.BYTE -> Opcodes.T_BYTE;
+            case Type.SHORT -> Opcodes.T_SHORT;
+            case Type.INT -> Opcodes.T_INT;
+            case Type.FLOAT -> Opcodes.T_FLOAT;
+            case Type.LONG -> Opcodes.T_LONG;
+            default -> Opcodes.T_DOUBLE;
+        };
+    }
+
+    private static int intValue(AnnotationNode annotation, String name, int fallback) {
+        if (annotation.values == null)
+            return fallback;
+
+        for (int i = 0; i < annotation.values.size(); i += 2) {
+            if (annotation.values.get(i).equals(name) && annotation.values.get(i + 1) instanceof Number number)
+                return number.intValue();
+        }
+
+        return fallback;
+    }
+
+    // endregion
+}
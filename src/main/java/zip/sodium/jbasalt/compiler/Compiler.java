@@ -9,6 +9,7 @@ import org.objectweb.asm.commons.InstructionAdapter;
 import org.objectweb.asm.tree.*;
 import zip.sodium.jbasalt.Parser;
 import zip.sodium.jbasalt.Scanner;
+import zip.sodium.jbasalt.compiler.DelayedInstruction.Comparison;
 import zip.sodium.jbasalt.token.Token;
 import zip.sodium.jbasalt.token.TokenType;
 
@@ -17,6 +18,8 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import java.util.function.BiConsumer;
@@ -26,8 +29,45 @@ import java.util.stream.Collectors;
 
 public class Compiler {
     private static final String MAGIC_PREFIX = "magic^";
+    private static final String LAZY_PREFIX = "lazy^";
+    private static final String LAZY_INITIALIZER_PREFIX = "init^";
+    private static final String ENUM_VALUES_FIELD = "$VALUES";
 
     private static final AnnotationNode INLINE_ANNOTATION = new AnnotationNode("Lbasalt/lang/Inline;");
+    private static final AnnotationNode COMPILE_TIME_ANNOTATION = new AnnotationNode(CompileTimeEvaluator.DESCRIPTOR);
+    private static final AnnotationNode LAZY_ANNOTATION = new AnnotationNode("Lbasalt/lang/Lazy;");
+    private static final String TAIL_REC_DESCRIPTOR = "Lbasalt/lang/TailRec;";
+    private static final String JVM_RECORD_DESCRIPTOR = "Lbasalt/lang/JvmRecord;";
+    private static final String COLUMNAR_DESCRIPTOR = "Lbasalt/lang/Columnar;";
+    private static final Set<String> COLUMNAR_RESERVED_NAMES = Set.of("size", "grow", "add", "get", "set", "clear", "forEachRow");
+    private static final Handle LAMBDA_METAFACTORY = new Handle(
+            Opcodes.H_INVOKESTATIC,
+            "java/lang/invoke/LambdaMetafactory",
+            "metafactory",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodType;Ljava/lang/invoke/MethodHandle;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;",
+            false
+    );
+    private static final Handle OBJECT_METHODS_BOOTSTRAP = new Handle(
+            Opcodes.H_INVOKESTATIC,
+            "java/lang/runtime/ObjectMethods",
+            "bootstrap",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/TypeDescriptor;Ljava/lang/Class;Ljava/lang/String;[Ljava/lang/invoke/MethodHandle;)Ljava/lang/Object;",
+            false
+    );
+    private static final Handle DYNAMIC_OPERATOR_BOOTSTRAP = new Handle(
+            Opcodes.H_INVOKESTATIC,
+            "basalt/lang/DynamicOperators",
+            "bootstrap",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;",
+            false
+    );
+    private static final Handle CONSTANT_BOOTSTRAPS_INVOKE = new Handle(
+            Opcodes.H_INVOKESTATIC,
+            "java/lang/invoke/ConstantBootstraps",
+            "invoke",
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;Ljava/lang/invoke/MethodHandle;[Ljava/lang/Object;)Ljava/lang/Object;",
+            false
+    );
     private static final AnnotationNode NULLABLE_ANNOTATION = new AnnotationNode("Lorg/jetbrains/annotations/Nullable;");
     private static final AnnotationNode NONNULL_ANNOTATION = new AnnotationNode("Lorg/jetbrains/annotations/NotNull;");
 
@@ -61,16 +101,21 @@ public class Compiler {
                     byte.class, short.class, int.class,
                     float.class, long.class, double.class);
 
-    private final Map<String, String> classNameReplacements = new HashMap<>();
+    final Map<String, String> classNameReplacements = new HashMap<>();
     private final Map<String, String> methodNameReplacements = new HashMap<>();
 
-    private static final Map<String, List<BasaltMethod>> extensionMethods = new HashMap<>();
-    private static final Map<String, List<BasaltMethod>> staticExtensionMethods = new HashMap<>();
+    private static final Map<String, List<BasaltMethod>> extensionMethods = new ConcurrentHashMap<>();
+    private static final Map<String, List<BasaltMethod>> staticExtensionMethods = new ConcurrentHashMap<>();
+    // Where the extensions declared by this compilation go, isolated ones keep them to themselves
+    private final Map<String, List<BasaltMethod>> declaredExtensionMethods;
+    private final Map<String, List<BasaltMethod>> declaredStaticExtensionMethods;
 
-    private static final Set<AnnotationNode> annotationsForNextElement = new HashSet<>();
-    private static final Set<TokenType> modifiersForNextElement = new HashSet<>();
+    private final Set<AnnotationNode> annotationsForNextElement;
+    // Compile-time functions whose body is complete, only those can be run while compiling
+    private final Set<MethodNode> compileTimeMethods;
+    private final Set<TokenType> modifiersForNextElement;
 
-    public static Map<String, ClassNode> classes = new HashMap<>();
+    public static Map<String, ClassNode> classes = new ConcurrentHashMap<>();
 
     public String currentClass;
 
@@ -82,6 +127,13 @@ public class Compiler {
     public DelayedInstruction delayedInstruction;
     public int maxLocals = 0;
 
+    private LambdaScope lambdaScope;
+
+    // Locals declared with a nullable type that are known to hold a value at the current point
+    private Set<String> nonNullLocals = new HashSet<>();
+    private Pair<String, AbstractInsnNode> lastLoadedLocal;
+    private NullTest nullTest;
+
     private final EphemeralRunner runner;
 
     public final String fileName;
@@ -91,11 +143,78 @@ public class Compiler {
 
     public record Pair<K, V>(K k, V v) {}
 
+    // Locals that are known to be non-null once the condition turned out true or false
+    private record NullTest(DelayedInstruction condition, Set<String> whenTrue, Set<String> whenFalse) {
+        static NullTest of(String local, boolean nonNull, DelayedInstruction condition) {
+            return nonNull
+                    ? new NullTest(condition, Set.of(local), Set.of())
+                    : new NullTest(condition, Set.of(), Set.of(local));
+        }
+
+        static NullTest combine(DelayedInstruction condition, NullTest left, NullTest right, boolean and) {
+            if (left == null && right == null)
+                return null;
+
+            final NullTest empty = new NullTest(condition, Set.of(), Set.of());
+            left = Objects.requireNonNullElse(left, empty);
+            right = Objects.requireNonNullElse(right, empty);
+
+            // "a and b" is true only if both are, "a or b" is false only if both are
+            final Set<String> union = new HashSet<>(and ? left.whenTrue : left.whenFalse);
+            union.addAll(and ? right.whenTrue : right.whenFalse);
+            final Set<String> intersection = new HashSet<>(and ? left.whenFalse : left.whenTrue);
+            intersection.retainAll(and ? right.whenFalse : right.whenTrue);
+
+            return and ? new NullTest(condition, union, intersection) : new NullTest(condition, intersection, union);
+        }
+    }
+
+    private static final class LambdaScope {
+        private final Compiler enclosing;
+        private final Compiler body;
+        private final LabelNode start;
+
+        // identifier -> (local of the enclosing method, copy inside the lambda)
+        private final Map<String, Pair<Local, Local>> captures = new LinkedHashMap<>();
+
+        private LambdaScope(Compiler enclosing, Compiler body, LabelNode start) {
+            this.enclosing = enclosing;
+            this.body = body;
+            this.start = start;
+        }
+
+        @Nullable
+        private Local capture(String identifier) {
+            // Captured in a block that's been left already, the copy is still the parameter it was bound to
+            final Pair<Local, Local> captured = captures.get(identifier);
+            if (captured != null) {
+                body.locals.put(identifier, captured.v());
+
+                return captured.v();
+            }
+
+            Local outer = enclosing.locals.get(identifier);
+            if (outer == null && enclosing.lambdaScope != null)
+                outer = enclosing.lambdaScope.capture(identifier);
+            if (outer == null)
+                return null;
+
+            final Local local = new Local(outer.type(), body.maxLocals, start);
+            body.maxLocals += outer.type().getSize();
+
+            body.locals.put(identifier, local);
+            captures.put(identifier, new Pair<>(outer, local));
+
+            return local;
+        }
+    }
+
     public record BasaltMethod(String owner, String name, String methodDescriptor) {}
     public record BasaltField(String owner, String name, Type type) {}
 
     private final List<BasaltMethod> inlineMethods = new ArrayList<>();
     private final List<BasaltField> inlineFields = new ArrayList<>();
+    private final List<BasaltField> lazyFields = new ArrayList<>();
 
 
     /**
@@ -133,7 +252,7 @@ public class Compiler {
         rules.put(TokenType.TOKEN_LEFT_BRACK, new ParseRule(Compiler::array, Compiler::subscript, Precedence.PREC_CALL));
         rules.put(TokenType.TOKEN_RIGHT_BRACK, ParseRule.NULL);
         rules.put(TokenType.TOKEN_COMMA, ParseRule.NULL);
-        rules.put(TokenType.TOKEN_FN, ParseRule.NULL);
+        rules.put(TokenType.TOKEN_FN, new ParseRule(Compiler::function, null, Precedence.PREC_NONE));
         rules.put(TokenType.TOKEN_SEMICOLON, ParseRule.NULL);
         rules.put(TokenType.TOKEN_COLON, new ParseRule(null, Compiler::specialDot, Precedence.PREC_CALL));
         rules.put(TokenType.TOKEN_LET, ParseRule.NULL);
@@ -142,9 +261,13 @@ public class Compiler {
         rules.put(TokenType.TOKEN_EOF, ParseRule.NULL);
         rules.put(TokenType.TOKEN_RETURN, ParseRule.NULL);
         rules.put(TokenType.TOKEN_INTO, ParseRule.NULL);
+        rules.put(TokenType.TOKEN_DOT_DOT, ParseRule.NULL);
+        rules.put(TokenType.TOKEN_DOT_DOT_LESS, ParseRule.NULL);
         rules.put(TokenType.TOKEN_CLASS, ParseRule.NULL);
+        rules.put(TokenType.TOKEN_ENUM, ParseRule.NULL);
         rules.put(TokenType.TOKEN_WHILE, ParseRule.NULL);
         rules.put(TokenType.TOKEN_IF, ParseRule.NULL);
+        rules.put(TokenType.TOKEN_WHEN, new ParseRule(Compiler::when_, null, Precedence.PREC_NONE));
         rules.put(TokenType.TOKEN_ELSE, ParseRule.NULL);
         rules.put(TokenType.TOKEN_FOR, ParseRule.NULL);
 
@@ -153,6 +276,7 @@ public class Compiler {
         rules.put(TokenType.TOKEN_FINAL, ParseRule.NULL);
         rules.put(TokenType.TOKEN_MAGIC, ParseRule.NULL);
         rules.put(TokenType.TOKEN_INLINE, ParseRule.NULL);
+        rules.put(TokenType.TOKEN_LAZY, ParseRule.NULL);
         rules.put(TokenType.TOKEN_SETTER, ParseRule.NULL);
         rules.put(TokenType.TOKEN_GETTER, ParseRule.NULL);
 
@@ -197,6 +321,14 @@ public class Compiler {
     }
 
     public Compiler(String filePackage, String fileName, EphemeralRunner runner) {
+        this(filePackage, fileName, runner, false);
+    }
+
+    /**
+     * An isolated compiler sees the extensions of every other compilation, but the ones it declares are only visible to itself.
+     * Compilations of unrelated scripts running side by side can't pick up each other's extensions that way.
+     */
+    public Compiler(String filePackage, String fileName, EphemeralRunner runner, boolean isolated) {
         type = CompilerType.TOP;
         parser = new Parser();
         scanner = new Scanner();
@@ -205,7 +337,12 @@ public class Compiler {
         this.fileName = fileName;
         this.filePackage = filePackage;
 
-        runner.setCompiler(this);
+        annotationsForNextElement = new HashSet<>();
+        modifiersForNextElement = new HashSet<>();
+        compileTimeMethods = new HashSet<>();
+
+        declaredExtensionMethods = isolated ? new HashMap<>() : extensionMethods;
+        declaredStaticExtensionMethods = isolated ? new HashMap<>() : staticExtensionMethods;
     }
 
     private Compiler(CompilerType type, Compiler parent) {
@@ -219,10 +356,20 @@ public class Compiler {
         fileName = parent.fileName;
         filePackage = parent.filePackage;
 
+        annotationsForNextElement = parent.annotationsForNextElement;
+        modifiersForNextElement = parent.modifiersForNextElement;
+        compileTimeMethods = parent.compileTimeMethods;
+        declaredExtensionMethods = parent.declaredExtensionMethods;
+        declaredStaticExtensionMethods = parent.declaredStaticExtensionMethods;
+
         classNameReplacements.putAll(parent.classNameReplacements);
         methodNameReplacements.putAll(parent.classNameReplacements);
         inlineMethods.addAll(parent.inlineMethods);
         inlineFields.addAll(parent.inlineFields);
+        lazyFields.addAll(parent.lazyFields);
+
+        lambdaScope = parent.lambdaScope;
+        nonNullLocals = parent.nonNullLocals;
     }
 
     @Nullable
@@ -270,16 +417,16 @@ public class Compiler {
 
         parser.setPanicMode(true);
 
-        System.err.printf("[file %s] [line %d] Error", fileName, token.line());
-
+        String location = "";
         if (token.type() == TokenType.TOKEN_EOF) {
-            System.err.print(" at end");
+            location = " at end";
         } else if (token.type() != TokenType.TOKEN_ERROR) {
-            System.err.printf(" at \"%s\"", token.content());
+            location = " at \"%s\"".formatted(token.content());
         }
 
-        System.err.printf(" -> %s\n", message);
-        parser.setHadError(true);
+        final Parser.Diagnostic error = new Parser.Diagnostic(fileName, token.line(), location, message);
+        System.err.println(error);
+        parser.addError(error);
     }
 
     public void error(String message) {
@@ -400,7 +547,10 @@ public class Compiler {
     public void emitDelayed(DelayedInstruction delayedInstruction) {
         emitDelayedConstant();
         this.delayedInstruction = delayedInstruction;
-        delayedInstruction.applyStackChanges(this);
+
+        for (int i = 0; i < delayedInstruction.operands(); i++)
+            notifyPopStack();
+        notifyPushStack(StackTypes.BOOLEAN);
     }
 
     public void emitDelayedConstant() {
@@ -411,25 +561,32 @@ public class Compiler {
     }
 
     public void emitIfEq(LabelNode labelNode) {
-        DelayedInstruction delayedInstruction = this.delayedInstruction;
-        this.delayedInstruction = null;
-        if (delayedInstruction != null) {
-            delayedInstruction.invert().emitJump(this, labelNode);
-        } else {
-            emit(new JumpInsnNode(Opcodes.IFEQ, labelNode));
-        }
-        notifyPopStack();
+        takeCondition().invert().emitJump(this, labelNode);
     }
 
     public void emitIfNe(LabelNode labelNode) {
-        DelayedInstruction delayedInstruction = this.delayedInstruction;
+        takeCondition().emitJump(this, labelNode);
+    }
+
+    /**
+     * Takes the boolean on top of the stack as a condition that hasn't been emitted yet.
+     */
+    private DelayedInstruction takeCondition() {
+        final DelayedInstruction delayedInstruction = this.delayedInstruction;
         this.delayedInstruction = null;
-        if (delayedInstruction != null) {
-            delayedInstruction.emitJump(this, labelNode);
-        } else {
-            emit(new JumpInsnNode(Opcodes.IFNE, labelNode));
-        }
         notifyPopStack();
+
+        return delayedInstruction == null ? DelayedInstruction.value() : delayedInstruction;
+    }
+
+    private void negateCondition() {
+        final NullTest test = takeNullTest();
+
+        delayedInstruction = takeCondition().invert();
+        notifyPushStack(StackTypes.BOOLEAN);
+
+        if (test != null)
+            nullTest = new NullTest(delayedInstruction, test.whenFalse, test.whenTrue);
     }
 
     public void expression() {
@@ -452,6 +609,9 @@ public class Compiler {
         prefixRule.accept(this, canAssign);
 
         while (precedence.ordinal() <= getRule(parser.getCurrent().type()).precedence().ordinal()) {
+            if (startsNegativeCase())
+                break;
+
             advance();
             getRule(parser.getPrevious().type()).infixRule().accept(this, canAssign);
         }
@@ -460,6 +620,31 @@ public class Compiler {
             error("Invalid assignment target");
     }
 
+    /**
+     * A minus followed by numbers and "->" can't continue an expression, it starts the next case of a when,
+     * e.g. the "-5" in "1 -> 10 -5 -> 20".
+     */
+    private boolean startsNegativeCase() {
+        if (!check(TokenType.TOKEN_MINUS))
+            return false;
+
+        final Scanner lookahead = scanner.copy();
+        Token token = lookahead.scanToken();
+        while (token.type() == TokenType.TOKEN_NUMBER) {
+            token = lookahead.scanToken();
+            if (token.type() == TokenType.TOKEN_INTO)
+                return true;
+            if (token.type() != TokenType.TOKEN_COMMA)
+                return false;
+
+            token = lookahead.scanToken();
+            if (token.type() == TokenType.TOKEN_MINUS)
+                token = lookahead.scanToken();
+        }
+
+        return false;
+    }
+
     public ParseRule getRule(TokenType type) {
         ParseRule rule = rules.get(type);
 
@@ -506,10 +691,34 @@ public class Compiler {
     public void binary(boolean canAssign) {
         TokenType op = parser.getPrevious().type();
         ParseRule rule = getRule(op);
+
+        final AbstractInsnNode left = lastInstruction();
+        final String testedLocal = lastLoadedLocal != null && lastLoadedLocal.v() == left ? lastLoadedLocal.k() : null;
+
         parsePrecedence(Precedence.values()[rule.precedence().ordinal() + 1]);
 
         Type previousLastStack = peekPreviousLastStack();
         Type lastStack = peekLastStack();
+
+        if ((op == TokenType.TOKEN_EQUAL_EQUAL || op == TokenType.TOKEN_BANG_EQUAL)
+                && previousLastStack != null && isReference(previousLastStack)
+                && lastInstruction() != null && lastInstruction().getOpcode() == Opcodes.ACONST_NULL && lastInstruction().getPrevious() == left) {
+            getCurrentMethod(true).instructions.remove(lastInstruction());
+            notifyPopStack();
+
+            emitDelayed(DelayedInstruction.isNull(op == TokenType.TOKEN_EQUAL_EQUAL));
+            if (testedLocal != null)
+                nullTest = NullTest.of(testedLocal, op == TokenType.TOKEN_BANG_EQUAL, delayedInstruction);
+
+            return;
+        }
+
+        if (StackTypes.OBJECT_TYPE.equals(previousLastStack)) {
+            dynamicOperator(op);
+
+            return;
+        }
+
         switch (op) { // We allow doing addition of integer with objects for initial version.
             case TOKEN_BANG_EQUAL, TOKEN_EQUAL_EQUAL,
                     TOKEN_PLUS, TOKEN_MINUS, TOKEN_STAR, TOKEN_SLASH,
@@ -537,128 +746,86 @@ public class Compiler {
             error("Unable to compute last stack");
 
         switch (op) {
-            case TOKEN_BANG_EQUAL -> {
-                if (StackTypes.isTypeStackDouble(previousLastStack))
-                    emitDelayed(DelayedInstruction.D_NOT_EQUAL);
-                else if (StackTypes.isTypeStackFloat(previousLastStack))
-                    emitDelayed(DelayedInstruction.F_NOT_EQUAL);
-                else if (StackTypes.isTypeStackInt(previousLastStack) || StackTypes.isTypeStackLong(previousLastStack))
-                    emitDelayed(DelayedInstruction.NUM_NOT_EQUAL);
-                else {
-                    try {
-                        callObject("eq", previousLastStack, typeToClass(lastStack));
-
-                    } catch (ClassNotFoundException | NoSuchMethodException e) {
-                        emitDelayed(DelayedInstruction.OBJECT_NOT_EQUAL);
-                    }
-                }
-            }
-            case TOKEN_EQUAL_EQUAL -> {
-                if (StackTypes.isTypeStackDouble(previousLastStack))
-                    emitDelayed(DelayedInstruction.D_EQUAL);
-                else if (StackTypes.isTypeStackFloat(previousLastStack))
-                    emitDelayed(DelayedInstruction.F_EQUAL);
-                else if (StackTypes.isTypeStackInt(previousLastStack) || StackTypes.isTypeStackLong(previousLastStack))
-                    emitDelayed(DelayedInstruction.NUM_EQUAL);
+            case TOKEN_BANG_EQUAL, TOKEN_EQUAL_EQUAL -> {
+                final boolean equal = op == TokenType.TOKEN_EQUAL_EQUAL;
+                if (!StackTypes.isTypeStackObject(previousLastStack))
+                    emitDelayed(DelayedInstruction.compare(equal ? Comparison.EQUAL : Comparison.NOT_EQUAL, previousLastStack));
                 else {
                     try {
                         callObject("eq", previousLastStack, typeToClass(lastStack));
                     } catch (ClassNotFoundException | NoSuchMethodException e) {
                         emit(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/Object", "equals", "(Ljava/lang/Object;)Z"));
+                        notifyPopStack();
                         notifyReplaceLastStack(Type.BOOLEAN_TYPE);
                     }
+
+                    if (!equal)
+                        negateCondition();
                 }
             }
-            case TOKEN_GREATER -> {
-                if (StackTypes.isTypeStackDouble(previousLastStack))
-                    emitDelayed(DelayedInstruction.D_GREATER);
-                else if (StackTypes.isTypeStackFloat(previousLastStack))
-                    emitDelayed(DelayedInstruction.F_GREATER);
-                else if (StackTypes.isTypeStackInt(previousLastStack) || StackTypes.isTypeStackLong(previousLastStack))
-                    emitDelayed(DelayedInstruction.NUM_GREATER);
-                else if (StackTypes.isTypeStackPureObject(previousLastStack))
-                    try {
-                        callObject("gt", previousLastStack, typeToClass(lastStack));
-                    } catch (ClassNotFoundException | NoSuchMethodException e) {
-                        errorAtCurrent("Can't apply operator GREATER to " + previousLastStack.getInternalName());
-                    }
-            }
-            case TOKEN_GREATER_EQUAL -> {
-                if (StackTypes.isTypeStackDouble(previousLastStack))
-                    emitDelayed(DelayedInstruction.D_GREATER_EQUAL);
-                else if (StackTypes.isTypeStackFloat(previousLastStack))
-                    emitDelayed(DelayedInstruction.F_GREATER_EQUAL);
-                else if (StackTypes.isTypeStackInt(previousLastStack) || StackTypes.isTypeStackLong(previousLastStack))
-                    emitDelayed(DelayedInstruction.NUM_GREATER_EQUAL);
-                else if (StackTypes.isTypeStackPureObject(previousLastStack))
-                    try {
-                        callObject("ge", previousLastStack, typeToClass(lastStack));
-                    } catch (ClassNotFoundException | NoSuchMethodException e) {
-                        errorAtCurrent("Can't apply operator GREATER_EQUAL to " + previousLastStack.getInternalName());
-                    }
-            }
-            case TOKEN_LESS -> {
-                if (StackTypes.isTypeStackDouble(previousLastStack))
-                    emitDelayed(DelayedInstruction.D_LESS);
-                else if (StackTypes.isTypeStackFloat(previousLastStack))
-                    emitDelayed(DelayedInstruction.F_LESS);
-                else if (StackTypes.isTypeStackInt(previousLastStack) || StackTypes.isTypeStackLong(previousLastStack))
-                    emitDelayed(DelayedInstruction.NUM_LESS);
+            // The scanner names "<" TOKEN_GREATER and ">" TOKEN_LESS
+            case TOKEN_GREATER, TOKEN_GREATER_EQUAL, TOKEN_LESS, TOKEN_LESS_EQUAL -> {
+                final Comparison comparison = switch (op) {
+                    case TOKEN_GREATER -> Comparison.LESS;
+                    case TOKEN_GREATER_EQUAL -> Comparison.LESS_EQUAL;
+                    case TOKEN_LESS -> Comparison.GREATER;
+                    default -> Comparison.GREATER_EQUAL;
+                };
+
+                if (StackTypes.isTypeStackNumber(previousLastStack))
+                    emitDelayed(DelayedInstruction.compare(comparison, previousLastStack));
                 else if (StackTypes.isTypeStackPureObject(previousLastStack))
                     try {
-                        callObject("lt", previousLastStack, typeToClass(lastStack));
+                        callObject(switch (comparison) {
+                            case LESS -> "lt";
+                            case LESS_EQUAL -> "le";
+                            case GREATER -> "gt";
+                            default -> "ge";
+                        }, previousLastStack, typeToClass(lastStack));
                     } catch (ClassNotFoundException | NoSuchMethodException e) {
-                        errorAtCurrent("Can't apply operator LESS to " + previousLastStack.getInternalName());
-                    }
-            }
-            case TOKEN_LESS_EQUAL -> {
-                if (StackTypes.isTypeStackDouble(previousLastStack))
-                    emitDelayed(DelayedInstruction.D_LESS_EQUAL);
-                else if (StackTypes.isTypeStackFloat(previousLastStack))
-                    emitDelayed(DelayedInstruction.F_LESS_EQUAL);
-                else if (StackTypes.isTypeStackInt(previousLastStack) || StackTypes.isTypeStackLong(previousLastStack))
-                    emitDelayed(DelayedInstruction.NUM_LESS_EQUAL);
-                else if (StackTypes.isTypeStackPureObject(previousLastStack))
-                    try {
-                        callObject("le", previousLastStack, typeToClass(lastStack));
-                    } catch (ClassNotFoundException | NoSuchMethodException e) {
-                        errorAtCurrent("Can't apply operator LESS_EQUAL to " + previousLastStack.getInternalName());
+                        errorAtCurrent("Can't apply operator " + comparison + " to " + previousLastStack.getInternalName());
                     }
+                else errorAtCurrent("Can't apply operator " + comparison + " to " + previousLastStack.getClassName());
             }
 
             case TOKEN_PLUS -> {
-                if (StackTypes.isTypeStackString(previousLastStack))
+                if (StackTypes.isTypeStackString(previousLastStack)) {
                     emit(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/String", "concat", "(Ljava/lang/String;)Ljava/lang/String;"));
-                else if (!StackTypes.isTypeStackPureObject(previousLastStack))
+                    notifyPopStack();
+                } else if (!StackTypes.isTypeStackPureObject(previousLastStack)) {
                     emit(new InsnNode(previousLastStack.getOpcode(Opcodes.IADD)));
-                else try {
+                    notifyPopStack();
+                } else try {
                     callObject("add", previousLastStack, typeToClass(lastStack));
                 } catch (ClassNotFoundException | NoSuchMethodException e) {
                         errorAtCurrent("Can't apply operator ADD to " + previousLastStack.getInternalName());
                 }
             }
             case TOKEN_MINUS -> {
-                if (!StackTypes.isTypeStackPureObject(previousLastStack))
+                if (!StackTypes.isTypeStackPureObject(previousLastStack)) {
                     emit(new InsnNode(previousLastStack.getOpcode(Opcodes.ISUB)));
-                else try {
+                    notifyPopStack();
+                } else try {
                     callObject("subtract", previousLastStack, typeToClass(lastStack));
                 } catch (ClassNotFoundException | NoSuchMethodException e) {
                     errorAtCurrent("Can't apply operator SUBTRACT to " + previousLastStack.getInternalName());
                 }
             }
             case TOKEN_STAR -> {
-                if (!StackTypes.isTypeStackPureObject(previousLastStack))
+                if (!StackTypes.isTypeStackPureObject(previousLastStack)) {
                     emit(new InsnNode(previousLastStack.getOpcode(Opcodes.IMUL)));
-                else try {
+                    notifyPopStack();
+                } else try {
                     callObject("multiply", previousLastStack, typeToClass(lastStack));
                 } catch (ClassNotFoundException | NoSuchMethodException e) {
                     errorAtCurrent("Can't apply operator MULTIPLY to " + previousLastStack.getInternalName());
                 }
             }
             case TOKEN_SLASH ->  {
-                if (!StackTypes.isTypeStackPureObject(previousLastStack))
+                if (!StackTypes.isTypeStackPureObject(previousLastStack)) {
                     emit(new InsnNode(previousLastStack.getOpcode(Opcodes.IDIV)));
-                else try {
+                    notifyPopStack();
+                } else try {
                     callObject("divide", previousLastStack, typeToClass(lastStack));
                 } catch (ClassNotFoundException | NoSuchMethodException e) {
                     errorAtCurrent("Can't apply operator DIVIDE to " + previousLastStack.getInternalName());
@@ -668,6 +835,40 @@ public class Compiler {
         }
     }
 
+    /**
+     * Operators on values only known as Object are dispatched at runtime through an inline cache.
+     */
+    private void dynamicOperator(TokenType op) {
+        final String operator = switch (op) {
+            case TOKEN_EQUAL_EQUAL -> "eq";
+            case TOKEN_BANG_EQUAL -> "ne";
+            case TOKEN_GREATER -> "lt";
+            case TOKEN_GREATER_EQUAL -> "le";
+            case TOKEN_LESS -> "gt";
+            case TOKEN_LESS_EQUAL -> "ge";
+            case TOKEN_PLUS -> "add";
+            case TOKEN_MINUS -> "subtract";
+            case TOKEN_STAR -> "multiply";
+            case TOKEN_SLASH -> "divide";
+            default -> throw op.makeInvalidTokenException(this, "Cannot use %s token with objects!");
+        };
+
+        emitDelayedConstant();
+        convertLastStackToObject();
+
+        final Type returnType = switch (operator) {
+            case "add", "subtract", "multiply", "divide" -> StackTypes.OBJECT_TYPE;
+            default -> StackTypes.BOOLEAN;
+        };
+
+        emit(new InvokeDynamicInsnNode(operator,
+                Type.getMethodDescriptor(returnType, StackTypes.OBJECT_TYPE, StackTypes.OBJECT_TYPE),
+                DYNAMIC_OPERATOR_BOOTSTRAP));
+
+        notifyPopStack();
+        notifyReplaceLastStack(returnType);
+    }
+
     public void literal(boolean canAssign) {
         switch (parser.getPrevious().type()) {
             case TOKEN_FALSE -> emitBoolean(false);
@@ -687,7 +888,15 @@ public class Compiler {
         parsePrecedence(Precedence.PREC_UNARY);
 
         switch (op) {
-            case TOKEN_BANG -> emit(new InsnNode(Opcodes.IFNE));
+            case TOKEN_BANG -> {
+                if (!StackTypes.isTypeStackBoolean(peekLastStack())) {
+                    error("Last stack isn't a boolean!");
+
+                    return;
+                }
+
+                negateCondition();
+            }
             case TOKEN_MINUS -> emit(new InsnNode(Opcodes.INEG));
         }
     }
@@ -788,6 +997,63 @@ public class Compiler {
         return types;
     }
 
+    /**
+     * An argument parsed by {@link #arguments()}, its type is on the stack.
+     */
+    private record Argument(AbstractInsnNode end) {}
+
+    /**
+     * Parses the arguments like {@link #argumentList()}, but remembers where each of them ends,
+     * so that they can still be converted once the parameter types are known.
+     */
+    private List<Argument> arguments() {
+        final List<Argument> arguments = new ArrayList<>();
+        if (!check(TokenType.TOKEN_RIGHT_PAREN)) {
+            do {
+                expression();
+                emitDelayedConstant();
+
+                arguments.add(new Argument(getCurrentMethod(true).instructions.getLast()));
+            } while (match(TokenType.TOKEN_COMMA));
+        }
+
+        consume(TokenType.TOKEN_RIGHT_PAREN, "Expect \")\" after arguments");
+
+        return arguments;
+    }
+
+    /**
+     * Converts the arguments to the last of the parameter types and pops them off the stack.
+     * Only the last argument is on top of the stack, so every other conversion is moved right behind its argument.
+     */
+    private void convertArguments(List<Argument> arguments, Type[] parameters) {
+        final InsnList instructions = getCurrentMethod(true).instructions;
+        final int offset = parameters.length - arguments.size();
+        final int base = instanceStack.size() - arguments.size();
+
+        for (int i = 0; i < arguments.size() && base >= 0; i++) {
+            final AbstractInsnNode last = instructions.getLast();
+
+            notifyPushStack(instanceStack.get(base + i));
+            convertLastStackForType(parameters[offset + i]);
+            instanceStack.set(base + i, notifyPopStack());
+
+            AbstractInsnNode position = arguments.get(i).end();
+            for (AbstractInsnNode insn = last.getNext(); insn != null && position != last; ) {
+                final AbstractInsnNode next = insn.getNext();
+
+                instructions.remove(insn);
+                instructions.insert(position, insn);
+
+                position = insn;
+                insn = next;
+            }
+        }
+
+        for (int i = 0; i < arguments.size(); i++)
+            notifyPopStack();
+    }
+
     public Pair<Integer, Map<String, Object>> keyedArgumentList() {
         final Map<String, Object> types = new LinkedHashMap<>();
         if (!check(TokenType.TOKEN_RIGHT_PAREN)) {
@@ -954,14 +1220,84 @@ public class Compiler {
         }
     }
 
+    public void subscriptOperator(boolean canAssign, Type objectType, Class<?> clazz) {
+        final Method get = findOperator(clazz, OperatorType.SUBSCRIPT);
+        final Method set = findOperator(clazz, OperatorType.SUBSCRIPT_ASSIGN);
+        final Method addTo = findOperator(clazz, OperatorType.ADD_ASSIGN);
+
+        final Method method;
+        if (canAssign && set != null && match(TokenType.TOKEN_EQUAL))
+            method = set;
+        else if (canAssign && addTo != null && match(TokenType.TOKEN_PLUS_EQUAL))
+            method = addTo;
+        else method = get;
+
+        convertLastStackForType(Type.getType(method.getParameterTypes()[0]));
+
+        if (method != get) {
+            expression();
+            convertLastStackForType(Type.getType(method.getParameterTypes()[1]));
+        }
+
+        emit(new MethodInsnNode(Opcodes.INVOKEVIRTUAL,
+                objectType.getInternalName(), method.getName(), Type.getMethodDescriptor(method)));
+
+        if (method != get) {
+            final Type returnType = Type.getType(method.getReturnType());
+            if (returnType.getSort() != Type.VOID)
+                emit(new InsnNode(returnType.getSize() == 2 ? Opcodes.POP2 : Opcodes.POP));
+
+            notifyPopStack();
+            notifyPopStack();
+            notifyPopStack();
+
+            return;
+        }
+
+        final Type returnType = Type.getType(get.getReturnType());
+        final Type elementType = elementType(objectType, returnType);
+        if (!elementType.equals(returnType))
+            emit(new TypeInsnNode(Opcodes.CHECKCAST, elementType.getInternalName()));
+
+        notifyPopStack();
+        notifyReplaceLastStack(elementType);
+    }
+
+    /**
+     * Finds the method implementing an operator of the primitive collections in basalt.lang,
+     * these are called directly so that neither keys nor values have to be boxed.
+     */
+    public static Method findOperator(Class<?> clazz, OperatorType type) {
+        if (clazz == null)
+            return null;
+
+        for (Method method : clazz.getMethods()) {
+            final Operator operator = method.getAnnotation(Operator.class);
+            if (operator != null && operator.type() == type)
+                return method;
+        }
+
+        return null;
+    }
+
+    private static Type elementType(Type objectType, Type erasedType) {
+        final String sig = objectType.signature;
+        if (!erasedType.equals(StackTypes.OBJECT_TYPE) || sig == null || !sig.contains("<"))
+            return erasedType;
+
+        return Type.getType(sig.substring(sig.indexOf("<") + 1, sig.lastIndexOf(">")));
+    }
+
     public void subscript(boolean canAssign) {
         boolean isArray = peekLastStack().getSort() == Type.ARRAY;
         boolean isMap;
 
         Type lastStack = peekLastStack();
 
+        final Class<?> clazz;
         try {
-            isMap = Map.class.isAssignableFrom(Class.forName(peekLastStack().getInternalName().replace("/", "."), true, runner));
+            clazz = Class.forName(peekLastStack().getInternalName().replace("/", "."), true, runner);
+            isMap = Map.class.isAssignableFrom(clazz);
         } catch (ClassNotFoundException e) {
             throw new RuntimeException(e);
         }
@@ -971,6 +1307,8 @@ public class Compiler {
 
         if (isArray)
             subscriptArray(canAssign);
+        else if (findOperator(clazz, OperatorType.SUBSCRIPT) != null)
+            subscriptOperator(canAssign, lastStack, clazz);
         else if (isMap)
             subscriptMap(canAssign);
         else if (lastStack.getSort() == Type.OBJECT)
@@ -1007,8 +1345,10 @@ public class Compiler {
             opcode = opcode == -1 ? Opcodes.INVOKESTATIC : opcode;
         else emit(new VarInsnNode(Opcodes.ALOAD, 0));
 
-        final List<Type> args = argumentList();
+        final AbstractInsnNode beforeArguments = getCurrentMethod(true).instructions.getLast();
+        final List<Argument> args = arguments();
 
+        MethodNode target = null;
         String descriptor = null;
         int arity = args.size();
         if (call.extension)
@@ -1023,11 +1363,9 @@ public class Compiler {
                 if (arity != methodArgs.length)
                     continue;
 
-                for (int i = 0; i < args.size(); i++) {
-                    convertLastStackForType(methodArgs[i]);
-                    notifyPopStack();
-                }
+                convertArguments(args, methodArgs);
 
+                target = method;
                 descriptor = method.desc;
                 if (opcode == -1) {
                     if (Modifier.isStatic(method.access))
@@ -1037,8 +1375,35 @@ public class Compiler {
 
                 break;
             }
-        else {
-            Class<?> clazz = Class.forName(call.owner.replace("/", "."), true, runner);
+
+        // Methods declared further down or in another Basalt source are known from their header,
+        // which keeps the owner from being compiled just to look up a signature.
+        // Inherited ones are looked up along the headers of the superclasses, up to the first class that isn't Basalt,
+        // loading a Basalt owner would compile it and it may well be importing this very source.
+        final ClassHeader header = descriptor == null ? runner.findHeader(call.owner) : null;
+        ClassHeader.Method headerMethod = null;
+        String reflectedOwner = call.owner;
+        final Set<String> visitedHeaders = new HashSet<>();
+        for (ClassHeader superHeader = header; superHeader != null && headerMethod == null && visitedHeaders.add(superHeader.name());
+             superHeader = runner.findHeader(reflectedOwner)) {
+            headerMethod = superHeader.findMethod(call.name, arity).orElse(null);
+            if (headerMethod == null)
+                reflectedOwner = superHeader.superName();
+        }
+
+        if (headerMethod != null) {
+            convertArguments(args, Type.getArgumentTypes(headerMethod.descriptor()));
+
+            descriptor = headerMethod.descriptor();
+            if (opcode == -1) {
+                if (Modifier.isStatic(headerMethod.access()))
+                    opcode = Opcodes.INVOKESTATIC;
+                else opcode = header.isInterface() ? Opcodes.INVOKEINTERFACE : Opcodes.INVOKEVIRTUAL;
+            } else if (opcode == Opcodes.INVOKEVIRTUAL && header.isInterface())
+                opcode = Opcodes.INVOKEINTERFACE;
+        } else if (descriptor == null && !reflectedOwner.equals(getCurrentClass().name)) {
+            Class<?> clazz = Class.forName(reflectedOwner.replace("/", "."), true, runner);
+            final boolean isInterface = header == null ? clazz.isInterface() : header.isInterface();
 
             for (Method method : clazz.getDeclaredMethods()){
                 if (!method.getName().equals(call.name) && !methodNameReplacements.containsValue(call.name))
@@ -1046,17 +1411,14 @@ public class Compiler {
                 if (arity != method.getParameterCount())
                     continue;
 
-                for (int i = 0; i < args.size(); i++) {
-                    convertLastStackForType(Type.getType(method.getParameterTypes()[i]));
-                    notifyPopStack();
-                }
+                convertArguments(args, Type.getArgumentTypes(method));
 
                 descriptor = Type.getMethodDescriptor(method);
                 if (opcode == -1) {
                     if (Modifier.isStatic(method.getModifiers()))
                         opcode = Opcodes.INVOKESTATIC;
-                    else opcode = clazz.isInterface() ? Opcodes.INVOKEINTERFACE : Opcodes.INVOKEVIRTUAL;
-                } else if (opcode == Opcodes.INVOKEVIRTUAL && clazz.isInterface())
+                    else opcode = isInterface ? Opcodes.INVOKEINTERFACE : Opcodes.INVOKEVIRTUAL;
+                } else if (opcode == Opcodes.INVOKEVIRTUAL && isInterface)
                     opcode = Opcodes.INVOKEINTERFACE;
 
                 break;
@@ -1071,13 +1433,45 @@ public class Compiler {
 
         final Type returnType = Type.getReturnType(descriptor);
 
+        if (target != null && compileTimeMethods.contains(target) && evaluateAtCompileTime(target, beforeArguments)) {
+            notifyPushStack(returnType);
+
+            return;
+        }
+
         emit(new MethodInsnNode(opcode, call.owner, call.name, descriptor));
 
         notifyPushStack(returnType);
     }
 
+    /**
+     * Replaces the arguments emitted after the given instruction with the result of the call, if they're all constant.
+     */
+    private boolean evaluateAtCompileTime(MethodNode target, AbstractInsnNode beforeArguments) {
+        emitDelayedConstant();
+
+        final InsnList instructions = getCurrentMethod(true).instructions;
+        final InsnList result;
+        try {
+            result = CompileTimeEvaluator.evaluate(getCurrentClass(), target, instructions, beforeArguments, compileTimeMethods);
+        } catch (IllegalStateException e) {
+            error("Evaluating \"" + target.name + "\" at compile time " + e.getMessage() + "!");
+
+            return false;
+        }
+
+        if (result == null)
+            return false;
+
+        while (instructions.getLast() != beforeArguments)
+            instructions.remove(instructions.getLast());
+        emit(result);
+
+        return true;
+    }
+
     public void callInlineMethod(String identifier) {
-        final List<Type> args = argumentList();
+        final List<Argument> args = arguments();
 
         final List<BasaltMethod> clone = new ArrayList<>(inlineMethods);
         Collections.reverse(clone);
@@ -1087,10 +1481,7 @@ public class Compiler {
                         && Type.getArgumentTypes(x.methodDescriptor).length == args.size()
         ).findFirst().orElseThrow();
 
-        for (int i = 0; i < args.size(); i++) {
-            convertLastStackForType(Type.getArgumentTypes(method.methodDescriptor)[i]);
-            notifyPopStack();
-        }
+        convertArguments(args, Type.getArgumentTypes(method.methodDescriptor));
 
         final Type returnType = Type.getReturnType(method.methodDescriptor);
 
@@ -1147,43 +1538,112 @@ public class Compiler {
             return;
         }
 
-        consume(TokenType.TOKEN_IDENTIFIER, "Expect property name!");
-        final String afterDot = parser.getPrevious().content();
+        // The whole chain shares one null exit, later links only test what can still be null
+        final LabelNode nullExit = new LabelNode();
+        final LabelNode end = new LabelNode();
 
-        LabelNode l2 = new LabelNode();
-        LabelNode l3 = new LabelNode();
+        boolean assign = qDotLink(canAssign, nullExit);
+        while (!assign && (check(TokenType.TOKEN_QDOT) || check(TokenType.TOKEN_DOT))) {
+            if (match(TokenType.TOKEN_QDOT))
+                assign = qDotLink(canAssign, nullExit);
+            else {
+                advance();
+                assign = qDotLink(canAssign, null);
+            }
+        }
 
-        emit(new InsnNode(Opcodes.DUP));
-        emit(new JumpInsnNode(Opcodes.IFNULL, l2));
+        if (!assign) {
+            convertLastStackToObject();
+            notifyReplaceLastStack(withNullability(peekLastStack(), true));
+        }
+
+        emit(new JumpInsnNode(Opcodes.GOTO, end));
+        emit(nullExit, new InsnNode(Opcodes.POP),
+                new InsnNode(Opcodes.ACONST_NULL));
+        emit(end);
+    }
+
+    private boolean qDotLink(boolean canAssign, LabelNode nullExit) {
+        if (nullExit != null && peekLastStack().nullable) {
+            emit(new InsnNode(Opcodes.DUP));
+            emit(new JumpInsnNode(Opcodes.IFNULL, nullExit));
+            notifyReplaceLastStack(withNullability(peekLastStack(), false));
+        }
+
+        consume(TokenType.TOKEN_IDENTIFIER, "Expect property name!");
+        final String afterDot = parser.getPrevious().content();
 
-        boolean assign = canAssign && match(TokenType.TOKEN_EQUAL);
-        if (assign)
+        if (canAssign && match(TokenType.TOKEN_EQUAL)) {
             dotAssign(afterDot);
-        else dotGet(afterDot);
 
-        if (!callStack.isEmpty())
+            return true;
+        }
+
+        dotGet(afterDot);
+        if (!callStack.isEmpty() && match(TokenType.TOKEN_LEFT_PAREN))
             call(false);
-        if (!assign) convertLastStackToObject();
 
-        emit(new JumpInsnNode(Opcodes.GOTO, l3));
-        emit(l2, new InsnNode(Opcodes.POP),
-                new InsnNode(Opcodes.ACONST_NULL));
-        emit(l3);
+        return false;
     }
 
-    private void dotAssign(String afterDot) {
-        expression();
+    private static Type withNullability(Type type, boolean nullable) {
+        if (type.nullable == nullable || (type.getSort() != Type.OBJECT && type.getSort() != Type.ARRAY))
+            return type;
 
-        if (peekLastTypeStack() != null) try {
-            final Type fieldType = findFieldType(peekLastTypeStack(), afterDot);
+        final Type copy = Type.getType(type.getDescriptor());
+        copy.nullable = nullable;
+        copy.signature = type.signature;
 
-            emit(new FieldInsnNode(Opcodes.PUTSTATIC, notifyPopTypeStack().getInternalName(), afterDot, fieldType.getDescriptor()));
-        } catch (ClassNotFoundException | NoSuchFieldException e) {
-            Optional<Method> method = Arrays.stream(typeToClass(peekLastTypeStack()).getMethods())
-                    .filter(x -> Modifier.isStatic(x.getModifiers())
-                            && x.getName().equals(afterDot)
-                            && x.getParameterCount() == 1
-                            && x.getAnnotation(Property.class) != null
+        return copy;
+    }
+
+    private AbstractInsnNode lastInstruction() {
+        return getCurrentMethod(true).instructions.getLast();
+    }
+
+    private boolean endsAbruptly() {
+        AbstractInsnNode node = lastInstruction();
+        while (node != null && node.getOpcode() == -1)
+            node = node.getPrevious();
+
+        return node != null && (node.getOpcode() == Opcodes.ATHROW
+                || (node.getOpcode() >= Opcodes.IRETURN && node.getOpcode() <= Opcodes.RETURN));
+    }
+
+    // Only valid right after the condition was parsed, while its jump is still delayed
+    private NullTest takeNullTest() {
+        final NullTest test = nullTest;
+        nullTest = null;
+
+        if (test == null || delayedInstruction == null || test.condition != delayedInstruction)
+            return null;
+
+        return test;
+    }
+
+    private void narrow(NullTest test, boolean outcome) {
+        if (test != null)
+            nonNullLocals.addAll(outcome ? test.whenTrue : test.whenFalse);
+    }
+
+    private void restoreNonNullLocals(Set<String> facts) {
+        nonNullLocals.clear();
+        nonNullLocals.addAll(facts);
+    }
+
+    private void dotAssign(String afterDot) {
+        expression();
+
+        if (peekLastTypeStack() != null) try {
+            final Type fieldType = findFieldType(peekLastTypeStack(), afterDot);
+
+            emit(new FieldInsnNode(Opcodes.PUTSTATIC, notifyPopTypeStack().getInternalName(), afterDot, fieldType.getDescriptor()));
+        } catch (ClassNotFoundException | NoSuchFieldException e) {
+            Optional<Method> method = Arrays.stream(typeToClass(peekLastTypeStack()).getMethods())
+                    .filter(x -> Modifier.isStatic(x.getModifiers())
+                            && x.getName().equals(afterDot)
+                            && x.getParameterCount() == 1
+                            && x.getAnnotation(Property.class) != null
                             && x.getAnnotation(Property.class).type() == PropertyType.SET).findAny();
 
             if (method.isPresent()) {
@@ -1220,7 +1680,14 @@ public class Compiler {
 
     private void dotGet(String afterDot) {
         if (!check(TokenType.TOKEN_LEFT_PAREN)) {
-            if (peekLastTypeStack() != null) try {
+            final Optional<BasaltField> lazyField = peekLastTypeStack() == null
+                    ? Optional.empty()
+                    : findLazyField(peekLastTypeStack().getInternalName(), afterDot);
+
+            if (lazyField.isPresent()) {
+                notifyPopTypeStack();
+                emitLazyLoad(lazyField.get());
+            } else if (peekLastTypeStack() != null) try {
                 final Type fieldType = findFieldType(peekLastTypeStack(), afterDot);
 
                 emit(new FieldInsnNode(Opcodes.GETSTATIC, notifyPopTypeStack().getInternalName(), afterDot, fieldType.getDescriptor()));
@@ -1264,9 +1731,9 @@ public class Compiler {
         }
 
         if (peekLastTypeStack() != null) {
-            if (staticExtensionMethods.containsKey(peekLastTypeStack().getInternalName())) {
-                BasaltMethod method = staticExtensionMethods.get(peekLastTypeStack().getInternalName())
-                        .stream()
+            final List<BasaltMethod> extensions = findExtensionMethods(staticExtensionMethods, declaredStaticExtensionMethods, peekLastTypeStack());
+            if (extensions != null) {
+                BasaltMethod method = extensions.stream()
                         .filter(x -> x.name.equals(afterDot)).findAny().orElseGet(() -> {
                             notifyPushCallStack(new MethodCall(Opcodes.INVOKESTATIC, peekLastTypeStack().getInternalName(), afterDot, false));
 
@@ -1281,9 +1748,9 @@ public class Compiler {
                 notifyPushCallStack(new MethodCall(Opcodes.INVOKESTATIC, method.owner, method.name, false));
             } else notifyPushCallStack(new MethodCall(Opcodes.INVOKESTATIC, notifyPopTypeStack().getInternalName(), afterDot, false));
         } else {
-            if (extensionMethods.containsKey(peekLastStack().getInternalName())) {
-                BasaltMethod method = extensionMethods.get(peekLastStack().getInternalName())
-                        .stream()
+            final List<BasaltMethod> extensions = findExtensionMethods(extensionMethods, declaredExtensionMethods, peekLastStack());
+            if (extensions != null) {
+                BasaltMethod method = extensions.stream()
                         .filter(x -> x.name.equals(afterDot)).findAny().orElseGet(() -> {
                             notifyPushCallStack(new MethodCall(Opcodes.INVOKEVIRTUAL, peekLastStack().getInternalName(), afterDot, false));
 
@@ -1300,6 +1767,22 @@ public class Compiler {
         }
     }
 
+    // The extensions of a type this compilation can call, its own ones first
+    private List<BasaltMethod> findExtensionMethods(Map<String, List<BasaltMethod>> shared, Map<String, List<BasaltMethod>> declared, Type type) {
+        final List<BasaltMethod> sharedMethods = shared.get(type.getInternalName());
+        if (declared == shared)
+            return sharedMethods;
+
+        final List<BasaltMethod> declaredMethods = declared.get(type.getInternalName());
+        if (declaredMethods == null || sharedMethods == null)
+            return declaredMethods == null ? sharedMethods : declaredMethods;
+
+        final List<BasaltMethod> methods = new ArrayList<>(declaredMethods);
+        methods.addAll(sharedMethods);
+
+        return methods;
+    }
+
     public void dot(boolean canAssign) {
         consume(TokenType.TOKEN_IDENTIFIER, "Expect property name!");
         final String afterDot = parser.getPrevious().content();
@@ -1310,8 +1793,23 @@ public class Compiler {
     }
 
     public Type findFieldType(Type parentType, String name) throws ClassNotFoundException, NoSuchFieldException {
-        if (parentType.getInternalName().equals(getCurrentClass().name))
-            return Type.getType(getCurrentClass().fields.stream().filter(x -> Objects.equals(x.name, name)).findAny().orElseThrow(NoSuchFieldException::new).desc);
+        final ClassHeader header = runner.findHeader(parentType.getInternalName());
+
+        if (parentType.getInternalName().equals(getCurrentClass().name)) {
+            final Optional<FieldNode> field = getCurrentClass().fields.stream().filter(x -> Objects.equals(x.name, name)).findAny();
+            if (field.isPresent())
+                return Type.getType(field.get().desc);
+
+            return (header == null ? Optional.<ClassHeader.Field>empty() : header.findField(name))
+                    .orElseThrow(NoSuchFieldException::new)
+                    .type();
+        }
+
+        if (header != null) {
+            final Optional<ClassHeader.Field> field = header.findField(name);
+            if (field.isPresent())
+                return field.get().type();
+        }
 
         final Field field = Class.forName(parentType.getInternalName().replace("/", "."), true, runner).getField(name);
 
@@ -1326,6 +1824,11 @@ public class Compiler {
             local = locals.get(identifier);
         else local = null;
 
+        if (local == null && lambdaScope != null)
+            local = lambdaScope.capture(identifier);
+        if (lambdaScope != null && lambdaScope.captures.containsKey(identifier) && canAssign && isAssignment(parser.getCurrent().type()))
+            errorAtCurrent("Captured variable \"" + identifier + "\" can not be reassigned!");
+
         if (canAssign && match(TokenType.TOKEN_EQUAL)) {
             expression();
 
@@ -1344,13 +1847,23 @@ public class Compiler {
                 return;
             }
 
+            if (local == null && findLazyField(null, identifier).isPresent()) {
+                errorAtCurrent("Lazy field \"" + identifier + "\" can not be reassigned!");
+                return;
+            }
+
             if (local == null || type != CompilerType.METHOD) {
                 errorAtCurrent("Variable \"" + identifier + "\" does not exist");
                 return;
             }
 
+            if (peekLastStack().nullable)
+                nonNullLocals.remove(identifier);
+            else nonNullLocals.add(identifier);
+
             convertLastStackForType(local.type);
             emit(new VarInsnNode(local.type.getOpcode(Opcodes.ISTORE), local.index));
+            notifyPopStack();
         } else if (canAssign && match(TokenType.TOKEN_PLUS_EQUAL)) {
             final AbstractInsnNode[] nodes = captureInstructions(compiler -> {
                 compiler.expression();
@@ -1559,6 +2072,12 @@ public class Compiler {
                 return;
             }
 
+            final Optional<BasaltField> lazyField = local == null ? findLazyField(null, identifier) : Optional.empty();
+            if (lazyField.isPresent()) {
+                emitLazyLoad(lazyField.get());
+                return;
+            }
+
             boolean isField = getCurrentClass().fields.stream()
                     .anyMatch(x -> Objects.equals(x.name, identifier)) && !locals.containsKey(identifier);
 
@@ -1588,8 +2107,13 @@ public class Compiler {
                 return;
             }
 
-            emit(new VarInsnNode(local.type.getOpcode(Opcodes.ILOAD), local.index));
-            notifyPushStack(local.type);
+            final VarInsnNode load = new VarInsnNode(local.type.getOpcode(Opcodes.ILOAD), local.index);
+            emit(load);
+            lastLoadedLocal = new Pair<>(identifier, load);
+
+            if (local.type.nullable && nonNullLocals.contains(identifier))
+                notifyPushStack(withNullability(local.type, false));
+            else notifyPushStack(local.type);
         }
     }
 
@@ -1613,21 +2137,19 @@ public class Compiler {
     }
 
     public void and(boolean canAssign) {
-        LabelNode label1 = new LabelNode();
-        LabelNode label2 = new LabelNode();
-        emitIfEq(label1);
+        final NullTest leftTest = takeNullTest();
+        final List<JumpInsnNode> falseJumps = takeCondition().emitFalseJumps(this);
 
+        final Set<String> facts = new HashSet<>(nonNullLocals);
+        narrow(leftTest, true);
         parsePrecedence(Precedence.PREC_AND);
-        emitIfEq(label1);
-        emit(new InsnNode(Opcodes.ICONST_1));
-        emit(new JumpInsnNode(Opcodes.GOTO, label2));
-
-        emit(label1);
-        emit(new InsnNode(Opcodes.ICONST_0));
-
-        emit(label2);
+        nonNullLocals.retainAll(facts);
 
+        final NullTest rightTest = takeNullTest();
+        delayedInstruction = takeCondition().withJumps(List.of(), falseJumps);
         notifyPushStack(StackTypes.BOOLEAN);
+
+        nullTest = NullTest.combine(delayedInstruction, leftTest, rightTest, true);
     }
 
     public void import_(boolean canAssign) {
@@ -1638,6 +2160,28 @@ public class Compiler {
 
         final String type = parseImportType("Expect module after \"import\"");
 
+        // Basalt classes are imported from their header, they are compiled once they're actually loaded.
+        final ClassHeader header = runner.findHeader(type);
+        if (header != null) {
+            for (ClassHeader.Method method : header.methods())
+                if (method.inline())
+                    inlineMethods.add(new BasaltMethod(header.name(), method.name(), method.descriptor()));
+
+            for (ClassHeader.Field field : header.fields()) {
+                if (field.inline())
+                    inlineFields.add(new BasaltField(header.name(), field.name(), field.type()));
+                if (field.lazy())
+                    lazyFields.add(new BasaltField(header.name(), field.name(), field.type()));
+            }
+
+            classNameReplacements.put(getSimpleName(header.name()), header.name());
+
+            // Most likely loaded soon after this compilation, so it's compiled in the background already
+            runner.precompile(header.name());
+            runner.addDependency(header.name());
+            return;
+        }
+
         final Class<?> clazz;
 
         try {
@@ -1651,6 +2195,8 @@ public class Compiler {
         for (Method method : clazz.getMethods()) {
             if (!Modifier.isStatic(method.getModifiers()))
                 continue;
+            if (method.getAnnotation(Lazy.class) != null && method.getName().startsWith(LAZY_PREFIX))
+                lazyFields.add(new BasaltField(type.replace(".", "/"), method.getName().substring(LAZY_PREFIX.length()), Type.getType(method.getReturnType())));
             if (method.getAnnotation(Inline.class) == null)
                 continue;
             inlineMethods.add(new BasaltMethod(type.replace(".", "/"), method.getName(), Type.getMethodDescriptor(method)));
@@ -1679,7 +2225,11 @@ public class Compiler {
 
         parsePrecedence(Precedence.PREC_PRIMARY);
 
-        emit(new JumpInsnNode(Opcodes.GOTO, end));
+        // Boolean branches stay jumps, whatever consumes the ternary decides where they lead
+        Pair<List<JumpInsnNode>, List<JumpInsnNode>> jumps = null;
+        if (StackTypes.isTypeStackBoolean(peekLastStack()))
+            jumps = takeCondition().emitBothJumps(this);
+        else emit(new JumpInsnNode(Opcodes.GOTO, end));
 
         consume(TokenType.TOKEN_COLON, "Expected \":\" after expression!");
 
@@ -1687,26 +2237,62 @@ public class Compiler {
 
         expression();
 
+        if (jumps != null) {
+            if (!StackTypes.isTypeStackBoolean(peekLastStack())) {
+                error("Both branches have to be booleans!");
+
+                return;
+            }
+
+            delayedInstruction = takeCondition().withJumps(jumps.k(), jumps.v());
+            notifyPushStack(StackTypes.BOOLEAN);
+
+            return;
+        }
+
         emit(end);
 
         notifyPopStack();
     }
 
     public void elvis(boolean canAssign) {
-        LabelNode start = new LabelNode();
+        final Type leftType = peekLastStack();
+        if (!leftType.nullable) {
+            // Nothing to fall back from, the right side is still parsed but never emitted
+            final Set<String> facts = new HashSet<>(nonNullLocals);
+            captureInstructions(compiler -> {
+                compiler.statement(false);
+                compiler.clearStack();
+
+                return null;
+            });
+            restoreNonNullLocals(facts);
+
+            return;
+        }
+
         LabelNode end = new LabelNode();
         emit(new InsnNode(Opcodes.DUP));
-        emit(new JumpInsnNode(Opcodes.IFNULL, start));
-
-        emit(new JumpInsnNode(Opcodes.GOTO, end));
-        emit(start);
+        emit(new JumpInsnNode(Opcodes.IFNONNULL, end));
 
         emit(new InsnNode(Opcodes.POP));
+
+        final Set<String> facts = new HashSet<>(nonNullLocals);
+        final int stackSize = instanceStack.size();
         statement(false);
 
+        final boolean exits = endsAbruptly();
+        if (exits)
+            restoreNonNullLocals(facts);
+        else nonNullLocals.retainAll(facts);
+
         emit(end);
 
-        notifyPopStack();
+        final boolean rightNullable = instanceStack.size() > stackSize && peekLastStack().nullable;
+        if (instanceStack.size() > stackSize)
+            notifyPopStack();
+        if (exits || !rightNullable)
+            notifyReplaceLastStack(withNullability(leftType, false));
     }
 
     public void at(boolean canAssign) {
@@ -1744,13 +2330,21 @@ public class Compiler {
     public void modifier() {
         final Set<TokenType> modifiers = new HashSet<>();
 
-        while (match(TokenType.TOKEN_INLINE, TokenType.TOKEN_PRIVATE, TokenType.TOKEN_STATIC,
+        while (match(TokenType.TOKEN_INLINE, TokenType.TOKEN_PRIVATE, TokenType.TOKEN_STATIC, TokenType.TOKEN_CONST, TokenType.TOKEN_LAZY,
                 TokenType.TOKEN_FINAL, TokenType.TOKEN_MAGIC, TokenType.TOKEN_SETTER, TokenType.TOKEN_GETTER)) {
             modifiers.add(parser.getPrevious().type());
         }
 
         switch (parser.getCurrent().type()) {
-            case TOKEN_FN -> modifiersForNextElement.addAll(modifiers);
+            case TOKEN_FN -> {
+                if (modifiers.contains(TokenType.TOKEN_LAZY)) {
+                    error("A method can not be lazy!");
+
+                    return;
+                }
+
+                modifiersForNextElement.addAll(modifiers);
+            }
             case TOKEN_LET -> {
                 if (modifiers.contains(TokenType.TOKEN_GETTER)) {
                     error("A variable can not be a getter!");
@@ -1764,6 +2358,12 @@ public class Compiler {
                     return;
                 }
 
+                if (modifiers.contains(TokenType.TOKEN_CONST)) {
+                    error("A variable can not be const!");
+
+                    return;
+                }
+
                 modifiersForNextElement.addAll(modifiers);
             }
             case TOKEN_CLASS, TOKEN_ENUM, TOKEN_TRAIT -> {
@@ -1785,6 +2385,18 @@ public class Compiler {
                     return;
                 }
 
+                if (modifiers.contains(TokenType.TOKEN_CONST)) {
+                    error("A class can not be const!");
+
+                    return;
+                }
+
+                if (modifiers.contains(TokenType.TOKEN_LAZY)) {
+                    error("A class can not be lazy!");
+
+                    return;
+                }
+
                 modifiersForNextElement.addAll(modifiers);
             }
 
@@ -1865,24 +2477,19 @@ public class Compiler {
     }
 
     public void or(boolean canAssign) {
-        LabelNode label3 = new LabelNode();
-        LabelNode label4 = new LabelNode();
-        LabelNode label5 = new LabelNode();
-        emitIfNe(label3);
+        final NullTest leftTest = takeNullTest();
+        final List<JumpInsnNode> trueJumps = takeCondition().emitTrueJumps(this);
 
+        final Set<String> facts = new HashSet<>(nonNullLocals);
+        narrow(leftTest, false);
         parsePrecedence(Precedence.PREC_OR);
-        emitIfEq(label4);
-
-        emit(label3);
-        emit(new InsnNode(Opcodes.ICONST_1));
-        emit(new JumpInsnNode(Opcodes.GOTO, label5));
-
-        emit(label4);
-        emit(new InsnNode(Opcodes.ICONST_0));
-
-        emit(label5);
+        nonNullLocals.retainAll(facts);
 
+        final NullTest rightTest = takeNullTest();
+        delayedInstruction = takeCondition().withJumps(trueJumps, List.of());
         notifyPushStack(StackTypes.BOOLEAN);
+
+        nullTest = NullTest.combine(delayedInstruction, leftTest, rightTest, false);
     }
 
     public void emitReturn(Type type) {
@@ -1919,6 +2526,13 @@ public class Compiler {
     }
 
     public void convertLastStackForType(Type type) {
+        if (peekLastStack() == StackTypes.NULLABLE_OBJECT_TYPE && isReference(type)) {
+            // A null literal already fits any reference type
+            notifyReplaceLastStack(withNullability(type, true));
+
+            return;
+        }
+
         if (StackTypes.isTypeStackString(type)) {
             convertLastStackToString();
         } else if (StackTypes.isTypeStackObject(type)) {
@@ -2316,13 +2930,59 @@ public class Compiler {
     }
 
     public void block() {
+        final Map<String, Local> outer = enterScope();
         while (!check(TokenType.TOKEN_RIGHT_BRACE) && !check(TokenType.TOKEN_EOF)) {
             declaration();
         }
+        exitScope(outer);
 
         consume(TokenType.TOKEN_RIGHT_BRACE, "Expect \"}\" after block");
     }
 
+    private Map<String, Local> enterScope() {
+        return new HashMap<>(locals);
+    }
+
+    /**
+     * Forgets the locals declared since the scope was entered, their debug entries end here.
+     * The map is restored in place, captured compilers share it.
+     * Captures of a lambda are kept, they're parameters of the whole lambda body.
+     */
+    private void exitScope(Map<String, Local> outer) {
+        final Map<String, Local> captured = new HashMap<>();
+
+        LabelNode end = null;
+        for (Map.Entry<String, Local> entry : locals.entrySet()) {
+            final Local local = entry.getValue();
+            if (outer.get(entry.getKey()) == local)
+                continue;
+
+            final Pair<Local, Local> capture = lambdaScope == null ? null : lambdaScope.captures.get(entry.getKey());
+            if (capture != null && capture.v() == local) {
+                captured.put(entry.getKey(), local);
+
+                continue;
+            }
+
+            nonNullLocals.remove(entry.getKey());
+            if (local.start == null)
+                continue;
+
+            if (end == null) {
+                end = new LabelNode();
+                emit(end);
+            }
+
+            final MethodNode methodNode = getCurrentMethod(true);
+            methodNode.localVariables = Utils.addToNullableList(methodNode.localVariables,
+                    new LocalVariableNode(entry.getKey(), local.type.getDescriptor(), local.type.signature, local.start, end, local.index));
+        }
+
+        locals.clear();
+        locals.putAll(outer);
+        locals.putAll(captured);
+    }
+
     public void declarationInMethod(String fnName) {
         modifier();
 
@@ -2346,6 +3006,11 @@ public class Compiler {
         Type extendingType = null;
         ExtensionType extensionType = null;
 
+        if (modifiersForNextElement.contains(TokenType.TOKEN_CONST)) {
+            annotationsForNextElement.add(COMPILE_TIME_ANNOTATION);
+            modifiersForNextElement.add(TokenType.TOKEN_STATIC);
+        }
+
         boolean isMethodTrulyStatic = !modifiersForNextElement.isEmpty() && modifiersForNextElement.contains(TokenType.TOKEN_STATIC);
 
         String name;
@@ -2407,6 +3072,7 @@ public class Compiler {
 
         final Compiler compiler = new Compiler(CompilerType.METHOD, this);
         compiler.currentMethod = compiler.getCurrentClass().methods.size();
+        compiler.nonNullLocals = new HashSet<>();
 
         final LabelNode start = new LabelNode();
         compiler.emit(start);
@@ -2421,8 +3087,11 @@ public class Compiler {
         }
 
         final List<Type> parameters = new ArrayList<>();
-        if (isInstanceExtension)
+        final List<String> parameterNames = new ArrayList<>();
+        if (isInstanceExtension) {
             parameters.add(extendingType);
+            parameterNames.add("this");
+        }
 
         if (!check(TokenType.TOKEN_RIGHT_PAREN)) {
             do {
@@ -2436,6 +3105,7 @@ public class Compiler {
                     type.signature += ";";
 
                 parameters.add(type);
+                parameterNames.add(arg);
 
                 compiler.locals.put(arg, new Local(type, compiler.maxLocals, start));
                 compiler.maxLocals += type.getSize();
@@ -2482,12 +3152,10 @@ public class Compiler {
 
         if (extendingType != null) {
             if (isMethodTrulyStatic)
-                Utils.putIntoListInMap(staticExtensionMethods,
-                        extendingType.getInternalName(),
-                        new BasaltMethod(getCurrentClass().name, name, methodNode.desc));
-            else Utils.putIntoListInMap(extensionMethods,
-                    extendingType.getInternalName(),
-                    new BasaltMethod(getCurrentClass().name, name, methodNode.desc));
+                declaredStaticExtensionMethods.computeIfAbsent(extendingType.getInternalName(), x -> new CopyOnWriteArrayList<>())
+                        .add(new BasaltMethod(getCurrentClass().name, name, methodNode.desc));
+            else declaredExtensionMethods.computeIfAbsent(extendingType.getInternalName(), x -> new CopyOnWriteArrayList<>())
+                    .add(new BasaltMethod(getCurrentClass().name, name, methodNode.desc));
         }
 
         if (constructor) {
@@ -2511,6 +3179,10 @@ public class Compiler {
         methodNode.visibleAnnotations = new ArrayList<>(annotationsForNextElement);
         annotationsForNextElement.clear();
 
+        // Kept in the class file, so that hosts can bind arguments by name
+        for (String parameterName : parameterNames)
+            methodNode.visitParameter(parameterName, 0);
+
         if (!(constructor && methodNode.desc.equals("()V")))
             addMethodToCurrentClass(methodNode);
 
@@ -2557,11 +3229,104 @@ public class Compiler {
         if (StackTypes.VOID.equals(type) && !constructor && !isInterface)
             compiler.emitVoidReturn();
 
+        if (!constructor && !isInterface)
+            eliminateTailCalls(methodNode);
+
         for (Map.Entry<String, Local> entry : compiler.locals.entrySet()) {
             final Local local = entry.getValue();
 
             methodNode.localVariables.add(new LocalVariableNode(entry.getKey(), local.type.getDescriptor(), local.type.signature, local.start, end, local.index));
         }
+
+        if (CompileTimeEvaluator.isCompileTime(methodNode)) {
+            final String impurity = CompileTimeEvaluator.findImpurity(getCurrentClass(), methodNode);
+            if (impurity != null)
+                error("\"" + name + "\" is a compile-time function but " + impurity + "!");
+            else compileTimeMethods.add(methodNode);
+        }
+    }
+
+    /**
+     * Rewrites self-calls in tail position into stores to the parameters and a jump back to the start of the method,
+     * so that deep recursion doesn't grow the stack. Instance methods qualify only if they can't be overridden.
+     */
+    private void eliminateTailCalls(MethodNode methodNode) {
+        final boolean tailRec = methodNode.visibleAnnotations != null
+                && methodNode.visibleAnnotations.stream().anyMatch(x -> x.desc.equals(TAIL_REC_DESCRIPTOR));
+
+        final boolean isStatic = Modifier.isStatic(methodNode.access);
+        final boolean rewritable = methodNode.tryCatchBlocks.isEmpty()
+                && (isStatic
+                || (methodNode.access & (Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL)) != 0
+                || (getCurrentClass().access & Opcodes.ACC_FINAL) != 0);
+
+        final Type[] arguments = Type.getArgumentTypes(methodNode.desc);
+        final int[] argumentIndices = new int[arguments.length];
+
+        int index = isStatic ? 0 : 1;
+        for (int i = 0; i < arguments.length; i++) {
+            argumentIndices[i] = index;
+            index += arguments[i].getSize();
+        }
+
+        final LabelNode start = new LabelNode();
+
+        boolean rewritten = false;
+        boolean remaining = false;
+        for (AbstractInsnNode node : methodNode.instructions.toArray()) {
+            if (!(node instanceof MethodInsnNode call)
+                    || !call.owner.equals(getCurrentClass().name)
+                    || !call.name.equals(methodNode.name)
+                    || !call.desc.equals(methodNode.desc)
+                    || (call.getOpcode() == Opcodes.INVOKESTATIC) != isStatic)
+                continue;
+
+            if (!rewritable || !isTailPosition(call, Type.getReturnType(methodNode.desc))) {
+                remaining = true;
+
+                continue;
+            }
+
+            final InsnList jump = new InsnList();
+            for (int i = arguments.length - 1; i >= 0; i--)
+                jump.add(new VarInsnNode(arguments[i].getOpcode(Opcodes.ISTORE), argumentIndices[i]));
+
+            if (!isStatic) {
+                jump.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/util/Objects", "requireNonNull", "(Ljava/lang/Object;)Ljava/lang/Object;"));
+                jump.add(new TypeInsnNode(Opcodes.CHECKCAST, getCurrentClass().name));
+                jump.add(new VarInsnNode(Opcodes.ASTORE, 0));
+            }
+
+            jump.add(new JumpInsnNode(Opcodes.GOTO, start));
+
+            methodNode.instructions.insert(call, jump);
+            methodNode.instructions.remove(call);
+
+            rewritten = true;
+        }
+
+        if (rewritten)
+            methodNode.instructions.insert(start);
+
+        if (tailRec && !rewritable)
+            error("\"" + methodNode.name + "\" is marked with @TailRec but can be overridden!");
+        else if (tailRec && remaining)
+            error("\"" + methodNode.name + "\" is marked with @TailRec but has recursive calls that are not in tail position!");
+    }
+
+    private static boolean isTailPosition(MethodInsnNode call, Type returnType) {
+        final Set<AbstractInsnNode> visited = new HashSet<>();
+
+        AbstractInsnNode node = call.getNext();
+        while (node != null && visited.add(node)) {
+            if (node.getOpcode() == -1)
+                node = node.getNext();
+            else if (node.getOpcode() == Opcodes.GOTO)
+                node = ((JumpInsnNode) node).label;
+            else return node.getOpcode() == returnType.getOpcode(Opcodes.IRETURN);
+        }
+
+        return false;
     }
 
     public void nestedFnDeclaration(String parentName) {
@@ -2572,6 +3337,8 @@ public class Compiler {
 
         final Compiler compiler = new Compiler(CompilerType.METHOD, this);
         compiler.currentMethod = getCurrentClass().methods.size();
+        compiler.lambdaScope = null;
+        compiler.nonNullLocals = new HashSet<>();
 
         final LabelNode start = new LabelNode();
         compiler.emit(start);
@@ -2665,90 +3432,450 @@ public class Compiler {
         methodNameReplacements.put(name, jvmName);
     }
 
-    public void addMethodToCurrentClass(MethodNode methodNode) {
-        getCurrentClass().methods.add(methodNode);
-    }
-
-    public void unpack(LabelNode start, String name, int index, Type lastStack) {
-        Class<?> type = typeToClass(lastStack);
+    public void function(boolean canAssign) {
+        if (type != CompilerType.METHOD) {
+            error("Function values can only be created inside of methods!");
+            return;
+        }
 
-        emit(new InsnNode(Opcodes.DUP));
+        consume(TokenType.TOKEN_GREATER, "Expected \"<\" and a functional interface after \"fn\"!");
+        final String descriptor = parseType("Expected functional interface!");
+        final String generics = parseGenericType();
+        consume(TokenType.TOKEN_LESS, "Expected \">\" after functional interface!");
 
-        if (Map.class.isAssignableFrom(type))
-            unpackMap(name);
-        else if (type.isAssignableFrom(List.class))
-            unpackList(lastStack, index);
-        else if (type.isArray())
-            unpackArray(lastStack, index);
-        else if (lastStack.getSort() == Type.OBJECT) {
-            unpackObject(lastStack, name);
-        } else error("Can't unpack primitives!");
+        final Type interfaceType = Type.getType(descriptor);
+        if (interfaceType.getSort() != Type.OBJECT) {
+            error("\"" + interfaceType.getClassName() + "\" is not a functional interface!");
+            return;
+        }
 
-        Type vartype = peekLastStack();
+        if (!generics.isEmpty())
+            interfaceType.signature = descriptor.replace(";", "") + generics + ";";
 
-        Local local = new Local(vartype, maxLocals, start);
-        maxLocals += vartype.getSize();
-        emit(new VarInsnNode(vartype.getOpcode(Opcodes.ISTORE), local.index));
+        final Method functionalMethod = findFunctionalMethod(typeToClass(interfaceType));
+        if (functionalMethod == null) {
+            error("\"" + interfaceType.getClassName() + "\" is not a functional interface!");
+            return;
+        }
 
-        locals.put(name, local);
-    }
+        final Type functionalType = Type.getType(functionalMethod);
 
-    private void unpackObject(Type lastStack, String name) {
-        try {
-            final Type fieldType = findFieldType(lastStack, name);
+        final Pair<Handle, Type> implementation;
+        final List<Type> captured = new ArrayList<>();
+        if (match(TokenType.TOKEN_LEFT_PAREN))
+            implementation = lambda(functionalType, captured);
+        else implementation = methodReference(functionalType);
 
-            emit(new FieldInsnNode(Opcodes.GETFIELD, lastStack.getInternalName(), name, fieldType.getDescriptor()));
-            notifyPushStack(fieldType);
-        } catch (ClassNotFoundException | NoSuchFieldException e) {
-            Optional<Method> method = Arrays.stream(typeToClass(lastStack).getMethods())
-                    .filter(x -> !Modifier.isStatic(x.getModifiers())
-                            && x.getName().equals(name)
-                            && x.getReturnType() != void.class
-                            && x.getAnnotation(Property.class) != null
-                            && x.getAnnotation(Property.class).type() == PropertyType.GET).findAny();
+        if (implementation == null)
+            return;
 
-            if (method.isPresent()) {
-                final Type type = Type.getType(method.get().getAnnotation(Property.class).propertyType());
+        emitDelayedConstant();
+        emit(new InvokeDynamicInsnNode(
+                functionalMethod.getName(),
+                Type.getMethodDescriptor(interfaceType, captured.toArray(Type[]::new)),
+                LAMBDA_METAFACTORY,
+                functionalType,
+                implementation.k(),
+                instantiatedMethodType(functionalType, implementation.v())
+        ));
 
-                emit(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, lastStack.getInternalName(), name, Type.getMethodDescriptor(type)));
-                notifyPushStack(type);
-            } else error("Couldn't find field \"" + name + "\"!");
-        }
+        notifyPushStack(interfaceType);
     }
 
-    private void unpackArray(Type lastStack, int index) {
-        Type type = Type.getType(StringUtils.replaceOnce(lastStack.getDescriptor(), "[", ""));
+    private Pair<Handle, Type> lambda(Type functionalType, List<Type> captured) {
+        final Compiler compiler = new Compiler(CompilerType.METHOD, this);
+        compiler.currentMethod = getCurrentClass().methods.size();
 
-        emitConstant(index);
-        emit(new InsnNode(type.getOpcode(Opcodes.IALOAD)));
+        final LabelNode start = new LabelNode();
+        final LambdaScope scope = new LambdaScope(this, compiler, start);
+        compiler.lambdaScope = scope;
+        compiler.nonNullLocals = new HashSet<>();
 
-        notifyReplaceLastStack(type);
-    }
+        final MethodNode methodNode = compiler.getCurrentMethod(true);
+        final MethodNode enclosingMethod = getCurrentMethod(true);
+        methodNode.name = "lambda$" + (enclosingMethod.name == null ? "static" : enclosingMethod.name.replace("<", "").replace(">", "")) + "$" + compiler.currentMethod;
+        methodNode.access = Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC;
 
-    public void unpackList(Type lastStack, int index) {
-        List<Type> types = getSignatureTypes(lastStack);
+        addMethodToCurrentClass(methodNode);
+        compiler.emit(start);
 
-        emitConstant(index);
-        emit(new MethodInsnNode(Opcodes.INVOKEINTERFACE,
-                "java/util/List", "get", "(I)Ljava/lang/Object;"));
+        final Type[] functionalArguments = functionalType.getArgumentTypes();
+        final List<Type> parameters = new ArrayList<>();
+        if (!check(TokenType.TOKEN_RIGHT_PAREN)) {
+            do {
+                final String name = parseIdentifier("Expected parameter name");
+                if (parameters.size() >= functionalArguments.length) {
+                    error("Function value takes more parameters than its interface!");
+                    return null;
+                }
 
-        notifyReplaceLastStack(types.get(0));
-    }
+                final Type type;
+                if (check(TokenType.TOKEN_COLON)) {
+                    final String typeName = consumeType("Expected type after parameter name");
+                    final String parameterGenerics = parseGenericType();
+                    type = Type.getType(typeName);
+                    if (type.getSort() == Type.OBJECT) {
+                        type.nullable = match(TokenType.TOKEN_QMARK);
+                        type.signature = typeName.replace(";", "") + parameterGenerics + ";";
+                    }
+                } else {
+                    type = Type.getType(functionalArguments[parameters.size()].getDescriptor());
+                }
 
-    public static List<Type> getSignatureTypes(Type lastStack) {
-        String sigType = StringUtils.replaceOnce(
-                lastStack.signature,
-                lastStack.getDescriptor(),
-                ""
-        );
-        sigType = sigType.substring(1, sigType.length() - 2);
+                parameters.add(type);
 
-        return Arrays.stream(StringUtils.split(sigType, ',')).map(String::strip).map(Type::getType).toList();
-    }
+                compiler.locals.put(name, new Local(type, compiler.maxLocals, start));
+                compiler.maxLocals += type.getSize();
+            } while (match(TokenType.TOKEN_COMMA));
+        }
 
-    public void unpackMap(String name) {
-        emitConstant(name);
-        emit(new MethodInsnNode(Opcodes.INVOKEINTERFACE,
+        consume(TokenType.TOKEN_RIGHT_PAREN, "Expect \")\" after parameters");
+
+        if (parameters.size() != functionalArguments.length) {
+            error("Function value takes " + parameters.size() + " parameters but its interface expects " + functionalArguments.length + "!");
+            return null;
+        }
+
+        final boolean returnTypeDeclared = check(TokenType.TOKEN_COLON);
+        Type returnType = returnTypeDeclared
+                ? Type.getType(consumeType("Expect return type after \":\""))
+                : functionalType.getReturnType();
+        methodNode.desc = Type.getMethodDescriptor(returnType, parameters.toArray(Type[]::new));
+
+        if (match(TokenType.TOKEN_INTO)) {
+            compiler.expression();
+            compiler.emitDelayedConstant();
+
+            final Type lastStack = compiler.peekLastStack();
+            if (returnType.equals(StackTypes.VOID)) {
+                compiler.clearStack();
+                compiler.emitVoidReturn();
+            } else if (lastStack == null) {
+                error("Function value has to return \"" + returnType.getClassName() + "\"!");
+                return null;
+            } else {
+                // LambdaMetafactory boxes and casts the result for us when the interface returns a reference.
+                if (!returnTypeDeclared && returnType.getSort() == Type.OBJECT)
+                    returnType = lastStack;
+                else compiler.convertLastStackForType(returnType);
+
+                compiler.emitReturn(returnType);
+                compiler.notifyPopStack();
+            }
+        } else {
+            consume(TokenType.TOKEN_LEFT_BRACE, "Expected \"->\" or \"{\" after parameters");
+
+            while (!check(TokenType.TOKEN_RIGHT_BRACE) && !check(TokenType.TOKEN_EOF)) {
+                compiler.declarationInMethod(methodNode.name);
+            }
+
+            consume(TokenType.TOKEN_RIGHT_BRACE, "Expected \"}\" after function body");
+
+            if (returnType.equals(StackTypes.VOID))
+                compiler.emitVoidReturn();
+        }
+
+        final LabelNode end = new LabelNode();
+        compiler.emit(end);
+
+        // Captured locals become the leading parameters of the implementation method,
+        // so every slot gets shifted past them.
+        final Map<Integer, Integer> slots = new HashMap<>();
+        int capturedSize = 0;
+        for (Pair<Local, Local> capture : scope.captures.values()) {
+            slots.put(capture.v().index(), capturedSize);
+            capturedSize += capture.v().type().getSize();
+
+            captured.add(capture.v().type());
+        }
+
+        final int shift = capturedSize;
+        final Function<Integer, Integer> remap = index -> slots.getOrDefault(index, index + shift);
+        for (AbstractInsnNode insn : methodNode.instructions) {
+            if (insn instanceof VarInsnNode varInsn)
+                varInsn.var = remap.apply(varInsn.var);
+            else if (insn instanceof IincInsnNode iincInsn)
+                iincInsn.var = remap.apply(iincInsn.var);
+        }
+
+        // Locals of nested blocks already got their entries
+        if (methodNode.localVariables != null)
+            for (LocalVariableNode local : methodNode.localVariables)
+                local.index = remap.apply(local.index);
+
+        for (Map.Entry<String, Local> entry : compiler.locals.entrySet()) {
+            final Local local = entry.getValue();
+            if (local.start == null)
+                continue;
+
+            methodNode.localVariables.add(new LocalVariableNode(entry.getKey(), local.type.getDescriptor(), local.type.signature, local.start, end, remap.apply(local.index)));
+        }
+
+        final List<Type> arguments = new ArrayList<>(captured);
+        arguments.addAll(parameters);
+        methodNode.desc = Type.getMethodDescriptor(returnType, arguments.toArray(Type[]::new));
+
+        for (Pair<Local, Local> capture : scope.captures.values())
+            emit(new VarInsnNode(capture.k().type().getOpcode(Opcodes.ILOAD), capture.k().index()));
+
+        return new Pair<>(
+                new Handle(Opcodes.H_INVOKESTATIC, getCurrentClass().name, methodNode.name, methodNode.desc, false),
+                Type.getMethodType(returnType, parameters.toArray(Type[]::new))
+        );
+    }
+
+    private Pair<Handle, Type> methodReference(Type functionalType) {
+        String descriptor = parseType("Expected method reference after functional interface!");
+        if (descriptor.equals(getSimpleName(currentClass)))
+            descriptor = "L" + currentClass + ";";
+
+        final Type ownerType = Type.getType(descriptor);
+        consume(TokenType.TOKEN_COLON, "Expected \":\" between owner and method name!");
+        final String name = parseIdentifier("Expected method name!");
+
+        if (ownerType.getSort() != Type.OBJECT) {
+            error("Can't reference methods of \"" + ownerType.getClassName() + "\"!");
+            return null;
+        }
+
+        final String owner = ownerType.getInternalName();
+        final int arity = functionalType.getArgumentTypes().length;
+
+        if (name.equals("new")) {
+            final Optional<Type> constructor = findReferencedMethod(owner, "<init>", arity, false)
+                    .map(x -> Type.getMethodType(ownerType, Type.getArgumentTypes(x.descriptor())));
+            if (constructor.isPresent())
+                return new Pair<>(new Handle(Opcodes.H_NEWINVOKESPECIAL, owner, "<init>", Type.getMethodDescriptor(StackTypes.VOID, constructor.get().getArgumentTypes()), false), constructor.get());
+        } else {
+            final Optional<ClassHeader.Method> staticMethod = findReferencedMethod(owner, name, arity, true);
+            if (staticMethod.isPresent())
+                return new Pair<>(new Handle(Opcodes.H_INVOKESTATIC, owner, name, staticMethod.get().descriptor(), isInterface(owner)), Type.getMethodType(staticMethod.get().descriptor()));
+
+            // Unbound receiver, the first argument of the interface method becomes "this".
+            final Optional<ClassHeader.Method> instanceMethod = arity == 0 ? Optional.empty() : findReferencedMethod(owner, name, arity - 1, false);
+            if (instanceMethod.isPresent()) {
+                final boolean isInterface = isInterface(owner);
+                final List<Type> arguments = new ArrayList<>(List.of(ownerType));
+                arguments.addAll(List.of(Type.getArgumentTypes(instanceMethod.get().descriptor())));
+
+                return new Pair<>(
+                        new Handle(isInterface ? Opcodes.H_INVOKEINTERFACE : Opcodes.H_INVOKEVIRTUAL, owner, name, instanceMethod.get().descriptor(), isInterface),
+                        Type.getMethodType(Type.getReturnType(instanceMethod.get().descriptor()), arguments.toArray(Type[]::new))
+                );
+            }
+        }
+
+        error("Couldn't find \"" + name + "\" in \"" + ownerType.getClassName() + "\" taking " + arity + " arguments!");
+        return null;
+    }
+
+    private Optional<ClassHeader.Method> findReferencedMethod(String owner, String name, int arity, boolean isStatic) {
+        final ClassNode classNode = classes.get(owner);
+        if (classNode != null) {
+            final Optional<ClassHeader.Method> method = classNode.methods.stream()
+                    .filter(x -> x.name.equals(name) && x.desc != null && Type.getArgumentTypes(x.desc).length == arity)
+                    .filter(x -> Modifier.isStatic(x.access) == isStatic)
+                    .map(x -> new ClassHeader.Method(x.name, x.desc, x.access, false))
+                    .findFirst();
+            if (method.isPresent())
+                return method;
+        }
+
+        final ClassHeader header = runner.findHeader(owner);
+        if (header != null)
+            return header.methods().stream()
+                    .filter(x -> x.name().equals(name) && Type.getArgumentTypes(x.descriptor()).length == arity)
+                    .filter(x -> Modifier.isStatic(x.access()) == isStatic)
+                    .findFirst();
+
+        final Class<?> clazz = typeToClass(Type.getObjectType(owner));
+        if (name.equals("<init>"))
+            return Arrays.stream(clazz.getConstructors())
+                    .filter(x -> x.getParameterCount() == arity)
+                    .map(x -> new ClassHeader.Method(name, Type.getConstructorDescriptor(x), x.getModifiers(), false))
+                    .findFirst();
+
+        return Arrays.stream(clazz.getMethods())
+                .filter(x -> x.getName().equals(name) && x.getParameterCount() == arity && !x.isBridge())
+                .filter(x -> Modifier.isStatic(x.getModifiers()) == isStatic)
+                .map(x -> new ClassHeader.Method(name, Type.getMethodDescriptor(x), x.getModifiers(), false))
+                .findFirst();
+    }
+
+    private boolean isInterface(String owner) {
+        final ClassNode classNode = classes.get(owner);
+        if (classNode != null)
+            return (classNode.access & Opcodes.ACC_INTERFACE) != 0;
+
+        final ClassHeader header = runner.findHeader(owner);
+        if (header != null)
+            return header.isInterface();
+
+        return typeToClass(Type.getObjectType(owner)).isInterface();
+    }
+
+    @Nullable
+    private static Method findFunctionalMethod(Class<?> clazz) {
+        if (!clazz.isInterface())
+            return null;
+
+        Method functionalMethod = null;
+        for (Method method : clazz.getMethods()) {
+            if (!Modifier.isAbstract(method.getModifiers()) || isObjectMethod(method))
+                continue;
+
+            if (functionalMethod != null && !(functionalMethod.getName().equals(method.getName()) && Arrays.equals(functionalMethod.getParameterTypes(), method.getParameterTypes())))
+                return null;
+
+            functionalMethod = method;
+        }
+
+        return functionalMethod;
+    }
+
+    private static boolean isObjectMethod(Method method) {
+        try {
+            Object.class.getMethod(method.getName(), method.getParameterTypes());
+
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Narrows the erased interface method type to what the implementation accepts, LambdaMetafactory
+     * then takes care of the casts and boxing on its own.
+     */
+    private static Type instantiatedMethodType(Type functionalType, Type implementationType) {
+        final Type[] functionalArguments = functionalType.getArgumentTypes();
+        final Type[] implementationArguments = implementationType.getArgumentTypes();
+
+        final Type[] arguments = new Type[functionalArguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+            if (!isReference(functionalArguments[i]))
+                arguments[i] = functionalArguments[i];
+            else arguments[i] = isReference(implementationArguments[i])
+                    ? implementationArguments[i]
+                    : boxedType(implementationArguments[i]);
+        }
+
+        final Type returnType = isReference(functionalType.getReturnType()) && isReference(implementationType.getReturnType())
+                ? implementationType.getReturnType()
+                : functionalType.getReturnType();
+
+        return Type.getMethodType(returnType, arguments);
+    }
+
+    private static Type boxedType(Type type) {
+        return switch (type.getSort()) {
+            case Type.BOOLEAN -> Type.getObjectType("java/lang/Boolean");
+            case Type.CHAR -> Type.getObjectType("java/lang/Character");
+            case Type.BYTE -> Type.getObjectType("java/lang/Byte");
+            case Type.SHORT -> Type.getObjectType("java/lang/Short");
+            case Type.INT -> StackTypes.INTEGER_TYPE;
+            case Type.FLOAT -> StackTypes.FLOAT_TYPE;
+            case Type.LONG -> StackTypes.LONG_TYPE;
+            case Type.DOUBLE -> StackTypes.DOUBLE_TYPE;
+            default -> type;
+        };
+    }
+
+    private static boolean isReference(Type type) {
+        return type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+    }
+
+    private static boolean isAssignment(TokenType type) {
+        return switch (type) {
+            case TOKEN_EQUAL, TOKEN_PLUS_EQUAL, TOKEN_MINUS_EQUAL, TOKEN_STAR_EQUAL, TOKEN_SLASH_EQUAL -> true;
+            default -> false;
+        };
+    }
+
+    public void addMethodToCurrentClass(MethodNode methodNode) {
+        getCurrentClass().methods.add(methodNode);
+    }
+
+    public void unpack(LabelNode start, String name, int index, Type lastStack) {
+        Class<?> type = typeToClass(lastStack);
+
+        emit(new InsnNode(Opcodes.DUP));
+
+        if (Map.class.isAssignableFrom(type))
+            unpackMap(name);
+        else if (type.isAssignableFrom(List.class))
+            unpackList(lastStack, index);
+        else if (type.isArray())
+            unpackArray(lastStack, index);
+        else if (lastStack.getSort() == Type.OBJECT) {
+            unpackObject(lastStack, name);
+        } else error("Can't unpack primitives!");
+
+        Type vartype = peekLastStack();
+
+        Local local = new Local(vartype, maxLocals, start);
+        maxLocals += vartype.getSize();
+        emit(new VarInsnNode(vartype.getOpcode(Opcodes.ISTORE), local.index));
+
+        locals.put(name, local);
+    }
+
+    private void unpackObject(Type lastStack, String name) {
+        try {
+            final Type fieldType = findFieldType(lastStack, name);
+
+            emit(new FieldInsnNode(Opcodes.GETFIELD, lastStack.getInternalName(), name, fieldType.getDescriptor()));
+            notifyPushStack(fieldType);
+        } catch (ClassNotFoundException | NoSuchFieldException e) {
+            Optional<Method> method = Arrays.stream(typeToClass(lastStack).getMethods())
+                    .filter(x -> !Modifier.isStatic(x.getModifiers())
+                            && x.getName().equals(name)
+                            && x.getReturnType() != void.class
+                            && x.getAnnotation(Property.class) != null
+                            && x.getAnnotation(Property.class).type() == PropertyType.GET).findAny();
+
+            if (method.isPresent()) {
+                final Type type = Type.getType(method.get().getAnnotation(Property.class).propertyType());
+
+                emit(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, lastStack.getInternalName(), name, Type.getMethodDescriptor(type)));
+                notifyPushStack(type);
+            } else error("Couldn't find field \"" + name + "\"!");
+        }
+    }
+
+    private void unpackArray(Type lastStack, int index) {
+        Type type = Type.getType(StringUtils.replaceOnce(lastStack.getDescriptor(), "[", ""));
+
+        emitConstant(index);
+        emit(new InsnNode(type.getOpcode(Opcodes.IALOAD)));
+
+        notifyReplaceLastStack(type);
+    }
+
+    public void unpackList(Type lastStack, int index) {
+        List<Type> types = getSignatureTypes(lastStack);
+
+        emitConstant(index);
+        emit(new MethodInsnNode(Opcodes.INVOKEINTERFACE,
+                "java/util/List", "get", "(I)Ljava/lang/Object;"));
+
+        notifyReplaceLastStack(types.get(0));
+    }
+
+    public static List<Type> getSignatureTypes(Type lastStack) {
+        String sigType = StringUtils.replaceOnce(
+                lastStack.signature,
+                lastStack.getDescriptor(),
+                ""
+        );
+        sigType = sigType.substring(1, sigType.length() - 2);
+
+        return Arrays.stream(StringUtils.split(sigType, ',')).map(String::strip).map(Type::getType).toList();
+    }
+
+    public void unpackMap(String name) {
+        emitConstant(name);
+        emit(new MethodInsnNode(Opcodes.INVOKEINTERFACE,
                 "java/util/Map", "get", "(Ljava/lang/Object;)Ljava/lang/Object;"));
 
         notifyReplaceLastStack(StackTypes.OBJECT_TYPE);
@@ -2762,9 +3889,10 @@ public class Compiler {
             emit(start);
 
         boolean isFieldStatic = !modifiersForNextElement.isEmpty() && (modifiersForNextElement.contains(TokenType.TOKEN_STATIC) || modifiersForNextElement.contains(TokenType.TOKEN_INLINE));
+        final boolean lazy = type == CompilerType.CLASS && modifiersForNextElement.contains(TokenType.TOKEN_LAZY);
 
         int oldCurrentMethod = currentMethod;
-        if (type == CompilerType.CLASS) {
+        if (type == CompilerType.CLASS && !lazy) {
             currentMethod = isFieldStatic ? 1 : 0;
 
             if (!isFieldStatic)
@@ -2798,7 +3926,7 @@ public class Compiler {
                 type = Type.getType(typeName.k);
                 signature = type.getDescriptor().replace(";", "") + typeName.v;
                 if (type.getSort() == Type.OBJECT)
-                    type.signature += ";";
+                    signature += ";";
                 nullable = match(TokenType.TOKEN_QMARK);
                 type.nullable = nullable;
                 type.signature = signature;
@@ -2812,6 +3940,28 @@ public class Compiler {
         }
 
         boolean setValue = match(TokenType.TOKEN_EQUAL);
+        MethodNode initializer = null;
+        if (lazy) {
+            if ((getCurrentClass().access & Opcodes.ACC_INTERFACE) != 0) {
+                error("Interfaces can not have lazy fields!");
+
+                return;
+            }
+
+            if (unpacking || !setValue) {
+                error("Lazy fields need a value!");
+
+                return;
+            }
+
+            // The value is computed by a method of its own instead of <clinit>, its type is known once it's compiled
+            initializer = new MethodNode(Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, LAZY_INITIALIZER_PREFIX + name,
+                    Type.getMethodDescriptor(inference ? StackTypes.OBJECT_TYPE : type), null, null);
+            addMethodToCurrentClass(initializer);
+
+            currentMethod = getCurrentClass().methods.size() - 1;
+        }
+
         if (setValue) {
             expression();
             if (!nullable && peekLastStack().nullable) {
@@ -2838,7 +3988,11 @@ public class Compiler {
             return;
         }
 
-        if (this.type == CompilerType.CLASS) {
+        if (lazy) {
+            lazyField(initializer, name, type, nullable);
+
+            modifiersForNextElement.clear();
+        } else if (this.type == CompilerType.CLASS) {
             if (modifiersForNextElement.contains(TokenType.TOKEN_INLINE)) {
                 annotationsForNextElement.add(INLINE_ANNOTATION);
                 modifiersForNextElement.add(TokenType.TOKEN_STATIC);
@@ -2880,6 +4034,9 @@ public class Compiler {
                     emit(new VarInsnNode(type.getOpcode(Opcodes.ISTORE), local.index));
 
                 locals.put(name, local);
+                if (setValue && !peekLastStack().nullable)
+                    nonNullLocals.add(name);
+                else nonNullLocals.remove(name);
             }
         }
 
@@ -2892,6 +4049,100 @@ public class Compiler {
         else match(TokenType.TOKEN_SEMICOLON);
     }
 
+    /**
+     * Finishes a "lazy let" field. Its value is computed on the first read only, without a volatile read on later ones:
+     * a constant dynamic resolves it once for the whole class, older class versions use the holder class idiom.
+     * Other classes go through a static accessor.
+     */
+    private void lazyField(MethodNode initializer, String name, Type type, boolean nullable) {
+        final ClassNode classNode = getCurrentClass();
+        final String descriptor = type.getDescriptor();
+        final boolean dynamic = classNode.version >= Opcodes.V11;
+
+        initializer.desc = Type.getMethodDescriptor(type);
+        // Only the constant dynamic of the class itself resolves it, a holder class needs package access
+        if (dynamic)
+            initializer.access |= Opcodes.ACC_PRIVATE;
+        emit(new InsnNode(type.getOpcode(Opcodes.IRETURN)));
+
+        if (!dynamic) {
+            final ClassNode holder = new ClassNode();
+            holder.visit(classNode.version, Opcodes.ACC_FINAL | Opcodes.ACC_SUPER | Opcodes.ACC_SYNTHETIC,
+                    lazyHolderName(classNode.name, name), null, "java/lang/Object", null);
+            holder.fields.add(new FieldNode(Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, "value", descriptor, null, null));
+
+            final MethodNode clinit = new MethodNode(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+            clinit.instructions.add(new MethodInsnNode(Opcodes.INVOKESTATIC, classNode.name, initializer.name, initializer.desc));
+            clinit.instructions.add(new FieldInsnNode(Opcodes.PUTSTATIC, holder.name, "value", descriptor));
+            clinit.instructions.add(new InsnNode(Opcodes.RETURN));
+            holder.methods.add(clinit);
+
+            classes.put(holder.name, holder);
+            // Only the inner classes of the outermost class get written
+            for (ClassNode outer = classNode; outer != null; outer = outer.outerClass == null ? null : classes.get(outer.outerClass))
+                outer.visitInnerClass(holder.name, classNode.name, "Lazy$" + name, Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC);
+        }
+
+        final BasaltField field = new BasaltField(classNode.name, name, type);
+        lazyFields.add(field);
+
+        final MethodNode accessor = new MethodNode(modifiersForNextElement.contains(TokenType.TOKEN_PRIVATE) ? Opcodes.ACC_PRIVATE : Opcodes.ACC_PUBLIC,
+                LAZY_PREFIX + name, initializer.desc, type.signature == null ? null : "()" + type.signature, null);
+        accessor.access |= Opcodes.ACC_STATIC;
+
+        annotationsForNextElement.add(LAZY_ANNOTATION);
+        annotationsForNextElement.add(nullable ? NULLABLE_ANNOTATION : NONNULL_ANNOTATION);
+        accessor.visibleAnnotations = new ArrayList<>(annotationsForNextElement);
+        annotationsForNextElement.clear();
+
+        accessor.instructions.add(lazyLoad(field));
+        accessor.instructions.add(new InsnNode(type.getOpcode(Opcodes.IRETURN)));
+        addMethodToCurrentClass(accessor);
+    }
+
+    private static String lazyHolderName(String owner, String name) {
+        return owner + "$Lazy$" + name;
+    }
+
+    private AbstractInsnNode lazyLoad(BasaltField field) {
+        final String descriptor = field.type.getDescriptor();
+        final ClassNode classNode = getCurrentClass();
+        if (classNode == null || !field.owner.equals(classNode.name))
+            return new MethodInsnNode(Opcodes.INVOKESTATIC, field.owner, LAZY_PREFIX + field.name, Type.getMethodDescriptor(field.type));
+
+        if (classNode.version >= Opcodes.V11)
+            return new LdcInsnNode(new ConstantDynamic(field.name, descriptor, CONSTANT_BOOTSTRAPS_INVOKE,
+                    new Handle(Opcodes.H_INVOKESTATIC, field.owner, LAZY_INITIALIZER_PREFIX + field.name, Type.getMethodDescriptor(field.type), false)));
+
+        return new FieldInsnNode(Opcodes.GETSTATIC, lazyHolderName(field.owner, field.name), "value", descriptor);
+    }
+
+    private void emitLazyLoad(BasaltField field) {
+        emit(lazyLoad(field));
+        notifyPushStack(field.type);
+    }
+
+    /**
+     * @param owner the class declaring the field, or null for a field that can be used by its name alone
+     */
+    private Optional<BasaltField> findLazyField(@Nullable String owner, String name) {
+        for (int i = lazyFields.size() - 1; i >= 0; i--) {
+            final BasaltField field = lazyFields.get(i);
+            if (field.name.equals(name) && (owner == null || field.owner.equals(owner)))
+                return Optional.of(field);
+        }
+
+        // Fields declared further down are known from the header of the class
+        final String headerOwner = owner != null ? owner : getCurrentClass() == null ? null : getCurrentClass().name;
+        final ClassHeader header = headerOwner == null ? null : runner.findHeader(headerOwner);
+        if (header == null)
+            return Optional.empty();
+
+        return header.findField(name)
+                .filter(ClassHeader.Field::lazy)
+                .map(x -> new BasaltField(headerOwner, x.name(), x.type()));
+    }
+
     private void emitToInit(AbstractInsnNode... nodes) {
         emitDelayedConstant();
         for (AbstractInsnNode node : nodes)
@@ -2936,6 +4187,7 @@ public class Compiler {
         } else returnType = peekLastStack();
 
         emit(new InsnNode(returnType.getOpcode(Opcodes.IRETURN)));
+        notifyPopStack();
 
         returned = true;
     }
@@ -2949,8 +4201,13 @@ public class Compiler {
             whileStatement();
         else if (match(TokenType.TOKEN_IF))
             ifStatement();
-        else if (match(TokenType.TOKEN_FOR))
+        else if (match(TokenType.TOKEN_FOR)) {
+            // The loop variable is only visible inside the loop
+            final Map<String, Local> outer = enterScope();
             forStatement();
+            exitScope(outer);
+        } else if (match(TokenType.TOKEN_WHEN))
+            whenStatement();
         else
             expressionStatement(clearStack, false);
     }
@@ -2993,6 +4250,27 @@ public class Compiler {
             instanceStack.addAll(compiler.instanceStack);
     }
 
+    // The loop never lets the array escape, so the copy values() hands out is only needed outside the enum itself
+    private void useCachedEnumValues() {
+        if (!(getCurrentMethod().instructions.getLast() instanceof MethodInsnNode call)
+                || call.getOpcode() != Opcodes.INVOKESTATIC
+                || !call.owner.equals(getCurrentClass().name)
+                || !call.name.equals("values")
+                || !call.desc.equals("()[L" + call.owner + ";"))
+            return;
+
+        final ClassHeader header = runner.findHeader(call.owner);
+        if (header == null || (header.access() & Opcodes.ACC_ENUM) == 0)
+            return;
+
+        final boolean generated = header.findMethod("values", 0)
+                .filter(x -> (x.access() & Opcodes.ACC_SYNTHETIC) != 0)
+                .isPresent();
+        if (generated)
+            getCurrentMethod().instructions.set(call,
+                    new FieldInsnNode(Opcodes.GETSTATIC, call.owner, ENUM_VALUES_FIELD, Type.getReturnType(call.desc).getDescriptor()));
+    }
+
     public void foreachStatement() {
         final String identifier = parser.getPrevious().content();
 
@@ -3002,19 +4280,81 @@ public class Compiler {
         consume(TokenType.TOKEN_IN, "Expected \"in\" after variable declaration!");
 
         expression();
-        if (!Iterable.class.isAssignableFrom(typeToClass(peekLastStack()))) {
+
+        if (match(TokenType.TOKEN_DOT_DOT, TokenType.TOKEN_DOT_DOT_LESS)) {
+            rangeForeachStatement(identifier, start);
+
+            return;
+        }
+
+        final Type iterableType = peekLastStack();
+        if (iterableType.getSort() == Type.ARRAY) {
+            useCachedEnumValues();
+
+            final Type elementType = Type.getType(iterableType.getDescriptor().substring(1));
+
+            indexedForeachStatement(identifier, start, elementType, true,
+                    collectionIndex -> emit(new VarInsnNode(Opcodes.ALOAD, collectionIndex), new InsnNode(Opcodes.ARRAYLENGTH)),
+                    (collectionIndex, indexIndex) -> emit(new VarInsnNode(Opcodes.ALOAD, collectionIndex),
+                            new VarInsnNode(Opcodes.ILOAD, indexIndex),
+                            new InsnNode(elementType.getOpcode(Opcodes.IALOAD))));
+
+            return;
+        }
+
+        final Class<?> iterableClass = typeToClass(iterableType);
+        final Method size = findOperator(iterableClass, OperatorType.SIZE);
+        final Method get = findOperator(iterableClass, OperatorType.SUBSCRIPT);
+        if (size != null && get != null && get.getParameterTypes()[0] == int.class) {
+            final Type erasedType = Type.getType(get.getReturnType());
+            final Type elementType = elementType(iterableType, erasedType);
+
+            indexedForeachStatement(identifier, start, elementType, false,
+                    collectionIndex -> emit(new VarInsnNode(Opcodes.ALOAD, collectionIndex),
+                            new MethodInsnNode(Opcodes.INVOKEVIRTUAL, iterableType.getInternalName(), size.getName(), Type.getMethodDescriptor(size))),
+                    (collectionIndex, indexIndex) -> {
+                        emit(new VarInsnNode(Opcodes.ALOAD, collectionIndex),
+                                new VarInsnNode(Opcodes.ILOAD, indexIndex),
+                                new MethodInsnNode(Opcodes.INVOKEVIRTUAL, iterableType.getInternalName(), get.getName(), Type.getMethodDescriptor(get)));
+                        if (!elementType.equals(erasedType))
+                            emit(new TypeInsnNode(Opcodes.CHECKCAST, elementType.getInternalName()));
+                    });
+
+            return;
+        }
+
+        if (!Iterable.class.isAssignableFrom(iterableClass)) {
             error("Last stack isn't an iterator!");
 
             return;
         }
 
-        String sig = notifyPopStack().signature;
-        if (sig.contains("<"))
-            sig = sig.substring(sig.indexOf("<") + 1, sig.length() - 2);
+        String sig = iterableType.signature;
+        if (sig != null && sig.contains("<"))
+            sig = sig.substring(sig.indexOf("<") + 1, sig.lastIndexOf(">"));
         else sig = "Ljava/lang/Object;";
 
         final Type sigType = Type.getType(sig);
 
+        // Indexing a random access list doesn't allocate an iterator, and lets the JIT drop range checks.
+        if (List.class.isAssignableFrom(iterableClass) && RandomAccess.class.isAssignableFrom(iterableClass)) {
+            indexedForeachStatement(identifier, start, sigType, false,
+                    collectionIndex -> emit(new VarInsnNode(Opcodes.ALOAD, collectionIndex),
+                            new MethodInsnNode(Opcodes.INVOKEINTERFACE, "java/util/List", "size", "()I")),
+                    (collectionIndex, indexIndex) -> {
+                        emit(new VarInsnNode(Opcodes.ALOAD, collectionIndex),
+                                new VarInsnNode(Opcodes.ILOAD, indexIndex),
+                                new MethodInsnNode(Opcodes.INVOKEINTERFACE, "java/util/List", "get", "(I)Ljava/lang/Object;"));
+                        notifyPushStack(StackTypes.OBJECT_TYPE);
+                        convertLastStackForType(sigType);
+                        notifyPopStack();
+                    });
+
+            return;
+        }
+
+        notifyPopStack();
+
         Local local = new Local(sigType, maxLocals, start);
         maxLocals += sigType.getSize();
 
@@ -3041,19 +4381,142 @@ public class Compiler {
 
         emit(new VarInsnNode(sigType.getOpcode(Opcodes.ISTORE), local.index));
 
-        blockOrStatement();
+        loopBody();
 
         emit(new JumpInsnNode(Opcodes.GOTO, l1));
 
         emit(l2);
     }
 
+    /**
+     * Loops over the collection on the stack by index, emitLength and emitElement get the local index of the collection.
+     * The length is only loaded once if it's hoisted, which is only safe if the collection can't grow.
+     */
+    private void indexedForeachStatement(String identifier, LabelNode start, Type elementType, boolean hoistLength,
+                                         Consumer<Integer> emitLength, BiConsumer<Integer, Integer> emitElement) {
+        notifyPopStack();
+
+        final int collectionIndex = maxLocals;
+        maxLocals++;
+        emit(new VarInsnNode(Opcodes.ASTORE, collectionIndex));
+
+        int lengthIndex = -1;
+        if (hoistLength) {
+            lengthIndex = maxLocals;
+            maxLocals++;
+
+            emitLength.accept(collectionIndex);
+            emit(new VarInsnNode(Opcodes.ISTORE, lengthIndex));
+        }
+
+        final int indexIndex = maxLocals;
+        maxLocals++;
+        emit(new InsnNode(Opcodes.ICONST_0), new VarInsnNode(Opcodes.ISTORE, indexIndex));
+
+        Local local = new Local(elementType, maxLocals, start);
+        maxLocals += elementType.getSize();
+
+        locals.put(identifier, local);
+
+        LabelNode l1 = new LabelNode();
+        LabelNode l2 = new LabelNode();
+        emit(l1);
+
+        emit(new VarInsnNode(Opcodes.ILOAD, indexIndex));
+        if (hoistLength)
+            emit(new VarInsnNode(Opcodes.ILOAD, lengthIndex));
+        else emitLength.accept(collectionIndex);
+        emit(new JumpInsnNode(Opcodes.IF_ICMPGE, l2));
+
+        emitElement.accept(collectionIndex, indexIndex);
+        emit(new VarInsnNode(elementType.getOpcode(Opcodes.ISTORE), local.index));
+
+        loopBody();
+
+        emit(new IincInsnNode(indexIndex, 1));
+        emit(new JumpInsnNode(Opcodes.GOTO, l1));
+
+        emit(l2);
+    }
+
+    private void rangeForeachStatement(String identifier, LabelNode start) {
+        final boolean exclusive = parser.getPrevious().type() == TokenType.TOKEN_DOT_DOT_LESS;
+
+        // The start stays on the stack until the end is known, a long end widens the whole loop
+        final boolean longStart = peekLastStack().equals(StackTypes.LONG);
+
+        expression();
+        final Type type = longStart || peekLastStack().equals(StackTypes.LONG) ? StackTypes.LONG : StackTypes.INT;
+        convertLastStackForType(type);
+        notifyPopStack();
+
+        final int endIndex = maxLocals;
+        maxLocals += type.getSize();
+        emit(new VarInsnNode(type.getOpcode(Opcodes.ISTORE), endIndex));
+
+        convertLastStackForType(type);
+        notifyPopStack();
+
+        Local local = new Local(type, maxLocals, start);
+        maxLocals += type.getSize();
+
+        locals.put(identifier, local);
+        emit(new VarInsnNode(type.getOpcode(Opcodes.ISTORE), local.index));
+
+        LabelNode l1 = new LabelNode();
+        LabelNode l2 = new LabelNode();
+        LabelNode body = new LabelNode();
+        emit(l1);
+
+        emitRangeCompare(type, local.index, endIndex, exclusive ? Opcodes.IFGE : Opcodes.IFGT, l2);
+        emit(body);
+
+        loopBody();
+
+        // Inclusive ranges stop before incrementing past the end, which overflows when it's the largest value of the type
+        if (!exclusive)
+            emitRangeCompare(type, local.index, endIndex, Opcodes.IFEQ, l2);
+
+        if (type.equals(StackTypes.LONG))
+            emit(new VarInsnNode(Opcodes.LLOAD, local.index),
+                    new InsnNode(Opcodes.LCONST_1),
+                    new InsnNode(Opcodes.LADD),
+                    new VarInsnNode(Opcodes.LSTORE, local.index));
+        else emit(new IincInsnNode(local.index, 1));
+        emit(new JumpInsnNode(Opcodes.GOTO, exclusive ? l1 : body));
+
+        emit(l2);
+    }
+
+    // Jumps if the loop variable compared to the end passes the IFxx condition
+    private void emitRangeCompare(Type type, int index, int endIndex, int condition, LabelNode target) {
+        emit(new VarInsnNode(type.getOpcode(Opcodes.ILOAD), index),
+                new VarInsnNode(type.getOpcode(Opcodes.ILOAD), endIndex));
+        if (type.equals(StackTypes.LONG))
+            emit(new InsnNode(Opcodes.LCMP), new JumpInsnNode(condition, target));
+        else emit(new JumpInsnNode(condition + (Opcodes.IF_ICMPEQ - Opcodes.IFEQ), target));
+    }
+
     public void blockOrStatement() {
         if (match(TokenType.TOKEN_LEFT_BRACE))
             block();
         else declaration();
     }
 
+    private void loopBody() {
+        final Set<String> facts = enterLoop();
+        blockOrStatement();
+        nonNullLocals.retainAll(facts);
+    }
+
+    // Nothing known before a loop survives into it, a later iteration may have reassigned it
+    private Set<String> enterLoop() {
+        final Set<String> facts = new HashSet<>(nonNullLocals);
+        nonNullLocals.clear();
+
+        return facts;
+    }
+
     public void forStatement() {
         if (match(TokenType.TOKEN_IDENTIFIER)) {
             foreachStatement();
@@ -3069,28 +4532,31 @@ public class Compiler {
         LabelNode l1 = new LabelNode();
         emit(l0);
 
-        expression();
-        DelayedInstruction delayedInstruction = this.delayedInstruction;
-        this.delayedInstruction = null;
-        if (delayedInstruction != null)
-            delayedInstruction.emitJump(this, l1);
+        final Set<String> facts = enterLoop();
 
-        consume(TokenType.TOKEN_SEMICOLON, "Expect \";\"");
-        if (!StackTypes.isTypeStackBoolean(notifyPopStack())) {
+        expression();
+        if (!StackTypes.isTypeStackBoolean(peekLastStack())) {
             error("Last stack is not a boolean!");
 
             return;
         }
 
+        emitIfEq(l1);
+
+        consume(TokenType.TOKEN_SEMICOLON, "Expect \";\"");
+
         AbstractInsnNode[] nodes = captureInstructions(compiler -> {
             compiler.expression();
             return null;
         }).k;
         clearStack();
 
+        // The increment was parsed first but only runs after the body
+        nonNullLocals.clear();
         if (match(TokenType.TOKEN_LEFT_BRACE))
             block();
         else declaration();
+        nonNullLocals.retainAll(facts);
 
         emit(nodes);
         emit(new JumpInsnNode(Opcodes.GOTO, l0));
@@ -3105,23 +4571,281 @@ public class Compiler {
             return;
         }
 
+        final NullTest test = takeNullTest();
+
         LabelNode labelNode = new LabelNode();
         LabelNode end = new LabelNode();
         emitIfEq(labelNode);
 
+        final Set<String> facts = new HashSet<>(nonNullLocals);
+        narrow(test, true);
+
         if (match(TokenType.TOKEN_LEFT_BRACE))
             block();
         else declaration();
 
+        final boolean thenExits = endsAbruptly();
+        final Set<String> thenFacts = new HashSet<>(nonNullLocals);
+
         emit(new JumpInsnNode(Opcodes.GOTO, end));
         emit(labelNode);
 
-        if (match(TokenType.TOKEN_ELSE))
+        restoreNonNullLocals(facts);
+        narrow(test, false);
+
+        boolean elseExits = false;
+        if (match(TokenType.TOKEN_ELSE)) {
             if (match(TokenType.TOKEN_LEFT_BRACE))
                 block();
             else declaration();
 
+            elseExits = endsAbruptly();
+        }
+
+        // A branch that returns or throws doesn't reach the end, so it doesn't weaken what is known there
+        if (elseExits && !thenExits)
+            restoreNonNullLocals(thenFacts);
+        else if (!thenExits)
+            nonNullLocals.retainAll(thenFacts);
+
+        emit(end);
+    }
+
+    public void when_(boolean canAssign) {
+        when(true);
+    }
+
+    public void whenStatement() {
+        when(false);
+    }
+
+    /**
+     * Ints are dispatched with a single switch instruction, enums with a switch over their ordinal
+     * and strings with a switch over their hash code followed by equals checks.
+     */
+    private void when(boolean isExpression) {
+        expression();
+        final Type subjectType = notifyPopStack();
+
+        final boolean isInt = switch (subjectType.getSort()) {
+            case Type.INT, Type.CHAR, Type.SHORT, Type.BYTE -> true;
+            default -> false;
+        };
+        final boolean isString = StackTypes.isTypeStackString(subjectType);
+        final List<String> enumConstants = isInt || isString ? null : enumConstants(subjectType);
+
+        if (!isInt && !isString && enumConstants == null) {
+            error("Can only use \"when\" on ints, strings and enums!");
+
+            return;
+        }
+
+        int subjectIndex = -1;
+        if (isString) {
+            subjectIndex = maxLocals;
+            maxLocals++;
+
+            emit(new VarInsnNode(Opcodes.ASTORE, subjectIndex));
+        } else if (enumConstants != null)
+            emit(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/Enum", "ordinal", "()I"));
+
+        final LabelNode dispatch = new LabelNode();
+        final LabelNode end = new LabelNode();
+        emit(dispatch);
+
+        final TreeMap<Integer, LabelNode> intCases = new TreeMap<>();
+        final Map<String, LabelNode> stringCases = new LinkedHashMap<>();
+
+        LabelNode defaultLabel = end;
+        Type resultType = null;
+
+        final Set<String> facts = new HashSet<>(nonNullLocals);
+        Set<String> reaching = null;
+
+        consume(TokenType.TOKEN_LEFT_BRACE, "Expected \"{\" after when subject!");
+
+        while (!check(TokenType.TOKEN_RIGHT_BRACE) && !check(TokenType.TOKEN_EOF)) {
+            final LabelNode arm = new LabelNode();
+
+            if (match(TokenType.TOKEN_ELSE)) {
+                if (defaultLabel != end)
+                    error("A when can only have one \"else\" case!");
+
+                defaultLabel = arm;
+            } else do {
+                boolean duplicate;
+                if (isString) {
+                    consume(TokenType.TOKEN_STRING, "Expected string constant!");
+
+                    final String content = parser.getPrevious().content();
+                    duplicate = stringCases.putIfAbsent(content.substring(1, content.length() - 1), arm) != null;
+                } else if (isInt) {
+                    final boolean negative = match(TokenType.TOKEN_MINUS);
+                    consume(TokenType.TOKEN_NUMBER, "Expected int constant!");
+
+                    // The sign is part of the constant, the magnitude of the smallest int doesn't fit one
+                    final int key;
+                    try {
+                        key = Integer.parseInt((negative ? "-" : "") + parser.getPrevious().content());
+                    } catch (NumberFormatException e) {
+                        errorAt(parser.getPrevious(), "\"" + (negative ? "-" : "") + parser.getPrevious().content() + "\" is not an int constant!");
+
+                        continue;
+                    }
+
+                    duplicate = intCases.putIfAbsent(key, arm) != null;
+                } else {
+                    final String constant = parseIdentifier("Expected enum constant!");
+
+                    final int ordinal = enumConstants.indexOf(constant);
+                    if (ordinal == -1) {
+                        error("\"" + constant + "\" is not a constant of " + subjectType.getClassName() + "!");
+
+                        return;
+                    }
+
+                    duplicate = intCases.putIfAbsent(ordinal, arm) != null;
+                }
+
+                if (duplicate)
+                    error("Duplicate case \"" + parser.getPrevious().content() + "\"!");
+            } while (match(TokenType.TOKEN_COMMA));
+
+            consume(TokenType.TOKEN_INTO, "Expected \"->\" after when case!");
+
+            emit(arm);
+            restoreNonNullLocals(facts);
+            if (isExpression) {
+                expression();
+                if (resultType == null)
+                    resultType = peekLastStack();
+                else convertLastStackForType(resultType);
+                notifyPopStack();
+
+                match(TokenType.TOKEN_SEMICOLON);
+            } else blockOrStatement();
+
+            if (!endsAbruptly()) {
+                if (reaching == null)
+                    reaching = new HashSet<>(nonNullLocals);
+                else reaching.retainAll(nonNullLocals);
+            }
+
+            emit(new JumpInsnNode(Opcodes.GOTO, end));
+        }
+
+        restoreNonNullLocals(facts);
+        if (reaching != null) {
+            if (defaultLabel == end)
+                nonNullLocals.retainAll(reaching);
+            else restoreNonNullLocals(reaching);
+        }
+
+        consume(TokenType.TOKEN_RIGHT_BRACE, "Expected \"}\" after when cases!");
+
+        if (isExpression && (defaultLabel == end || resultType == null)) {
+            error("A when expression needs an \"else\" case!");
+
+            return;
+        }
+
+        final InsnList dispatchInstructions = isString
+                ? stringSwitch(subjectIndex, stringCases, defaultLabel)
+                : intSwitch(intCases, defaultLabel);
+        getCurrentMethod(true).instructions.insert(dispatch, dispatchInstructions);
+
         emit(end);
+
+        if (isExpression)
+            notifyPushStack(resultType);
+    }
+
+    private List<String> enumConstants(Type type) {
+        if (type.getSort() != Type.OBJECT)
+            return null;
+
+        final ClassHeader header = runner.findHeader(type.getInternalName());
+        if (header != null) {
+            if ((header.access() & Opcodes.ACC_ENUM) == 0)
+                return null;
+
+            return header.fields().stream()
+                    .filter(x -> (x.access() & Opcodes.ACC_ENUM) != 0)
+                    .map(ClassHeader.Field::name)
+                    .toList();
+        }
+
+        final Class<?> clazz = typeToClass(type);
+        if (!clazz.isEnum())
+            return null;
+
+        return Arrays.stream(clazz.getEnumConstants())
+                .map(x -> ((Enum<?>) x).name())
+                .toList();
+    }
+
+    /**
+     * Picks between a table and a lookup switch the same way javac does.
+     */
+    private static InsnList intSwitch(TreeMap<Integer, LabelNode> cases, LabelNode defaultLabel) {
+        final InsnList instructions = new InsnList();
+
+        if (cases.isEmpty()) {
+            instructions.add(new InsnNode(Opcodes.POP));
+            instructions.add(new JumpInsnNode(Opcodes.GOTO, defaultLabel));
+
+            return instructions;
+        }
+
+        final int lo = cases.firstKey();
+        final int hi = cases.lastKey();
+
+        final long tableSpaceCost = 4 + ((long) hi - lo + 1);
+        final long tableTimeCost = 3;
+        final long lookupSpaceCost = 3 + 2 * (long) cases.size();
+        final long lookupTimeCost = cases.size();
+
+        if (tableSpaceCost + 3 * tableTimeCost <= lookupSpaceCost + 3 * lookupTimeCost) {
+            final LabelNode[] labels = new LabelNode[hi - lo + 1];
+            for (int i = 0; i < labels.length; i++)
+                labels[i] = cases.getOrDefault(lo + i, defaultLabel);
+
+            instructions.add(new TableSwitchInsnNode(lo, hi, defaultLabel, labels));
+        } else instructions.add(new LookupSwitchInsnNode(defaultLabel,
+                cases.keySet().stream().mapToInt(Integer::intValue).toArray(),
+                cases.values().toArray(LabelNode[]::new)));
+
+        return instructions;
+    }
+
+    private static InsnList stringSwitch(int subjectIndex, Map<String, LabelNode> cases, LabelNode defaultLabel) {
+        final Map<Integer, List<String>> buckets = new LinkedHashMap<>();
+        for (String key : cases.keySet())
+            buckets.computeIfAbsent(key.hashCode(), x -> new ArrayList<>()).add(key);
+
+        final TreeMap<Integer, LabelNode> bucketLabels = new TreeMap<>();
+        for (int hash : buckets.keySet())
+            bucketLabels.put(hash, new LabelNode());
+
+        final InsnList instructions = new InsnList();
+        instructions.add(new VarInsnNode(Opcodes.ALOAD, subjectIndex));
+        instructions.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/String", "hashCode", "()I"));
+        instructions.add(intSwitch(bucketLabels, defaultLabel));
+
+        for (Map.Entry<Integer, List<String>> bucket : buckets.entrySet()) {
+            instructions.add(bucketLabels.get(bucket.getKey()));
+
+            for (String key : bucket.getValue()) {
+                instructions.add(new VarInsnNode(Opcodes.ALOAD, subjectIndex));
+                instructions.add(new LdcInsnNode(key));
+                instructions.add(new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z"));
+                instructions.add(new JumpInsnNode(Opcodes.IFNE, cases.get(key)));
+            }
+
+            instructions.add(new JumpInsnNode(Opcodes.GOTO, defaultLabel));
+        }
+
+        return instructions;
     }
 
     public static String getSimpleName(final String name) {
@@ -3167,6 +4891,20 @@ public class Compiler {
                 return;
             } else classNode.superName = parseType("Expect superclass name");
 
+        final boolean isRecord = isMagic && annotationsForNextElement.stream().anyMatch(x -> x.desc.equals(JVM_RECORD_DESCRIPTOR));
+        if (isRecord && definedSuperclass) {
+            error("Records can't extend other classes!");
+
+            return;
+        }
+
+        final boolean isColumnar = annotationsForNextElement.stream().anyMatch(x -> x.desc.equals(COLUMNAR_DESCRIPTOR));
+        if (isColumnar && !isMagic) {
+            error("Only magic classes can be columnar!");
+
+            return;
+        }
+
         if (isMagic)
             consume(TokenType.TOKEN_LEFT_PAREN, "Expected \"(\" after class name");
 
@@ -3178,6 +4916,13 @@ public class Compiler {
         if (!definedSuperclass)
             classNode.superName = "java/lang/Object";
 
+        if (isRecord) {
+            classNode.version = Opcodes.V16;
+            classNode.access |= Opcodes.ACC_FINAL;
+            classNode.superName = "java/lang/Record";
+            classNode.recordComponents = new ArrayList<>();
+        }
+
         if (isEnum) {
             classNode.access |= Opcodes.ACC_FINAL;
             classNode.access |= Opcodes.ACC_SUPER;
@@ -3227,18 +4972,19 @@ public class Compiler {
                         new VarInsnNode(Opcodes.ILOAD, 2),
                         new MethodInsnNode(Opcodes.INVOKESPECIAL, "java/lang/Enum", "<init>", "(Ljava/lang/String;I)V", false));
             else emitToInit(new VarInsnNode(Opcodes.ALOAD, 0),
-                    new MethodInsnNode(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false));
+                    new MethodInsnNode(Opcodes.INVOKESPECIAL, classNode.superName, "<init>", "()V", false));
 
             addMethodToCurrentClass(new MethodNode(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null));
         } else currentMethod = 0;
 
+        final List<Pair<String, Type>> components = new ArrayList<>();
         if (isMagic) {
             MethodNode methodNode = new MethodNode();
             LabelNode labelNode = new LabelNode();
             emitTo(methodNode, labelNode);
 
             emitTo(methodNode, new VarInsnNode(Opcodes.ALOAD, 0),
-                    new MethodInsnNode(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false));
+                    new MethodInsnNode(Opcodes.INVOKESPECIAL, classNode.superName, "<init>", "()V", false));
 
             final List<Type> types = new ArrayList<>();
             final Map<String, Local> locals = new HashMap<>();
@@ -3262,10 +5008,12 @@ public class Compiler {
                     maxLocals += type.getSize();
 
                     int acc = Opcodes.ACC_PUBLIC;
-                    if (isFinal)
+                    if (isFinal || isRecord)
                         acc |= Opcodes.ACC_FINAL;
 
                     getCurrentClass().fields.add(new FieldNode(acc, arg, type.getDescriptor(), type.signature, null));
+                    if (isRecord)
+                        classNode.recordComponents.add(new RecordComponentNode(arg, type.getDescriptor(), type.signature));
 
                     emitTo(methodNode,
                             new VarInsnNode(Opcodes.ALOAD, 0));
@@ -3275,6 +5023,7 @@ public class Compiler {
                             new FieldInsnNode(Opcodes.PUTFIELD, getCurrentClass().name, arg, type.getDescriptor()));
 
                     types.add(type);
+                    components.add(new Pair<>(arg, type));
                 } while (match(TokenType.TOKEN_COMMA));
             }
 
@@ -3317,10 +5066,311 @@ public class Compiler {
             consume(TokenType.TOKEN_RIGHT_BRACE, "Expected \"}\" after class body");
         }
 
+        if (isMagic)
+            generateObjectMethods(classNode, simpleName, components, isRecord);
+
+        if (isEnum)
+            generateEnumMethods(classNode);
+
+        if (isColumnar) {
+            if (components.isEmpty()) {
+                error("Columnar classes need at least one field!");
+
+                return;
+            }
+
+            final Optional<Pair<String, Type>> reserved = components.stream().filter(x -> COLUMNAR_RESERVED_NAMES.contains(x.k())).findFirst();
+            if (reserved.isPresent()) {
+                error("\"" + reserved.get().k() + "\" can't be used as a field name of columnar classes!");
+
+                return;
+            }
+
+            final ClassNode columns = ColumnarCompanion.generate(classNode, components);
+            classes.put(columns.name, columns);
+
+            classNode.visitInnerClass(columns.name, classNode.name, "Columns", Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL);
+            if (nested)
+                classes.get(parentName).visitInnerClass(columns.name, classNode.name, "Columns", Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL);
+        }
+
         if (nested)
             currentClass = parentName;
     }
 
+    /**
+     * Generates equals, hashCode and toString over the components of a magic class, methods declared
+     * in the class body win. Records link them through ObjectMethods, everything else gets straight-line bytecode.
+     */
+    private void generateObjectMethods(ClassNode classNode, String simpleName, List<Pair<String, Type>> components, boolean isRecord) {
+        final Type classType = Type.getObjectType(classNode.name);
+
+        if (isRecord) {
+            for (Pair<String, Type> component : components) {
+                final String descriptor = Type.getMethodDescriptor(component.v());
+                if (hasMethod(classNode, component.k(), descriptor))
+                    continue;
+
+                final MethodNode accessor = new MethodNode(Opcodes.ACC_PUBLIC, component.k(), descriptor, null, null);
+                emitTo(accessor,
+                        new VarInsnNode(Opcodes.ALOAD, 0),
+                        new FieldInsnNode(Opcodes.GETFIELD, classNode.name, component.k(), component.v().getDescriptor()),
+                        new InsnNode(component.v().getOpcode(Opcodes.IRETURN)));
+                classNode.methods.add(accessor);
+            }
+        }
+
+        final MethodNode equals = new MethodNode(Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL, "equals", "(Ljava/lang/Object;)Z", null, null);
+        final MethodNode hashCode = new MethodNode(Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL, "hashCode", "()I", null, null);
+        final MethodNode toString = new MethodNode(Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL, "toString", "()Ljava/lang/String;", null, null);
+
+        if (isRecord) {
+            final Object[] bootstrapArguments = new Object[components.size() + 2];
+            bootstrapArguments[0] = classType;
+            bootstrapArguments[1] = components.stream().map(Pair::k).collect(Collectors.joining(";"));
+            for (int i = 0; i < components.size(); i++) {
+                final Pair<String, Type> component = components.get(i);
+                bootstrapArguments[i + 2] = new Handle(Opcodes.H_GETFIELD, classNode.name, component.k(), component.v().getDescriptor(), false);
+            }
+
+            emitTo(equals,
+                    new VarInsnNode(Opcodes.ALOAD, 0),
+                    new VarInsnNode(Opcodes.ALOAD, 1),
+                    new InvokeDynamicInsnNode("equals", "(" + classType.getDescriptor() + "Ljava/lang/Object;)Z", OBJECT_METHODS_BOOTSTRAP, bootstrapArguments),
+                    new InsnNode(Opcodes.IRETURN));
+            emitTo(hashCode,
+                    new VarInsnNode(Opcodes.ALOAD, 0),
+                    new InvokeDynamicInsnNode("hashCode", "(" + classType.getDescriptor() + ")I", OBJECT_METHODS_BOOTSTRAP, bootstrapArguments),
+                    new InsnNode(Opcodes.IRETURN));
+            emitTo(toString,
+                    new VarInsnNode(Opcodes.ALOAD, 0),
+                    new InvokeDynamicInsnNode("toString", "(" + classType.getDescriptor() + ")Ljava/lang/String;", OBJECT_METHODS_BOOTSTRAP, bootstrapArguments),
+                    new InsnNode(Opcodes.ARETURN));
+        } else {
+            emitEquals(equals, classNode.name, components);
+            emitHashCode(hashCode, classNode.name, components);
+            emitToString(toString, classNode.name, simpleName, components);
+        }
+
+        for (MethodNode methodNode : List.of(equals, hashCode, toString))
+            if (!hasMethod(classNode, methodNode.name, methodNode.desc))
+                classNode.methods.add(methodNode);
+    }
+
+    /**
+     * Generates the members every enum has: the cached $VALUES array, values() handing out a copy of it
+     * and valueOf, which switches on the hash of the name instead of going through Enum.valueOf's lazily built map.
+     */
+    private void generateEnumMethods(ClassNode classNode) {
+        final Type classType = Type.getObjectType(classNode.name);
+        final String arrayDescriptor = "[" + classType.getDescriptor();
+        final List<FieldNode> constants = classNode.fields.stream()
+                .filter(x -> (x.access & Opcodes.ACC_ENUM) != 0)
+                .toList();
+
+        classNode.fields.add(new FieldNode(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC,
+                ENUM_VALUES_FIELD, arrayDescriptor, null, null));
+
+        final MethodNode createValues = new MethodNode(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC,
+                "$values", "()" + arrayDescriptor, null, null);
+        emitTo(createValues,
+                new LdcInsnNode(constants.size()),
+                new TypeInsnNode(Opcodes.ANEWARRAY, classNode.name));
+        for (int i = 0; i < constants.size(); i++)
+            emitTo(createValues,
+                    new InsnNode(Opcodes.DUP),
+                    new LdcInsnNode(i),
+                    new FieldInsnNode(Opcodes.GETSTATIC, classNode.name, constants.get(i).name, classType.getDescriptor()),
+                    new InsnNode(Opcodes.AASTORE));
+        emitTo(createValues, new InsnNode(Opcodes.ARETURN));
+        classNode.methods.add(createValues);
+
+        // Filled right after the last constant, static initializers further down can already ask for values()
+        final MethodNode clinit = classNode.methods.stream()
+                .filter(x -> x.name.equals("<clinit>"))
+                .findFirst()
+                .orElseThrow();
+        final InsnList fillValues = new InsnList();
+        fillValues.add(new MethodInsnNode(Opcodes.INVOKESTATIC, classNode.name, createValues.name, createValues.desc, false));
+        fillValues.add(new FieldInsnNode(Opcodes.PUTSTATIC, classNode.name, ENUM_VALUES_FIELD, arrayDescriptor));
+
+        AbstractInsnNode lastConstant = null;
+        for (AbstractInsnNode node : clinit.instructions)
+            if (node instanceof FieldInsnNode field && field.getOpcode() == Opcodes.PUTSTATIC
+                    && field.owner.equals(classNode.name)
+                    && constants.stream().anyMatch(x -> x.name.equals(field.name)))
+                lastConstant = node;
+
+        if (lastConstant == null)
+            clinit.instructions.insert(fillValues);
+        else clinit.instructions.insert(lastConstant, fillValues);
+
+        if (!hasMethod(classNode, "values", "()" + arrayDescriptor)) {
+            final MethodNode values = new MethodNode(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "values", "()" + arrayDescriptor, null, null);
+            emitTo(values,
+                    new FieldInsnNode(Opcodes.GETSTATIC, classNode.name, ENUM_VALUES_FIELD, arrayDescriptor),
+                    new MethodInsnNode(Opcodes.INVOKEVIRTUAL, arrayDescriptor, "clone", "()Ljava/lang/Object;", false),
+                    new TypeInsnNode(Opcodes.CHECKCAST, arrayDescriptor),
+                    new InsnNode(Opcodes.ARETURN));
+            classNode.methods.add(values);
+        }
+
+        final String valueOfDescriptor = Type.getMethodDescriptor(classType, Type.getType(String.class));
+        if (hasMethod(classNode, "valueOf", valueOfDescriptor))
+            return;
+
+        final MethodNode valueOf = new MethodNode(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "valueOf", valueOfDescriptor, null, null);
+        final LabelNode noConstant = new LabelNode();
+        final Map<String, LabelNode> cases = new LinkedHashMap<>();
+        for (FieldNode constant : constants)
+            cases.put(constant.name, new LabelNode());
+
+        emitTo(valueOf,
+                new VarInsnNode(Opcodes.ALOAD, 0),
+                new LdcInsnNode("Name is null"),
+                new MethodInsnNode(Opcodes.INVOKESTATIC, "java/util/Objects", "requireNonNull", "(Ljava/lang/Object;Ljava/lang/String;)Ljava/lang/Object;", false),
+                new InsnNode(Opcodes.POP));
+        if (!cases.isEmpty())
+            valueOf.instructions.add(stringSwitch(0, cases, noConstant));
+
+        for (Map.Entry<String, LabelNode> constant : cases.entrySet())
+            emitTo(valueOf,
+                    constant.getValue(),
+                    new FieldInsnNode(Opcodes.GETSTATIC, classNode.name, constant.getKey(), classType.getDescriptor()),
+                    new InsnNode(Opcodes.ARETURN));
+
+        emitTo(valueOf,
+                noConstant,
+                new TypeInsnNode(Opcodes.NEW, "java/lang/IllegalArgumentException"),
+                new InsnNode(Opcodes.DUP),
+                new LdcInsnNode("No enum constant " + classType.getClassName() + "."),
+                new VarInsnNode(Opcodes.ALOAD, 0),
+                new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/String", "concat", "(Ljava/lang/String;)Ljava/lang/String;", false),
+                new MethodInsnNode(Opcodes.INVOKESPECIAL, "java/lang/IllegalArgumentException", "<init>", "(Ljava/lang/String;)V", false),
+                new InsnNode(Opcodes.ATHROW));
+        classNode.methods.add(valueOf);
+    }
+
+    private static boolean hasMethod(ClassNode classNode, String name, String descriptor) {
+        return classNode.methods.stream().anyMatch(x -> name.equals(x.name) && descriptor.equals(x.desc));
+    }
+
+    private void emitEquals(MethodNode methodNode, String owner, List<Pair<String, Type>> components) {
+        final LabelNode notSame = new LabelNode();
+        final LabelNode sameType = new LabelNode();
+        final LabelNode notEqual = new LabelNode();
+
+        emitTo(methodNode,
+                new VarInsnNode(Opcodes.ALOAD, 0),
+                new VarInsnNode(Opcodes.ALOAD, 1),
+                new JumpInsnNode(Opcodes.IF_ACMPNE, notSame),
+                new InsnNode(Opcodes.ICONST_1),
+                new InsnNode(Opcodes.IRETURN),
+                notSame,
+                new VarInsnNode(Opcodes.ALOAD, 1),
+                new TypeInsnNode(Opcodes.INSTANCEOF, owner),
+                new JumpInsnNode(Opcodes.IFNE, sameType),
+                new InsnNode(Opcodes.ICONST_0),
+                new InsnNode(Opcodes.IRETURN),
+                sameType,
+                new VarInsnNode(Opcodes.ALOAD, 1),
+                new TypeInsnNode(Opcodes.CHECKCAST, owner),
+                new VarInsnNode(Opcodes.ASTORE, 2));
+
+        // Cheap primitive comparisons go first so mismatches bail out before any equals call.
+        final List<Pair<String, Type>> ordered = new ArrayList<>(components);
+        ordered.sort(Comparator.comparing(x -> isReference(x.v())));
+
+        for (Pair<String, Type> component : ordered) {
+            final String descriptor = component.v().getDescriptor();
+
+            emitTo(methodNode,
+                    new VarInsnNode(Opcodes.ALOAD, 0),
+                    new FieldInsnNode(Opcodes.GETFIELD, owner, component.k(), descriptor),
+                    new VarInsnNode(Opcodes.ALOAD, 2),
+                    new FieldInsnNode(Opcodes.GETFIELD, owner, component.k(), descriptor));
+
+            switch (component.v().getSort()) {
+                case Type.LONG -> emitTo(methodNode,
+                        new InsnNode(Opcodes.LCMP),
+                        new JumpInsnNode(Opcodes.IFNE, notEqual));
+                case Type.FLOAT -> emitTo(methodNode,
+                        new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/Float", "compare", "(FF)I", false),
+                        new JumpInsnNode(Opcodes.IFNE, notEqual));
+                case Type.DOUBLE -> emitTo(methodNode,
+                        new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/Double", "compare", "(DD)I", false),
+                        new JumpInsnNode(Opcodes.IFNE, notEqual));
+                case Type.OBJECT, Type.ARRAY -> emitTo(methodNode,
+                        new MethodInsnNode(Opcodes.INVOKESTATIC, "java/util/Objects", "equals", "(Ljava/lang/Object;Ljava/lang/Object;)Z", false),
+                        new JumpInsnNode(Opcodes.IFEQ, notEqual));
+                default -> emitTo(methodNode,
+                        new JumpInsnNode(Opcodes.IF_ICMPNE, notEqual));
+            }
+        }
+
+        emitTo(methodNode,
+                new InsnNode(Opcodes.ICONST_1),
+                new InsnNode(Opcodes.IRETURN),
+                notEqual,
+                new InsnNode(Opcodes.ICONST_0),
+                new InsnNode(Opcodes.IRETURN));
+    }
+
+    private void emitHashCode(MethodNode methodNode, String owner, List<Pair<String, Type>> components) {
+        emitTo(methodNode, new InsnNode(Opcodes.ICONST_0));
+
+        for (Pair<String, Type> component : components) {
+            final Type type = component.v();
+
+            emitTo(methodNode,
+                    new IntInsnNode(Opcodes.BIPUSH, 31),
+                    new InsnNode(Opcodes.IMUL),
+                    new VarInsnNode(Opcodes.ALOAD, 0),
+                    new FieldInsnNode(Opcodes.GETFIELD, owner, component.k(), type.getDescriptor()));
+
+            if (isReference(type))
+                emitTo(methodNode, new MethodInsnNode(Opcodes.INVOKESTATIC, "java/util/Objects", "hashCode", "(Ljava/lang/Object;)I", false));
+            else if (type.getSort() != Type.INT)
+                emitTo(methodNode, new MethodInsnNode(Opcodes.INVOKESTATIC, boxedType(type).getInternalName(), "hashCode", "(" + type.getDescriptor() + ")I", false));
+
+            emitTo(methodNode, new InsnNode(Opcodes.IADD));
+        }
+
+        emitTo(methodNode, new InsnNode(Opcodes.IRETURN));
+    }
+
+    private void emitToString(MethodNode methodNode, String owner, String simpleName, List<Pair<String, Type>> components) {
+        emitTo(methodNode,
+                new TypeInsnNode(Opcodes.NEW, "java/lang/StringBuilder"),
+                new InsnNode(Opcodes.DUP),
+                new LdcInsnNode(simpleName + "["),
+                new MethodInsnNode(Opcodes.INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "(Ljava/lang/String;)V", false));
+
+        for (int i = 0; i < components.size(); i++) {
+            final Pair<String, Type> component = components.get(i);
+            final Type type = component.v();
+
+            final String appended = switch (type.getSort()) {
+                case Type.BOOLEAN, Type.CHAR, Type.INT, Type.LONG, Type.FLOAT, Type.DOUBLE -> type.getDescriptor();
+                case Type.BYTE, Type.SHORT -> "I";
+                default -> type.equals(StackTypes.STRING_TYPE) ? "Ljava/lang/String;" : "Ljava/lang/Object;";
+            };
+
+            emitTo(methodNode,
+                    new LdcInsnNode((i == 0 ? "" : ", ") + component.k() + "="),
+                    new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false),
+                    new VarInsnNode(Opcodes.ALOAD, 0),
+                    new FieldInsnNode(Opcodes.GETFIELD, owner, component.k(), type.getDescriptor()),
+                    new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(" + appended + ")Ljava/lang/StringBuilder;", false));
+        }
+
+        emitTo(methodNode,
+                new LdcInsnNode("]"),
+                new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "append", "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false),
+                new MethodInsnNode(Opcodes.INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false),
+                new InsnNode(Opcodes.ARETURN));
+    }
+
     public void emitTo(MethodNode methodNode, AbstractInsnNode... insnNode) {
         for (AbstractInsnNode node : insnNode)
             methodNode.instructions.add(node);
@@ -3349,7 +5399,7 @@ public class Compiler {
     }
 
     public void enumField() {
-        int index = 0;
+        int index = (int) getCurrentClass().fields.stream().filter(x -> (x.access & Opcodes.ACC_ENUM) != 0).count();
 
         final int access = Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_STATIC | Opcodes.ACC_ENUM;
         final String className = "L" + getCurrentClass().name + ";";
@@ -3363,9 +5413,9 @@ public class Compiler {
                             className, null, null));
 
             emit(new TypeInsnNode(Opcodes.NEW, getCurrentClass().name));
-            emit(new InsnNode(Opcodes.DUP));
-            emitConstant(identifier);
-            emitConstant(index);
+            emit(new InsnNode(Opcodes.DUP),
+                    new LdcInsnNode(identifier),
+                    new LdcInsnNode(index));
 
             emit(new MethodInsnNode(
                     Opcodes.INVOKESPECIAL,
@@ -3380,8 +5430,6 @@ public class Compiler {
 
             index++;
         } while (match(TokenType.TOKEN_COMMA));
-
-        emit(new InsnNode(Opcodes.RETURN));
     }
 
     public void whileStatement() {
@@ -3390,17 +5438,24 @@ public class Compiler {
 
         emit(start);
 
+        final Set<String> facts = enterLoop();
+
         expression();
         if (!StackTypes.isTypeStackBoolean(peekLastStack()))
             return;
 
+        final NullTest test = takeNullTest();
         emitIfEq(end);
+
+        narrow(test, true);
         if (match(TokenType.TOKEN_LEFT_BRACE))
             block();
         else declaration();
+        nonNullLocals.retainAll(facts);
         emit(new JumpInsnNode(Opcodes.GOTO, start));
 
         emit(end);
+        narrow(test, false);
     }
 
     public void synchronize() {
@@ -3409,7 +5464,7 @@ public class Compiler {
         while (parser.getCurrent().type() != TokenType.TOKEN_EOF) {
             if (parser.getPrevious().type() == TokenType.TOKEN_SEMICOLON) return;
             switch (parser.getCurrent().type()) {
-                case TOKEN_CLASS, TOKEN_TRAIT, TOKEN_ENUM, TOKEN_FN, TOKEN_LET, TOKEN_FOR, TOKEN_IF, TOKEN_WHILE, TOKEN_RETURN -> {
+                case TOKEN_CLASS, TOKEN_TRAIT, TOKEN_ENUM, TOKEN_FN, TOKEN_LET, TOKEN_FOR, TOKEN_IF, TOKEN_WHEN, TOKEN_WHILE, TOKEN_RETURN -> {
                     return;
                 }
 
@@ -3421,6 +5476,8 @@ public class Compiler {
     }
 
     public void compile(String source) {
+        runner.putHeaders(DeclarationPass.scan(filePackage, fileName, runner, source));
+
         scanner.source = source;
 
         parser.setHadError(false);
@@ -3440,6 +5497,16 @@ public class Compiler {
     public byte[] compileToByteArray(String source) {
         compile(source);
 
+        return toByteArray(getCurrentClass());
+    }
+
+    public static byte[] toByteArray(ClassNode classNode) {
+        Optimizer.optimize(classNode);
+
+        return write(classNode);
+    }
+
+    static byte[] write(ClassNode classNode) {
         ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS) {
             @Override
             protected String getCommonSuperClass(String type1, String type2) {
@@ -3449,7 +5516,7 @@ public class Compiler {
                 return super.getCommonSuperClass(type1, type2);
             }
         };
-        getCurrentClass().accept(new ClassVisitor(Opcodes.ASM9, cw) {
+        classNode.accept(new ClassVisitor(Opcodes.ASM9, cw) {
             @Override
             public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
                 // The InstructionAdapter correct some op codes to more optimized alternatives.
@@ -3465,14 +5532,31 @@ public class Compiler {
         final byte[] bytes = compileToByteArray(source);
 
         runner.classes.put(getCurrentClass().name.replace("/", "."), bytes);
+        for (InnerClassNode innerClass : getCurrentClass().innerClasses) {
+            final ClassNode classNode = classes.get(innerClass.name);
+            if (classNode != null && !innerClass.name.equals(getCurrentClass().name))
+                runner.classes.put(innerClass.name.replace("/", "."), toByteArray(classNode));
+        }
+    }
+
+    /**
+     * Drops the trees of the current class and its nested classes, their bytecode has to be written already.
+     */
+    public void forgetClasses() {
+        final String name = getCurrentClass().name;
+
+        classes.keySet().removeIf(x -> x.equals(name) || x.startsWith(name + "$"));
     }
 
     @SuppressWarnings("unused")
     public static void compileAndRun(String source, String... arguments) throws InvocationTargetException {
-        EphemeralRunner runner = new EphemeralRunner(Thread.currentThread().getContextClassLoader());
+        final ClassLoader parent = Thread.currentThread().getContextClassLoader();
 
-        new Compiler("zip.sodium.generated", "Main", runner).compileToEphemeralRunner(source);
+        // Every run still gets fresh classes, only the compilation is shared
+        EphemeralRunner runner = EphemeralRunner.disposable(parent);
+        final ScriptCache.Script script = ScriptCache.DEFAULT.compile(source, parent);
+        runner.classes.putAll(script.classes());
 
-        runner.run("zip.sodium.generated.Main", arguments);
+        runner.run(script.className(), arguments);
     }
 }
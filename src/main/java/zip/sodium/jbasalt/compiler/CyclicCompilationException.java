@@ -0,0 +1,27 @@
+package zip.sodium.jbasalt.compiler;
+
+import java.io.File;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Thrown when compiling a source needs a class of a source that can only be compiled once the first one is,
+ * waiting for it would never return.
+ */
+public class CyclicCompilationException extends RuntimeException {
+    private final List<File> sources;
+
+    public CyclicCompilationException(List<File> sources) {
+        super("Sources need each other's classes to compile: " + sources.stream()
+                .map(File::getName)
+                .collect(Collectors.joining(" -> ")));
+        this.sources = List.copyOf(sources);
+    }
+
+    /**
+     * The sources of the cycle in the order they need each other, the first one is repeated at the end.
+     */
+    public List<File> getSources() {
+        return sources;
+    }
+}
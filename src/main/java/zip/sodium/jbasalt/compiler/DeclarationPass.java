@@ -0,0 +1,367 @@
+package zip.sodium.jbasalt.compiler;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import zip.sodium.jbasalt.token.TokenType;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Records class, field and function signatures of a source without compiling any bodies.
+ * Bodies are skipped by brace matching, so this is a lot cheaper than a full compilation
+ * and allows looking up members which are declared further down or in another file.
+ * <p>
+ * What runs in parallel thanks to the headers are sources: a source is compiled against the headers of its imports,
+ * so the precompiler and the Gradle workers compile the sources of a project side by side, an import doesn't have
+ * to be compiled first. The bodies of a single source are still compiled one after another, the compiler addresses methods
+ * by their index in {@code ClassNode.methods} and nested compilers share one parser.
+ */
+public final class DeclarationPass {
+    private final Compiler compiler;
+    private final String packagePath;
+
+    private final List<ClassHeader> headers = new ArrayList<>();
+    private final List<String> annotations = new ArrayList<>();
+
+    private DeclarationPass(String filePackage, String fileName, EphemeralRunner runner, String source) {
+        compiler = new Compiler(filePackage, fileName, runner);
+        compiler.scanner.source = source;
+        packagePath = filePackage.replace(".", "/");
+
+        // Declarations are compiled properly later on, errors are reported there.
+        compiler.parser.setPanicMode(true);
+    }
+
+    public static List<ClassHeader> scan(String filePackage, String fileName, EphemeralRunner runner, String source) {
+        final DeclarationPass pass = new DeclarationPass(filePackage, fileName, runner, source);
+        pass.file();
+
+        return pass.headers;
+    }
+
+    /**
+     * The classes a source imports by their binary name, nothing else is looked at.
+     */
+    public static List<String> imports(String fileName, EphemeralRunner runner, String source) {
+        final DeclarationPass pass = new DeclarationPass("", fileName, runner, source);
+        final List<String> imports = new ArrayList<>();
+
+        pass.compiler.advance();
+        while (!pass.compiler.check(TokenType.TOKEN_EOF)) {
+            if (pass.compiler.match(TokenType.TOKEN_IMPORT))
+                imports.add(pass.compiler.parseImportType(null));
+            else pass.compiler.advance();
+        }
+
+        return imports;
+    }
+
+    private void file() {
+        compiler.advance();
+
+        while (!compiler.check(TokenType.TOKEN_EOF)) {
+            final Set<TokenType> modifiers = modifiers();
+
+            if (compiler.match(TokenType.TOKEN_IMPORT)) {
+                final String type = compiler.parseImportType(null);
+                compiler.classNameReplacements.put(type.substring(type.lastIndexOf('.') + 1), type.replace(".", "/"));
+            } else if (compiler.match(TokenType.TOKEN_CLASS, TokenType.TOKEN_ENUM, TokenType.TOKEN_TRAIT))
+                classDeclaration(null, modifiers);
+            else compiler.advance();
+        }
+    }
+
+    private Set<TokenType> modifiers() {
+        final Set<TokenType> modifiers = EnumSet.noneOf(TokenType.class);
+        annotations.clear();
+
+        for (;;) {
+            if (compiler.match(TokenType.TOKEN_INLINE, TokenType.TOKEN_PRIVATE, TokenType.TOKEN_STATIC, TokenType.TOKEN_CONST, TokenType.TOKEN_LAZY,
+                    TokenType.TOKEN_FINAL, TokenType.TOKEN_MAGIC, TokenType.TOKEN_SETTER, TokenType.TOKEN_GETTER))
+                modifiers.add(compiler.parser.getPrevious().type());
+            else if (compiler.match(TokenType.TOKEN_AT)) {
+                annotations.add(compiler.parseType(null));
+                if (compiler.match(TokenType.TOKEN_LEFT_PAREN))
+                    skipBalanced(TokenType.TOKEN_LEFT_PAREN, TokenType.TOKEN_RIGHT_PAREN);
+            } else return modifiers;
+        }
+    }
+
+    private void classDeclaration(String outerName, Set<TokenType> modifiers) {
+        final TokenType kind = compiler.parser.getPrevious().type();
+        final boolean columnar = annotations.contains("Lbasalt/lang/Columnar;");
+        final boolean annotation = kind == TokenType.TOKEN_TRAIT && compiler.match(TokenType.TOKEN_AT);
+
+        final String simpleName = compiler.parseIdentifier(null);
+        final String name = outerName == null
+                ? packagePath + "/" + simpleName
+                : packagePath + "/" + Compiler.getSimpleName(outerName) + "$" + simpleName;
+
+        int access = modifiers.contains(TokenType.TOKEN_PRIVATE) ? Opcodes.ACC_PRIVATE : Opcodes.ACC_PUBLIC;
+        if (kind == TokenType.TOKEN_ENUM)
+            access |= Opcodes.ACC_ENUM | Opcodes.ACC_FINAL;
+        else if (kind == TokenType.TOKEN_TRAIT)
+            access |= Opcodes.ACC_INTERFACE | Opcodes.ACC_ABSTRACT;
+        if (annotation)
+            access |= Opcodes.ACC_ANNOTATION;
+
+        String superName = kind == TokenType.TOKEN_ENUM ? "java/lang/Enum" : "java/lang/Object";
+        if (compiler.match(TokenType.TOKEN_COLON)) {
+            final String type = compiler.parseType(null);
+            superName = type.startsWith("L") && type.endsWith(";") ? type.substring(1, type.length() - 1) : type;
+        }
+        if (modifiers.contains(TokenType.TOKEN_MAGIC) && annotations.contains("Lbasalt/lang/JvmRecord;"))
+            superName = "java/lang/Record";
+
+        final ClassHeader header = new ClassHeader(name, superName, access, new ArrayList<>(), new ArrayList<>());
+        headers.add(header);
+
+        boolean explicitConstructor = false;
+        if (modifiers.contains(TokenType.TOKEN_MAGIC) && compiler.match(TokenType.TOKEN_LEFT_PAREN)) {
+            final List<Type> types = new ArrayList<>();
+
+            if (!compiler.check(TokenType.TOKEN_RIGHT_PAREN)) {
+                do {
+                    int fieldAccess = Opcodes.ACC_PUBLIC;
+                    if (compiler.match(TokenType.TOKEN_FINAL))
+                        fieldAccess |= Opcodes.ACC_FINAL;
+
+                    final String fieldName = compiler.parseIdentifier(null);
+                    final Type type = parameterType();
+
+                    if (type != null)
+                        header.fields().add(new ClassHeader.Field(fieldName, type, fieldAccess, false, false));
+                    types.add(type);
+                } while (compiler.match(TokenType.TOKEN_COMMA));
+            }
+
+            compiler.consume(TokenType.TOKEN_RIGHT_PAREN, null);
+
+            if (!types.contains(null))
+                header.methods().add(new ClassHeader.Method("<init>", Type.getMethodDescriptor(Type.VOID_TYPE, types.toArray(Type[]::new)), Opcodes.ACC_PUBLIC, false));
+
+            if (columnar) {
+                final Type companion = Type.getObjectType(name + "$Columns");
+                header.methods().add(new ClassHeader.Method("columns", Type.getMethodDescriptor(companion), Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, false));
+                header.methods().add(new ClassHeader.Method("columns", Type.getMethodDescriptor(companion, Type.INT_TYPE), Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, false));
+            }
+        }
+
+        if (compiler.match(TokenType.TOKEN_LEFT_BRACE)) {
+            while (!compiler.check(TokenType.TOKEN_RIGHT_BRACE) && !compiler.check(TokenType.TOKEN_EOF)) {
+                final Set<TokenType> memberModifiers = modifiers();
+
+                if (compiler.match(TokenType.TOKEN_FN))
+                    explicitConstructor |= function(header, memberModifiers);
+                else if (compiler.match(TokenType.TOKEN_LET))
+                    field(header, memberModifiers);
+                else if (compiler.match(TokenType.TOKEN_CLASS))
+                    classDeclaration(name, memberModifiers);
+                else if (kind == TokenType.TOKEN_ENUM && compiler.check(TokenType.TOKEN_IDENTIFIER)) {
+                    do {
+                        header.fields().add(new ClassHeader.Field(compiler.parseIdentifier(null), Type.getObjectType(name),
+                                Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL | Opcodes.ACC_ENUM, false, false));
+                    } while (compiler.match(TokenType.TOKEN_COMMA));
+                } else compiler.advance();
+            }
+
+            compiler.consume(TokenType.TOKEN_RIGHT_BRACE, null);
+        }
+
+        if (kind == TokenType.TOKEN_ENUM) {
+            header.methods().add(new ClassHeader.Method("<init>", "(Ljava/lang/String;I)V", Opcodes.ACC_PRIVATE, false));
+
+            // Generated unless declared in the body, synthetic here so the compiler knows values() hands out a copy of $VALUES
+            final Type enumType = Type.getObjectType(name);
+            if (header.findMethod("values", 0).isEmpty())
+                header.methods().add(new ClassHeader.Method("values", Type.getMethodDescriptor(Type.getType("[" + enumType.getDescriptor())),
+                        Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, false));
+            if (header.findMethod("valueOf", 1).isEmpty())
+                header.methods().add(new ClassHeader.Method("valueOf", Type.getMethodDescriptor(enumType, Type.getType(String.class)),
+                        Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, false));
+        }
+        else if (kind == TokenType.TOKEN_CLASS && !explicitConstructor && !modifiers.contains(TokenType.TOKEN_MAGIC))
+            header.methods().add(new ClassHeader.Method("<init>", "()V", Opcodes.ACC_PUBLIC, false));
+    }
+
+    /**
+     * @return whether the function is a constructor which replaces the default one
+     */
+    private boolean function(ClassHeader header, Set<TokenType> modifiers) {
+        final boolean inline = modifiers.contains(TokenType.TOKEN_INLINE);
+        boolean isStatic = inline || modifiers.contains(TokenType.TOKEN_STATIC) || modifiers.contains(TokenType.TOKEN_CONST);
+
+        final List<Type> parameters = new ArrayList<>();
+
+        String name;
+        if (modifiers.contains(TokenType.TOKEN_MAGIC))
+            name = "magic^" + compiler.parseIdentifier(null);
+        else if (!compiler.check(TokenType.TOKEN_IDENTIFIER))
+            name = "<init>";
+        else {
+            name = compiler.parseType(null);
+            compiler.parseGenericType();
+
+            if (compiler.match(TokenType.TOKEN_COLON)) {
+                if (!isStatic)
+                    parameters.add(toType(name));
+
+                isStatic = true;
+                name = compiler.parseIdentifier(null);
+            }
+        }
+
+        compiler.consume(TokenType.TOKEN_LEFT_PAREN, null);
+        if (!compiler.check(TokenType.TOKEN_RIGHT_PAREN)) {
+            do {
+                compiler.parseIdentifier(null);
+                parameters.add(parameterType());
+            } while (compiler.match(TokenType.TOKEN_COMMA));
+        }
+        compiler.consume(TokenType.TOKEN_RIGHT_PAREN, null);
+
+        final boolean constructor = name.equals("<init>");
+
+        boolean unknown = parameters.contains(null);
+
+        Type returnType = null;
+        if (constructor)
+            returnType = Type.VOID_TYPE;
+        else if (compiler.check(TokenType.TOKEN_COLON)) {
+            returnType = toType(compiler.consumeType(null));
+            compiler.match(TokenType.TOKEN_QMARK);
+            if (returnType == null)
+                unknown = true;
+        }
+
+        final boolean returnsValue;
+        if (compiler.match(TokenType.TOKEN_LEFT_BRACE))
+            returnsValue = skipBalanced(TokenType.TOKEN_LEFT_BRACE, TokenType.TOKEN_RIGHT_BRACE);
+        else if (!compiler.match(TokenType.TOKEN_SEMICOLON) && !header.isInterface())
+            returnsValue = skipStatement();
+        else returnsValue = false;
+
+        // A body without any return can only have been inferred as void.
+        if (returnType == null && !returnsValue)
+            returnType = Type.VOID_TYPE;
+
+        if (unknown || returnType == null)
+            return false;
+
+        int access = modifiers.contains(TokenType.TOKEN_PRIVATE) ? Opcodes.ACC_PRIVATE : Opcodes.ACC_PUBLIC;
+        if (isStatic)
+            access |= Opcodes.ACC_STATIC;
+        if (header.isInterface())
+            access |= Opcodes.ACC_ABSTRACT;
+
+        final String descriptor = Type.getMethodDescriptor(returnType, parameters.toArray(Type[]::new));
+        header.methods().add(new ClassHeader.Method(name, descriptor, access, inline));
+
+        return constructor && !descriptor.equals("()V");
+    }
+
+    private void field(ClassHeader header, Set<TokenType> modifiers) {
+        if (compiler.check(TokenType.TOKEN_LEFT_PAREN)) {
+            skipStatement();
+            return;
+        }
+
+        final String name = compiler.parseIdentifier(null);
+
+        Type type = null;
+        if (compiler.check(TokenType.TOKEN_COLON))
+            type = parameterType();
+
+        if (compiler.match(TokenType.TOKEN_EQUAL))
+            skipStatement();
+        compiler.match(TokenType.TOKEN_SEMICOLON);
+
+        if (type == null)
+            return;
+
+        final boolean inline = modifiers.contains(TokenType.TOKEN_INLINE);
+        final boolean lazy = modifiers.contains(TokenType.TOKEN_LAZY);
+
+        int access = modifiers.contains(TokenType.TOKEN_PRIVATE) ? Opcodes.ACC_PRIVATE : Opcodes.ACC_PUBLIC;
+        if (inline || lazy || modifiers.contains(TokenType.TOKEN_STATIC))
+            access |= Opcodes.ACC_STATIC;
+        if (lazy || modifiers.contains(TokenType.TOKEN_FINAL))
+            access |= Opcodes.ACC_FINAL;
+
+        header.fields().add(new ClassHeader.Field(name, type, access, inline, lazy));
+    }
+
+    private Type parameterType() {
+        final Type type = toType(compiler.consumeType(null));
+        compiler.parseGenericType();
+        compiler.match(TokenType.TOKEN_QMARK);
+
+        return type;
+    }
+
+    private static Type toType(String descriptor) {
+        try {
+            return Type.getType(descriptor);
+        } catch (IllegalArgumentException | StringIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Skips everything up to and including the closing token, the opening one has to be consumed already.
+     *
+     * @return whether a value is returned somewhere in the skipped tokens
+     */
+    private boolean skipBalanced(TokenType open, TokenType close) {
+        boolean returnsValue = false;
+        int depth = 1;
+
+        while (depth > 0 && !compiler.check(TokenType.TOKEN_EOF)) {
+            final TokenType type = compiler.parser.getCurrent().type();
+            if (type == open)
+                depth++;
+            else if (type == close)
+                depth--;
+
+            compiler.advance();
+
+            if (type == TokenType.TOKEN_INTO
+                    || (type == TokenType.TOKEN_RETURN && !compiler.check(TokenType.TOKEN_SEMICOLON)))
+                returnsValue = true;
+        }
+
+        return returnsValue;
+    }
+
+    /**
+     * Skips a single statement, which ends at the end of its line unless a bracket is still open.
+     */
+    private boolean skipStatement() {
+        final int line = compiler.parser.getCurrent().line();
+
+        boolean returnsValue = false;
+        int depth = 0;
+
+        while (!compiler.check(TokenType.TOKEN_EOF)) {
+            final TokenType type = compiler.parser.getCurrent().type();
+            if (depth == 0 && (type == TokenType.TOKEN_SEMICOLON || type == TokenType.TOKEN_RIGHT_BRACE || compiler.parser.getCurrent().line() != line))
+                break;
+
+            switch (type) {
+                case TOKEN_LEFT_PAREN, TOKEN_LEFT_BRACE, TOKEN_LEFT_BRACK -> depth++;
+                case TOKEN_RIGHT_PAREN, TOKEN_RIGHT_BRACE, TOKEN_RIGHT_BRACK -> depth--;
+                case TOKEN_INTO, TOKEN_RETURN -> returnsValue = true;
+                default -> {}
+            }
+
+            compiler.advance();
+        }
+
+        compiler.match(TokenType.TOKEN_SEMICOLON);
+
+        return returnsValue;
+    }
+}
@@ -1,171 +1,189 @@
 package zip.sodium.jbasalt.compiler;
 
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 import org.objectweb.asm.tree.InsnNode;
 import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LabelNode;
 
-public enum DelayedInstruction {
-    OBJECT_NOT_EQUAL(Opcodes.IF_ACMPNE) {
-        @Override
-        public DelayedInstruction invert() {
-            return OBJECT_EQUAL;
-        }
-    },
-    OBJECT_EQUAL(Opcodes.IF_ACMPEQ) {
-        @Override
-        public DelayedInstruction invert() {
-            return OBJECT_NOT_EQUAL;
-        }
-    },
-    D_NOT_EQUAL(Opcodes.IFNE, Opcodes.DCMPL) {
-        @Override
-        public DelayedInstruction invert() {
-            return D_EQUAL;
-        }
-    },
-    D_EQUAL(Opcodes.IFEQ, Opcodes.DCMPL) {
-        @Override
-        public DelayedInstruction invert() {
-            return D_NOT_EQUAL;
-        }
-    },
-    D_GREATER(Opcodes.IFGT, Opcodes.DCMPL) {
-        @Override
-        public DelayedInstruction invert() {
-            return D_LESS_EQUAL;
-        }
-    },
-    D_GREATER_EQUAL(Opcodes.IFGE, Opcodes.DCMPL) {
-        @Override
-        public DelayedInstruction invert() {
-            return D_LESS;
-        }
-    },
-    D_LESS(Opcodes.IFLT, Opcodes.DCMPL) {
-        @Override
-        public DelayedInstruction invert() {
-            return D_GREATER_EQUAL;
-        }
-    },
-    D_LESS_EQUAL(Opcodes.IFLE, Opcodes.DCMPL) {
-        @Override
-        public DelayedInstruction invert() {
-            return D_GREATER;
-        }
-    },
+import java.util.ArrayList;
+import java.util.List;
 
-    F_NOT_EQUAL(Opcodes.IFNE, Opcodes.FCMPL) {
-        @Override
-        public DelayedInstruction invert() {
-            return F_EQUAL;
-        }
-    },
-    F_EQUAL(Opcodes.IFEQ, Opcodes.FCMPL) {
-        @Override
-        public DelayedInstruction invert() {
-            return F_NOT_EQUAL;
-        }
-    },
-    F_GREATER(Opcodes.IFGT, Opcodes.FCMPL) {
-        @Override
-        public DelayedInstruction invert() {
-            return F_LESS_EQUAL;
-        }
-    },
-    F_GREATER_EQUAL(Opcodes.IFGE, Opcodes.FCMPL) {
-        @Override
-        public DelayedInstruction invert() {
-            return F_LESS;
-        }
-    },
-    F_LESS(Opcodes.IFLT, Opcodes.FCMPL) {
-        @Override
-        public DelayedInstruction invert() {
-            return F_GREATER_EQUAL;
-        }
-    },
-    F_LESS_EQUAL(Opcodes.IFLE, Opcodes.FCMPL) {
-        @Override
-        public DelayedInstruction invert() {
-            return F_GREATER;
-        }
-    },
+/**
+ * A condition whose final jump hasn't been emitted yet, so that the construct consuming it can branch
+ * straight to its own labels instead of testing a materialized boolean.
+ * <p>
+ * Compound conditions ("and", "or", "!", ternaries) keep the jumps of their already emitted operands
+ * that decide the whole condition early, they get pointed at the right label once it is known.
+ */
+public final class DelayedInstruction {
+    public enum Comparison {
+        // Ordered like the IFEQ ... IFLE opcodes, every comparison sits next to its negation
+        EQUAL, NOT_EQUAL, LESS, GREATER_EQUAL, GREATER, LESS_EQUAL
+    }
 
-    NUM_NOT_EQUAL(Opcodes.IF_ICMPNE) {
-        @Override
-        public DelayedInstruction invert() {
-            return NUM_EQUAL;
-        }
-    },
-    NUM_EQUAL(Opcodes.IF_ICMPEQ) {
-        @Override
-        public DelayedInstruction invert() {
-            return NUM_NOT_EQUAL;
-        }
-    },
-    NUM_GREATER(Opcodes.IF_ICMPGE) {
-        @Override
-        public DelayedInstruction invert() {
-            return NUM_LESS_EQUAL;
-        }
-    },
-    NUM_GREATER_EQUAL(Opcodes.IF_ICMPGT) {
-        @Override
-        public DelayedInstruction invert() {
-            return NUM_LESS;
-        }
-    },
-    NUM_LESS(Opcodes.IF_ICMPLE) {
-        @Override
-        public DelayedInstruction invert() {
-            return NUM_GREATER_EQUAL;
+    private final int compareOpcode;
+    private final int jumpOpcode;
+    private final int operands;
+
+    private final List<JumpInsnNode> trueJumps;
+    private final List<JumpInsnNode> falseJumps;
+
+    private DelayedInstruction(int compareOpcode, int jumpOpcode, int operands, List<JumpInsnNode> trueJumps, List<JumpInsnNode> falseJumps) {
+        this.compareOpcode = compareOpcode;
+        this.jumpOpcode = jumpOpcode;
+        this.operands = operands;
+        this.trueJumps = trueJumps;
+        this.falseJumps = falseJumps;
+    }
+
+    private DelayedInstruction(int compareOpcode, int jumpOpcode, int operands) {
+        this(compareOpcode, jumpOpcode, operands, List.of(), List.of());
+    }
+
+    /**
+     * Compares the two values on top of the stack, both of the given type.
+     */
+    public static DelayedInstruction compare(Comparison comparison, Type type) {
+        return switch (type.getSort()) {
+            case Type.BOOLEAN, Type.CHAR, Type.BYTE, Type.SHORT, Type.INT ->
+                    new DelayedInstruction(-1, Opcodes.IF_ICMPEQ + comparison.ordinal(), 2);
+            case Type.LONG -> new DelayedInstruction(Opcodes.LCMP, Opcodes.IFEQ + comparison.ordinal(), 2);
+            // NaN has to make every comparison except "!=" false, so "<" and "<=" need the variant that yields 1 for it
+            case Type.FLOAT -> new DelayedInstruction(isLess(comparison) ? Opcodes.FCMPG : Opcodes.FCMPL,
+                    Opcodes.IFEQ + comparison.ordinal(), 2);
+            case Type.DOUBLE -> new DelayedInstruction(isLess(comparison) ? Opcodes.DCMPG : Opcodes.DCMPL,
+                    Opcodes.IFEQ + comparison.ordinal(), 2);
+            default -> switch (comparison) {
+                case EQUAL -> new DelayedInstruction(-1, Opcodes.IF_ACMPEQ, 2);
+                case NOT_EQUAL -> new DelayedInstruction(-1, Opcodes.IF_ACMPNE, 2);
+                default -> throw new IllegalArgumentException("Can't order references with " + comparison);
+            };
+        };
+    }
+
+    /**
+     * Tests the reference on top of the stack against null.
+     */
+    public static DelayedInstruction isNull(boolean isNull) {
+        return new DelayedInstruction(-1, isNull ? Opcodes.IFNULL : Opcodes.IFNONNULL, 1);
+    }
+
+    /**
+     * Tests a boolean that has already been computed onto the stack.
+     */
+    public static DelayedInstruction value() {
+        return new DelayedInstruction(-1, Opcodes.IFNE, 1);
+    }
+
+    private static boolean isLess(Comparison comparison) {
+        return comparison == Comparison.LESS || comparison == Comparison.LESS_EQUAL;
+    }
+
+    private static int invertJump(int opcode) {
+        if (opcode == Opcodes.IFNULL || opcode == Opcodes.IFNONNULL)
+            return opcode == Opcodes.IFNULL ? Opcodes.IFNONNULL : Opcodes.IFNULL;
+
+        // IFEQ ... IF_ACMPNE come in pairs of a jump and its negation
+        return ((opcode - Opcodes.IFEQ) ^ 1) + Opcodes.IFEQ;
+    }
+
+    public int operands() {
+        return operands;
+    }
+
+    /**
+     * The comparison of floating point numbers stays the same, only the jump is negated, so NaN keeps going to the false side.
+     */
+    public DelayedInstruction invert() {
+        return new DelayedInstruction(compareOpcode, invertJump(jumpOpcode), operands, falseJumps, trueJumps);
+    }
+
+    /**
+     * Emits the test so that it jumps to the given label if the condition holds and falls through otherwise.
+     */
+    public void emitJump(Compiler compiler, LabelNode labelNode) {
+        if (compareOpcode != -1)
+            compiler.emit(new InsnNode(compareOpcode));
+        compiler.emit(new JumpInsnNode(jumpOpcode, labelNode));
+
+        retarget(trueJumps, labelNode);
+        if (!falseJumps.isEmpty()) {
+            final LabelNode next = new LabelNode();
+            compiler.emit(next);
+
+            retarget(falseJumps, next);
         }
-    },
-    NUM_LESS_EQUAL(Opcodes.IF_ICMPLT) {
-        @Override
-        public DelayedInstruction invert() {
-            return NUM_GREATER;
+    }
+
+    /**
+     * Emits the test so that it falls through if the condition holds, the returned jumps are taken otherwise
+     * and still have to be pointed at their target.
+     */
+    public List<JumpInsnNode> emitFalseJumps(Compiler compiler) {
+        final JumpInsnNode jump = new JumpInsnNode(invertJump(jumpOpcode), new LabelNode());
+        if (compareOpcode != -1)
+            compiler.emit(new InsnNode(compareOpcode));
+        compiler.emit(jump);
+
+        if (!trueJumps.isEmpty()) {
+            final LabelNode next = new LabelNode();
+            compiler.emit(next);
+
+            retarget(trueJumps, next);
         }
-    };
 
-    private final int opcode;
-    private final Integer otherOpcode;
+        final List<JumpInsnNode> jumps = new ArrayList<>(falseJumps);
+        jumps.add(jump);
+
+        return jumps;
+    }
+
+    /**
+     * Like {@link #emitFalseJumps(Compiler)}, but falls through if the condition doesn't hold.
+     */
+    public List<JumpInsnNode> emitTrueJumps(Compiler compiler) {
+        return invert().emitFalseJumps(compiler);
+    }
+
+    /**
+     * Emits the test with both outcomes leaving through jumps that still have to be pointed at their targets.
+     */
+    public Compiler.Pair<List<JumpInsnNode>, List<JumpInsnNode>> emitBothJumps(Compiler compiler) {
+        final List<JumpInsnNode> jumps = emitTrueJumps(compiler);
+
+        final JumpInsnNode otherwise = new JumpInsnNode(Opcodes.GOTO, new LabelNode());
+        compiler.emit(otherwise);
 
-    DelayedInstruction(int opcode, int otherOpcode) {
-        this.opcode = opcode;
-        this.otherOpcode = otherOpcode;
+        return new Compiler.Pair<>(jumps, List.of(otherwise));
     }
 
-    DelayedInstruction(int opcode) {
-        this.opcode = opcode;
-        this.otherOpcode = null;
+    /**
+     * Adds jumps emitted earlier that decide this condition before its own test is reached.
+     */
+    public DelayedInstruction withJumps(List<JumpInsnNode> trueJumps, List<JumpInsnNode> falseJumps) {
+        final List<JumpInsnNode> allTrue = new ArrayList<>(this.trueJumps);
+        allTrue.addAll(trueJumps);
+        final List<JumpInsnNode> allFalse = new ArrayList<>(this.falseJumps);
+        allFalse.addAll(falseJumps);
+
+        return new DelayedInstruction(compareOpcode, jumpOpcode, operands, allTrue, allFalse);
     }
 
     public void emitConstant(Compiler compiler) {
         LabelNode labelTrue = new LabelNode();
         LabelNode labelRet = new LabelNode();
-        if (otherOpcode != null)
-            compiler.emit(new InsnNode(this.otherOpcode));
 
-        compiler.emit(new JumpInsnNode(this.opcode, labelTrue),
-                new InsnNode(Opcodes.ICONST_0),
+        emitJump(compiler, labelTrue);
+        compiler.emit(new InsnNode(Opcodes.ICONST_0),
                 new JumpInsnNode(Opcodes.GOTO, labelRet),
                 labelTrue,
                 new InsnNode(Opcodes.ICONST_1),
                 labelRet);
     }
 
-    public void emitJump(Compiler compiler, LabelNode labelNode) {
-        if (otherOpcode != null)
-            compiler.emit(new InsnNode(this.otherOpcode));
-        compiler.emit(new JumpInsnNode(this.opcode, labelNode));
+    private static void retarget(List<JumpInsnNode> jumps, LabelNode labelNode) {
+        for (JumpInsnNode jump : jumps)
+            jump.label = labelNode;
     }
-
-    public void applyStackChanges(Compiler compiler) {
-        compiler.notifyPopStack();
-        compiler.notifyReplaceLastStack(StackTypes.BOOLEAN);
-    }
-
-    public abstract DelayedInstruction invert();
 }
@@ -1,76 +1,528 @@
 package zip.sodium.jbasalt.compiler;
 
-import zip.sodium.jbasalt.Main;
 import zip.sodium.jbasalt.utils.DebugUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class EphemeralRunner extends ClassLoader {
-    public final Map<String, byte[]> classes = new LinkedHashMap<>();
-    private final Map<String, Class<?>> emulatedClassInstances = new HashMap<>();
+    static {
+        registerAsParallelCapable();
+    }
+
+    private static final MethodType MAIN_TYPE = MethodType.methodType(void.class, String[].class);
+
+    // Imported Basalt classes are compiled on these ahead of time, -Dbasalt.precompile.threads=0 turns that off
+    private static final ExecutorService PRECOMPILER = createPrecompiler(Integer.getInteger("basalt.precompile.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+    // Set on the threads of the precompiler, they leave a source to its loader rather than wait for another compilation
+    private static final ThreadLocal<Boolean> PRECOMPILING = ThreadLocal.withInitial(() -> false);
+
+    public final Map<String, byte[]> classes = new ConcurrentHashMap<>();
+    private final Map<String, Class<?>> emulatedClassInstances = new ConcurrentHashMap<>();
+    private final Map<String, ClassHeader> headers = new ConcurrentHashMap<>();
+    // Names that were neither compiled nor have a source, so asking for them again doesn't hit the file system
+    private final Set<String> missingClasses = ConcurrentHashMap.newKeySet();
+    private final Map<File, ReentrantLock> compileLocks = new ConcurrentHashMap<>();
+    // Which thread compiles which source and which source a thread waits for, both guarded by compilingSources
+    private final Map<File, Thread> compilingSources = new LinkedHashMap<>();
+    private final Map<Thread, File> awaitedSources = new HashMap<>();
+    private final Set<File> scheduledSources = ConcurrentHashMap.newKeySet();
+    private final Map<File, RuntimeException> failedPrecompilations = new ConcurrentHashMap<>();
+    // The Basalt classes imported by the compilation running on this thread, with the hash of their source
+    private final ThreadLocal<Map<String, String>> dependencies = new ThreadLocal<>();
 
-    private CompileFunction compileFunction;
-    private String packageName;
+    private final Map<FunctionKey, MethodHandle> functions = new ConcurrentHashMap<>();
+    private final Map<FunctionKey, Object> boundFunctions = new ConcurrentHashMap<>();
+    private volatile MethodHandles.Lookup lookup;
+
+    private final boolean disposable;
+
+    private volatile CompileFunction compileFunction;
+    private volatile File sourceDirectory;
+    private volatile BytecodeCache bytecodeCache = BytecodeCache.DEFAULT;
 
     public EphemeralRunner(ClassLoader parent) {
+        this(parent, false);
+    }
+
+    private EphemeralRunner(ClassLoader parent, boolean disposable) {
         super(parent);
+        this.disposable = disposable;
+    }
+
+    /**
+     * A runner for a single script, which forgets the bytecode of every class as soon as it's defined.
+     * Nothing else holds on to it, so the runner and its classes are unloaded once the script isn't referenced anymore.
+     */
+    public static EphemeralRunner disposable(ClassLoader parent) {
+        return new EphemeralRunner(parent, true);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        // Compiling loads classes of other sources. Under the class loading lock, two threads compiling sources which need
+        // each other would wait for each other's lock before compile could tell that they're in a cycle.
+        if (findLoadedClass(name) == null && !isCompiled(name) && !missingClasses.contains(name)) {
+            final File source = findSource(name);
+            if (source == null)
+                missingClasses.add(name);
+            else if (getParent() == null || getParent().getResource(name.replace(".", "/") + ".class") == null)
+                compile(source, name);
+        }
+
+        return super.loadClass(name, resolve);
     }
 
     @Override
     protected Class<?> findClass(String name) throws ClassNotFoundException {
-        if (!classes.containsKey(name)) {
-            if (name.startsWith(packageName)) {
-                try {
-                    compileFunction.apply(this, new File(Main.inDir, name.replace(".", "/") + ".bas"));
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
+        final Class<?> defined = emulatedClassInstances.get(name);
+        if (defined != null)
+            return defined;
+
+        if (!isCompiled(name)) {
+            if (missingClasses.contains(name))
+                throw new ClassNotFoundException(name);
+
+            final File source = findSource(name);
+            if (source == null) {
+                missingClasses.add(name);
+
+                return super.findClass(name);
+            }
+
+            compile(source, name);
+            if (!isCompiled(name)) {
+                missingClasses.add(name);
+
+                throw new ClassNotFoundException(name);
+            }
+        }
+
+        // loadClass already holds this lock, findClass might still be called on its own
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> clazz = emulatedClassInstances.get(name);
+            if (clazz == null) {
+                final byte[] classData = classes.get(name);
+
+                clazz = defineClass(name, classData, 0, classData.length, null);
+                emulatedClassInstances.put(name, clazz);
+
+                if (disposable)
+                    classes.remove(name);
+            }
+
+            return clazz;
+        }
+    }
+
+    private boolean isCompiled(String name) {
+        return classes.containsKey(name) || emulatedClassInstances.containsKey(name);
+    }
+
+    /**
+     * Compiles a source at most once at a time, threads that need a class of it meanwhile wait for that compilation.
+     * Signatures of other sources come from their headers, but operators and members the headers don't know about
+     * are looked up on the loaded class, which compiles its source while this one is still being compiled.
+     *
+     * @throws CyclicCompilationException if that source is, directly or not, waiting for this one
+     */
+    private void compile(File source, String name) {
+        final File key = source.getAbsoluteFile();
+        final ReentrantLock lock = compileLocks.computeIfAbsent(key, x -> new ReentrantLock());
+        acquire(key, lock);
+        try {
+            if (isCompiled(name))
+                return;
+
+            // A failed precompilation already printed its errors, they shouldn't show up a second time
+            final RuntimeException failure = failedPrecompilations.remove(key);
+            if (failure != null)
+                throw failure;
+
+            final BytecodeCache bytecodeCache = this.bytecodeCache;
+            final String outerName = name.contains("$") ? name.substring(0, name.indexOf('$')) : name;
+            final String cacheKey;
+            try {
+                cacheKey = bytecodeCache == null ? null : BytecodeCache.key(BytecodeCache.fingerprint(getParent()), outerName,
+                        BytecodeCache.hash(Files.readAllBytes(source.toPath())));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            if (cacheKey != null && loadCached(bytecodeCache, cacheKey))
+                return;
+
+            final Map<String, String> previous = dependencies.get();
+            final Map<String, String> imported = new TreeMap<>();
+            dependencies.set(imported);
+            try {
+                compileFunction.apply(this, source);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                dependencies.set(previous);
+            }
+
+            // Disposable runners may have dropped some of the classes already
+            if (cacheKey != null && !disposable) {
+                final Map<String, byte[]> compiled = new TreeMap<>();
+                classes.forEach((className, classData) -> {
+                    if (className.equals(outerName) || className.startsWith(outerName + "$"))
+                        compiled.put(className, classData);
+                });
+
+                bytecodeCache.store(cacheKey, compiled, imported);
+            }
+        } finally {
+            release(key, lock);
+        }
+    }
+
+    /**
+     * Takes the lock of a source, unless this thread would never get it. That's the case if the source is being
+     * compiled further up on this thread, or by a thread that's waiting for a source this one is compiling.
+     * The precompiler never waits, it would hold up the pool while still holding the locks of its own sources.
+     */
+    private void acquire(File source, ReentrantLock lock) {
+        final Thread current = Thread.currentThread();
+        final boolean precompiling = PRECOMPILING.get();
+        synchronized (compilingSources) {
+            final List<File> cycle = findCycle(source, current);
+            if (cycle != null)
+                throw new CyclicCompilationException(cycle);
+
+            if (!precompiling)
+                awaitedSources.put(current, source);
+        }
+
+        if (!precompiling)
+            lock.lock();
+        else if (!lock.tryLock())
+            throw new PrecompilationAbandoned();
+
+        synchronized (compilingSources) {
+            awaitedSources.remove(current);
+            compilingSources.put(source, current);
+        }
+    }
+
+    private void release(File source, ReentrantLock lock) {
+        synchronized (compilingSources) {
+            compilingSources.remove(source);
+        }
+
+        lock.unlock();
+    }
+
+    /**
+     * Follows the owners of the sources waited for, starting at the given one, until a source the current thread
+     * compiles is reached. Every thread registers what it waits for before it blocks, the last one to close a cycle sees it.
+     *
+     * @return the sources of the cycle, or null if there is none
+     */
+    private List<File> findCycle(File source, Thread current) {
+        final List<File> waits = new ArrayList<>();
+
+        File next = source;
+        Thread owner = compilingSources.get(next);
+        while (owner != null && owner != current) {
+            waits.add(next);
+
+            next = awaitedSources.get(owner);
+            if (next == null)
+                return null;
+
+            owner = compilingSources.get(next);
+        }
+
+        if (owner == null)
+            return null;
 
-                return findClass(name);
+        // The sources this thread compiles from the one waited for onwards, in the order they were started
+        final List<File> cycle = new ArrayList<>();
+        for (Map.Entry<File, Thread> compiling : compilingSources.entrySet())
+            if (compiling.getValue() == current && (!cycle.isEmpty() || compiling.getKey().equals(next)))
+                cycle.add(compiling.getKey());
+
+        cycle.addAll(waits);
+        cycle.add(next);
+
+        return cycle;
+    }
+
+    /**
+     * Takes the classes of a source from the cache, unless a source it imported changed since.
+     * Its imports aren't compiled again either way, they're looked up in the cache once they're loaded.
+     */
+    private boolean loadCached(BytecodeCache bytecodeCache, String cacheKey) {
+        final BytecodeCache.Entry entry = bytecodeCache.load(cacheKey);
+        if (entry == null)
+            return false;
+
+        for (Map.Entry<String, String> dependency : entry.dependencies().entrySet())
+            if (!dependency.getValue().equals(hashSource(dependency.getKey())))
+                return false;
+
+        classes.putAll(entry.classes());
+        return true;
+    }
+
+    /**
+     * Records that the compilation running on this thread imports a Basalt class, its cached bytecode is only valid
+     * as long as neither that class' source nor the sources it imports change.
+     */
+    public void addDependency(String name) {
+        final Map<String, String> imported = dependencies.get();
+        if (imported == null)
+            return;
+
+        final String hash = hashSource(name);
+        if (hash != null)
+            imported.put(name.replace("/", "."), hash);
+    }
+
+    /**
+     * The hash of a source along with the hashes of the Basalt sources it imports, directly or not.
+     * A source is compiled against the headers of its imports, which in turn depend on the headers of theirs.
+     */
+    private String hashSource(String name) {
+        return hashSource(name.replace("/", "."), new HashSet<>());
+    }
+
+    private String hashSource(String name, Set<String> visited) {
+        final File source = findSource(name);
+        if (source == null)
+            return null;
+
+        final byte[] data;
+        try {
+            data = Files.readAllBytes(source.toPath());
+        } catch (IOException e) {
+            return null;
+        }
+
+        final StringBuilder hashes = new StringBuilder(BytecodeCache.hash(data));
+        // A cyclic import is already part of the hash further up
+        if (visited.add(name))
+            for (String imported : DeclarationPass.imports(source.getName(), this, new String(data, StandardCharsets.UTF_8))) {
+                final String hash = hashSource(imported, visited);
+                if (hash != null)
+                    hashes.append('\0').append(imported).append('=').append(hash);
+            }
+
+        return BytecodeCache.hash(hashes.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Schedules the compilation of a Basalt class on a background thread, so that it's usually ready by the time
+     * it's loaded. Every source is scheduled once, failures are only reported once the class is actually loaded.
+     */
+    public void precompile(String name) {
+        final String className = name.replace("/", ".");
+        if (PRECOMPILER == null || isCompiled(className))
+            return;
+
+        final File source = findSource(className);
+        if (source == null || !scheduledSources.add(source.getAbsoluteFile()))
+            return;
+
+        PRECOMPILER.execute(() -> {
+            try {
+                compile(source, className);
+            } catch (CyclicCompilationException | PrecompilationAbandoned e) {
+                // Left to the thread that loads the class, it compiles the source itself and reports a cycle from there
+            } catch (RuntimeException e) {
+                failedPrecompilations.put(source.getAbsoluteFile(), e);
             }
+        });
+    }
 
-            return super.findClass(name);
+    // Unwinds a precompilation that would have to wait for another thread, which compiles the source then
+    private static final class PrecompilationAbandoned extends RuntimeException {
+        private PrecompilationAbandoned() {
+            super(null, null, false, false);
         }
+    }
+
+    private static ExecutorService createPrecompiler(int threads) {
+        if (threads <= 0)
+            return null;
+
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, task -> {
+            final Thread thread = new Thread(() -> {
+                PRECOMPILING.set(true);
+                task.run();
+            }, "basalt-precompiler-" + count.incrementAndGet());
+            thread.setDaemon(true);
+
+            return thread;
+        });
+    }
+
+    private File findSource(String name) {
+        final File directory = sourceDirectory;
+        if (directory == null || compileFunction == null)
+            return null;
 
-        final byte[] classData = classes.get(name);
+        // Nested classes are compiled together with the file of their outermost class.
+        final String outerName = name.contains("$") ? name.substring(0, name.indexOf('$')) : name;
+        final File source = new File(directory, outerName.replace(".", "/") + ".bas");
+        return source.isFile() ? source : null;
+    }
 
-        if (emulatedClassInstances.get(name) == null)
-            emulatedClassInstances.put(name, defineClass(name, classData, 0, classData.length, null));
-        return emulatedClassInstances.get(name);
+    public void putHeaders(Collection<ClassHeader> headers) {
+        for (ClassHeader header : headers)
+            this.headers.put(header.name(), header);
+    }
+
+    /**
+     * Finds the declarations of a Basalt class without compiling it,
+     * only the signatures of its source are scanned if they aren't known yet.
+     */
+    public ClassHeader findHeader(String name) {
+        final String internalName = name.replace(".", "/");
+        if (headers.containsKey(internalName))
+            return headers.get(internalName);
+
+        final String outerName = internalName.contains("$")
+                ? internalName.substring(0, internalName.indexOf('$'))
+                : internalName;
+        final File source = findSource(outerName);
+        if (source == null)
+            return null;
+
+        final int separator = outerName.lastIndexOf('/');
+        final String filePackage = separator == -1 ? "" : outerName.substring(0, separator).replace("/", ".");
+
+        try {
+            putHeaders(DeclarationPass.scan(filePackage, source.getName(), this, Files.readString(source.toPath())));
+        } catch (IOException e) {
+            return null;
+        }
+
+        return headers.get(internalName);
     }
 
     @Override
     public InputStream getResourceAsStream(String name) {
-        if (classes.containsKey(name.replace("/", ".")))
-            return new ByteArrayInputStream(classes.get(name.replace("/", ".")));
+        final byte[] classData = classes.get(name.replace("/", "."));
+        if (classData != null)
+            return new ByteArrayInputStream(classData);
 
         return super.getResourceAsStream(name);
     }
 
     public void run(String className, String... args) throws InvocationTargetException {
+        // Disposable runners drop the bytecode once the class is defined, it's still needed for the error below
+        final byte[] classData = classes.get(className);
+
+        final MethodHandle main;
         try {
-            this.loadClass(className)
-                    .getDeclaredMethod("main", String[].class)
-                    .invoke(null, (Object) args);
+            main = findFunction(className, "main", MAIN_TYPE);
         } catch (NoSuchMethodException | ClassNotFoundException |
                  IllegalAccessException | Error e) {
-            throw new InvocationTargetException(e, "Invalid class format \n" +
-                    DebugUtils.classDataToDebug(classes.get(className)));
+            throw new InvocationTargetException(e, classData == null ? "Invalid class format" : "Invalid class format \n" +
+                    DebugUtils.classDataToDebug(classData));
         }
+
+        try {
+            main.invokeExact(args);
+        } catch (Throwable e) {
+            throw new InvocationTargetException(e);
+        }
+    }
+
+    /**
+     * Finds a static function of a class of this runner, the class is initialized right away.
+     * The handle is cached, calling it with invokeExact involves no reflection and no argument array.
+     */
+    public MethodHandle findFunction(String className, String function, MethodType type)
+            throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException {
+        final FunctionKey key = new FunctionKey(className, function, type);
+
+        MethodHandle handle = functions.get(key);
+        if (handle == null) {
+            handle = MethodHandles.publicLookup().findStatic(Class.forName(className, true, this), function, type);
+            functions.putIfAbsent(key, handle);
+        }
+
+        return handle;
+    }
+
+    /**
+     * Binds a static function of a class of this runner to a functional interface, with the same number of parameters
+     * as its abstract method. The instance is cached, calls through it are as cheap as calls through a Java lambda.
+     */
+    public <T> T bind(String className, String function, Class<T> functionalInterface) throws ReflectiveOperationException {
+        final FunctionKey key = new FunctionKey(className, function, MethodType.methodType(functionalInterface));
+
+        Object bound = boundFunctions.get(key);
+        if (bound == null) {
+            bound = FunctionBinder.bind(lookup(), Class.forName(className, true, this), function, functionalInterface);
+            boundFunctions.putIfAbsent(key, bound);
+        }
+
+        return functionalInterface.cast(bound);
+    }
+
+    private MethodHandles.Lookup lookup() throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = this.lookup;
+        if (lookup == null) {
+            synchronized (functions) {
+                lookup = this.lookup;
+                if (lookup == null) {
+                    final String lookupClass = FunctionBinder.LOOKUP_CLASS.replace("/", ".");
+                    classes.put(lookupClass, FunctionBinder.lookupClass());
+
+                    lookup = (MethodHandles.Lookup) loadClass(lookupClass).getMethod("lookup").invoke(null);
+                    this.lookup = lookup;
+                }
+            }
+        }
+
+        return lookup;
+    }
+
+    private record FunctionKey(String className, String name, MethodType type) {}
+
+    public void setSourceDirectory(File sourceDirectory) {
+        this.sourceDirectory = sourceDirectory;
+        missingClasses.clear();
     }
 
-    public void setCompiler(Compiler compiler) {
-        this.packageName = compiler.filePackage;
+    /**
+     * Sets the directory compiled sources are also kept in between restarts, null turns that off.
+     */
+    public void setBytecodeCache(BytecodeCache bytecodeCache) {
+        this.bytecodeCache = bytecodeCache;
     }
 
     public void setCompileFunction(CompileFunction compileFunction) {
         this.compileFunction = compileFunction;
+        missingClasses.clear();
     }
 }
@@ -0,0 +1,110 @@
+package zip.sodium.jbasalt.compiler;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Turns static Basalt functions into instances of Java functional interfaces through {@link LambdaMetafactory},
+ * calls through them are as cheap as calls through a Java lambda.
+ */
+final class FunctionBinder {
+    static final String LOOKUP_CLASS = "zip/sodium/jbasalt/runtime/Lookup";
+
+    private FunctionBinder() {}
+
+    /**
+     * The only class in a runner that isn't compiled from a source, it hands out a lookup with full privileges inside the runner.
+     * LambdaMetafactory needs one, and the lambdas it spins have to be able to see the classes of the runner.
+     */
+    static byte[] lookupClass() {
+        final ClassNode classNode = new ClassNode();
+        classNode.visit(Opcodes.V17, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC, LOOKUP_CLASS, null, "java/lang/Object", null);
+
+        final MethodNode lookup = new MethodNode(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;", null, null);
+        lookup.instructions.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup", lookup.desc, false));
+        lookup.instructions.add(new InsnNode(Opcodes.ARETURN));
+        classNode.methods.add(lookup);
+
+        return Compiler.write(classNode);
+    }
+
+    static <T> T bind(MethodHandles.Lookup lookup, Class<?> owner, String function, Class<T> functionalInterface) throws ReflectiveOperationException {
+        final Method abstractMethod = findAbstractMethod(functionalInterface);
+        final Method target = Arrays.stream(owner.getMethods())
+                .filter(x -> x.getName().equals(function) && Modifier.isStatic(x.getModifiers()))
+                .filter(x -> x.getParameterCount() == abstractMethod.getParameterCount())
+                .findFirst()
+                .orElseThrow(() -> new NoSuchMethodException(owner.getName() + "." + function));
+
+        final MethodHandle implementation = lookup.unreflect(target);
+        final MethodType interfaceType = MethodType.methodType(abstractMethod.getReturnType(), abstractMethod.getParameterTypes());
+
+        try {
+            return functionalInterface.cast(LambdaMetafactory.metafactory(lookup,
+                            abstractMethod.getName(),
+                            MethodType.methodType(functionalInterface),
+                            interfaceType,
+                            implementation,
+                            instantiate(interfaceType, implementation.type()))
+                    .getTarget()
+                    .invoke());
+        } catch (LambdaConversionException e) {
+            throw new IllegalArgumentException("\"" + function + "\" doesn't fit " + functionalInterface.getName() + "!", e);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Method findAbstractMethod(Class<?> functionalInterface) {
+        if (!functionalInterface.isInterface())
+            throw new IllegalArgumentException(functionalInterface.getName() + " isn't an interface!");
+
+        final List<Method> abstractMethods = Arrays.stream(functionalInterface.getMethods())
+                .filter(x -> Modifier.isAbstract(x.getModifiers()) && !isObjectMethod(x))
+                .toList();
+        if (abstractMethods.size() != 1)
+            throw new IllegalArgumentException(functionalInterface.getName() + " isn't a functional interface!");
+
+        return abstractMethods.get(0);
+    }
+
+    private static boolean isObjectMethod(Method method) {
+        try {
+            Object.class.getMethod(method.getName(), method.getParameterTypes());
+
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    // Generic interfaces erase to wider types than the function takes, e.g. Object where it takes an int
+    private static MethodType instantiate(MethodType interfaceType, MethodType functionType) {
+        final MethodType boxed = functionType.wrap();
+
+        MethodType instantiated = interfaceType;
+        for (int i = 0; i < interfaceType.parameterCount(); i++)
+            if (!interfaceType.parameterType(i).isPrimitive() && interfaceType.parameterType(i).isAssignableFrom(boxed.parameterType(i)))
+                instantiated = instantiated.changeParameterType(i, boxed.parameterType(i));
+
+        if (!interfaceType.returnType().isPrimitive() && interfaceType.returnType().isAssignableFrom(boxed.returnType()))
+            instantiated = instantiated.changeReturnType(boxed.returnType());
+
+        return instantiated;
+    }
+}
@@ -0,0 +1,28 @@
+package zip.sodium.jbasalt.compiler;
+
+import java.util.Locale;
+
+/**
+ * The passes {@link Optimizer} runs over every method before its class is written. All of them are on by default,
+ * each one can be turned off for benchmarking with {@code -Dbasalt.optimize.<name>=false}
+ * (e.g. {@code -Dbasalt.optimize.loop_unrolling=false}) or through {@link #setEnabled(boolean)}.
+ */
+public enum Optimization {
+    CONSTANT_FOLDING,
+    DEAD_CODE_ELIMINATION,
+    LOOP_UNROLLING,
+    LOOP_INVARIANT_CODE_MOTION,
+    STRENGTH_REDUCTION,
+    LOCAL_SLOT_REUSE;
+
+    private volatile boolean enabled = Boolean.parseBoolean(
+            System.getProperty("basalt.optimize." + name().toLowerCase(Locale.ROOT), "true"));
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+}
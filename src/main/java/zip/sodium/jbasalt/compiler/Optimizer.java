@@ -0,0 +1,1250 @@
+package zip.sodium.jbasalt.compiler;
+
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.FrameNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Rewrites the methods of a finished class right before it's written, the ASM tree is the IR.
+ * Loops are found through their back edge, a GOTO to a label above it, and are only touched
+ * if nothing outside of them jumps into them, so code can be hoisted in front of their header.
+ * Every pass can be switched off on its own, see {@link Optimization}.
+ */
+final class Optimizer {
+    private static final int MAX_UNROLLED_TRIPS = 8;
+    private static final int MAX_UNROLLED_SIZE = 256;
+
+    // Calls on these only read their arguments, as long as those can't run code of their own
+    private static final Set<String> PURE_OWNERS = Set.of(
+            "java/lang/Math", "java/lang/StrictMath", "java/lang/String", "java/lang/StringBuilder",
+            "java/lang/Boolean", "java/lang/Character", "java/lang/Byte", "java/lang/Short",
+            "java/lang/Integer", "java/lang/Long", "java/lang/Float", "java/lang/Double",
+            "basalt/lang/STDLib");
+    // Collections are assumed not to change when they're only read
+    private static final Set<String> READ_ONLY_METHODS = Set.of(
+            "java/util/Collection.size()I", "java/util/Collection.isEmpty()Z",
+            "java/util/List.size()I", "java/util/List.isEmpty()Z", "java/util/List.get(I)Ljava/lang/Object;",
+            "java/util/ArrayList.size()I", "java/util/ArrayList.get(I)Ljava/lang/Object;");
+
+    private final ClassNode classNode;
+    private final MethodNode methodNode;
+    private final InsnList instructions;
+
+    private int nextLocal;
+
+    private Optimizer(ClassNode classNode, MethodNode methodNode) {
+        this.classNode = classNode;
+        this.methodNode = methodNode;
+        this.instructions = methodNode.instructions;
+
+        nextLocal = firstFreeLocal();
+    }
+
+    public static void optimize(ClassNode classNode) {
+        for (MethodNode methodNode : classNode.methods) {
+            // Exception ranges would have to be cloned and split along with the code they cover
+            if (methodNode.instructions.size() == 0
+                    || methodNode.tryCatchBlocks != null && !methodNode.tryCatchBlocks.isEmpty())
+                continue;
+
+            new Optimizer(classNode, methodNode).optimize();
+        }
+
+        if (Optimization.DEAD_CODE_ELIMINATION.isEnabled())
+            removeUnusedMethods(classNode);
+    }
+
+    private void optimize() {
+        if (Optimization.CONSTANT_FOLDING.isEnabled())
+            foldConstants();
+
+        if (Optimization.DEAD_CODE_ELIMINATION.isEnabled()) {
+            foldBranches();
+            removeUnreachableCode();
+        }
+
+        if (Optimization.LOOP_UNROLLING.isEnabled())
+            for (Loop loop : loops())
+                unroll(loop);
+
+        if (Optimization.LOOP_INVARIANT_CODE_MOTION.isEnabled())
+            for (Loop loop : loops())
+                hoistInvariants(loop);
+
+        if (Optimization.STRENGTH_REDUCTION.isEnabled()) {
+            for (Loop loop : loops())
+                reduceInductionVariables(loop);
+
+            reduceArithmetic();
+        }
+
+        if (Optimization.DEAD_CODE_ELIMINATION.isEnabled()) {
+            removeUnusedLocals();
+            removeRedundantJumps();
+            removeUnusedLabels();
+        }
+
+        if (Optimization.LOCAL_SLOT_REUSE.isEnabled())
+            reuseLocalSlots();
+    }
+
+    private record Loop(LabelNode header, JumpInsnNode backEdge) {}
+
+    private int parameterSize() {
+        final int size = Type.getArgumentsAndReturnSizes(methodNode.desc) >> 2;
+
+        return (methodNode.access & Opcodes.ACC_STATIC) != 0 ? size - 1 : size;
+    }
+
+    private int firstFreeLocal() {
+        int next = Math.max(parameterSize(), methodNode.maxLocals);
+        for (AbstractInsnNode node : instructions) {
+            if (node instanceof VarInsnNode var)
+                next = Math.max(next, var.var + switch (var.getOpcode()) {
+                    case Opcodes.LLOAD, Opcodes.DLOAD, Opcodes.LSTORE, Opcodes.DSTORE -> 2;
+                    default -> 1;
+                });
+            else if (node instanceof IincInsnNode iinc)
+                next = Math.max(next, iinc.var + 1);
+        }
+
+        if (methodNode.localVariables != null)
+            for (LocalVariableNode local : methodNode.localVariables)
+                next = Math.max(next, local.index + Type.getType(local.desc).getSize());
+
+        return next;
+    }
+
+    private int newLocal(Type type) {
+        final int local = nextLocal;
+        nextLocal += type.getSize();
+
+        return local;
+    }
+
+    // region Constant folding
+
+    private void foldConstants() {
+        for (AbstractInsnNode node = instructions.getFirst(); node != null; node = node.getNext()) {
+            final AbstractInsnNode folded = fold(node);
+            if (folded != null)
+                node = folded;
+        }
+    }
+
+    private AbstractInsnNode fold(AbstractInsnNode node) {
+        final AbstractInsnNode right = node.getPrevious();
+        final Number b = constant(right);
+        if (b == null)
+            return null;
+
+        final Number unary = foldUnary(node.getOpcode(), b);
+        if (unary != null)
+            return replace(right, node, unary);
+
+        final AbstractInsnNode left = right.getPrevious();
+        final Number a = constant(left);
+        if (a == null)
+            return null;
+
+        final Number binary = foldBinary(node.getOpcode(), a, b);
+        if (binary != null)
+            return replace(left, node, binary);
+
+        return null;
+    }
+
+    private static Number foldUnary(int opcode, Number value) {
+        if (value instanceof Integer x)
+            return switch (opcode) {
+                case Opcodes.INEG -> -x;
+                case Opcodes.I2L -> (long) x;
+                case Opcodes.I2F -> (float) x;
+                case Opcodes.I2D -> (double) x;
+                case Opcodes.I2B -> (int) (byte) (int) x;
+                case Opcodes.I2C -> (int) (char) (int) x;
+                case Opcodes.I2S -> (int) (short) (int) x;
+                default -> null;
+            };
+        if (value instanceof Long x)
+            return switch (opcode) {
+                case Opcodes.LNEG -> -x;
+                case Opcodes.L2I -> (int) (long) x;
+                case Opcodes.L2F -> (float) x;
+                case Opcodes.L2D -> (double) x;
+                default -> null;
+            };
+        if (value instanceof Float x)
+            return switch (opcode) {
+                case Opcodes.FNEG -> -x;
+                case Opcodes.F2I -> (int) (float) x;
+                case Opcodes.F2L -> (long) (float) x;
+                case Opcodes.F2D -> (double) x;
+                default -> null;
+            };
+        if (value instanceof Double x)
+            return switch (opcode) {
+                case Opcodes.DNEG -> -x;
+                case Opcodes.D2I -> (int) (double) x;
+                case Opcodes.D2L -> (long) (double) x;
+                case Opcodes.D2F -> (float) (double) x;
+                default -> null;
+            };
+
+        return null;
+    }
+
+    private static Number foldBinary(int opcode, Number a, Number b) {
+        if (a instanceof Integer x && b instanceof Integer y)
+            return switch (opcode) {
+                case Opcodes.IADD -> x + y;
+                case Opcodes.ISUB -> x - y;
+                case Opcodes.IMUL -> x * y;
+                // Dividing by zero has to throw at runtime
+                case Opcodes.IDIV -> y == 0 ? null : x / y;
+                case Opcodes.IREM -> y == 0 ? null : x % y;
+                case Opcodes.ISHL -> x << y;
+                case Opcodes.ISHR -> x >> y;
+                case Opcodes.IUSHR -> x >>> y;
+                case Opcodes.IAND -> x & y;
+                case Opcodes.IOR -> x | y;
+                case Opcodes.IXOR -> x ^ y;
+                default -> null;
+            };
+        if (a instanceof Long x && b instanceof Long y)
+            return switch (opcode) {
+                case Opcodes.LADD -> x + y;
+                case Opcodes.LSUB -> x - y;
+                case Opcodes.LMUL -> x * y;
+                case Opcodes.LDIV -> y == 0 ? null : x / y;
+                case Opcodes.LREM -> y == 0 ? null : x % y;
+                case Opcodes.LAND -> x & y;
+                case Opcodes.LOR -> x | y;
+                case Opcodes.LXOR -> x ^ y;
+                case Opcodes.LCMP -> Long.compare(x, y);
+                default -> null;
+            };
+        if (a instanceof Long x && b instanceof Integer y)
+            return switch (opcode) {
+                case Opcodes.LSHL -> x << y;
+                case Opcodes.LSHR -> x >> y;
+                case Opcodes.LUSHR -> x >>> y;
+                default -> null;
+            };
+        if (a instanceof Float x && b instanceof Float y)
+            return switch (opcode) {
+                case Opcodes.FADD -> x + y;
+                case Opcodes.FSUB -> x - y;
+                case Opcodes.FMUL -> x * y;
+                case Opcodes.FDIV -> x / y;
+                case Opcodes.FREM -> x % y;
+                default -> null;
+            };
+        if (a instanceof Double x && b instanceof Double y)
+            return switch (opcode) {
+                case Opcodes.DADD -> x + y;
+                case Opcodes.DSUB -> x - y;
+                case Opcodes.DMUL -> x * y;
+                case Opcodes.DDIV -> x / y;
+                case Opcodes.DREM -> x % y;
+                default -> null;
+            };
+
+        return null;
+    }
+
+    private AbstractInsnNode replace(AbstractInsnNode from, AbstractInsnNode to, Number value) {
+        final LdcInsnNode constant = new LdcInsnNode(value);
+        instructions.insertBefore(from, constant);
+        removeRange(from, to);
+
+        return constant;
+    }
+
+    // endregion
+
+    // region Dead code elimination
+
+    /**
+     * Drops private methods and nested functions that nothing in the class calls anymore, mostly left behind by inlining,
+     * and a static initializer that doesn't do anything.
+     */
+    private static void removeUnusedMethods(ClassNode classNode) {
+        // Nest mates can call private methods of each other without going through this class
+        final boolean hasNestMates = classNode.nestHostClass != null
+                || classNode.nestMembers != null && !classNode.nestMembers.isEmpty();
+
+        final Set<MethodNode> used = new HashSet<>();
+        final Deque<MethodNode> queue = new ArrayDeque<>();
+        for (MethodNode methodNode : classNode.methods) {
+            final boolean removable = methodNode.name.contains("#")
+                    || !hasNestMates && (methodNode.access & Opcodes.ACC_PRIVATE) != 0 && !methodNode.name.startsWith("<");
+            if (!removable && used.add(methodNode))
+                queue.add(methodNode);
+        }
+
+        while (!queue.isEmpty())
+            for (AbstractInsnNode node : queue.poll().instructions)
+                for (Handle handle : references(node)) {
+                    if (!handle.getOwner().equals(classNode.name))
+                        continue;
+
+                    for (MethodNode methodNode : classNode.methods)
+                        if (methodNode.name.equals(handle.getName()) && methodNode.desc.equals(handle.getDesc()) && used.add(methodNode))
+                            queue.add(methodNode);
+                }
+
+        classNode.methods.removeIf(x -> !used.contains(x) || x.name.equals("<clinit>") && isEmpty(x));
+    }
+
+    private static List<Handle> references(AbstractInsnNode node) {
+        if (node instanceof MethodInsnNode call)
+            return List.of(new Handle(Opcodes.H_INVOKESTATIC, call.owner, call.name, call.desc, call.itf));
+        if (node instanceof LdcInsnNode ldc && ldc.cst instanceof Handle handle)
+            return List.of(handle);
+        if (node instanceof LdcInsnNode ldc && ldc.cst instanceof ConstantDynamic constant) {
+            final List<Handle> handles = new ArrayList<>();
+            handles.add(constant.getBootstrapMethod());
+            for (int i = 0; i < constant.getBootstrapMethodArgumentCount(); i++)
+                if (constant.getBootstrapMethodArgument(i) instanceof Handle handle)
+                    handles.add(handle);
+
+            return handles;
+        }
+        if (node instanceof InvokeDynamicInsnNode indy) {
+            final List<Handle> handles = new ArrayList<>();
+            handles.add(indy.bsm);
+            for (Object argument : indy.bsmArgs)
+                if (argument instanceof Handle handle)
+                    handles.add(handle);
+
+            return handles;
+        }
+
+        return List.of();
+    }
+
+    private static boolean isEmpty(MethodNode methodNode) {
+        for (AbstractInsnNode node : methodNode.instructions)
+            if (node.getOpcode() != -1 && node.getOpcode() != Opcodes.RETURN)
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Resolves conditional jumps on constants, e.g. "if true" or "while false".
+     */
+    private void foldBranches() {
+        for (AbstractInsnNode node = instructions.getFirst(); node != null; node = node.getNext()) {
+            if (!(node instanceof JumpInsnNode jump))
+                continue;
+
+            final int operands = operands(jump);
+            final Boolean taken = isTaken(jump, operands);
+            if (taken == null)
+                continue;
+
+            AbstractInsnNode first = jump;
+            for (int i = 0; i < operands; i++)
+                first = first.getPrevious();
+
+            final AbstractInsnNode replacement = taken ? new JumpInsnNode(Opcodes.GOTO, jump.label) : new InsnNode(Opcodes.NOP);
+            instructions.insertBefore(first, replacement);
+            removeRange(first, jump);
+
+            node = replacement;
+        }
+
+        for (AbstractInsnNode node : instructions.toArray())
+            if (node.getOpcode() == Opcodes.NOP)
+                instructions.remove(node);
+    }
+
+    private static int operands(JumpInsnNode jump) {
+        final int opcode = jump.getOpcode();
+        if (opcode >= Opcodes.IF_ICMPEQ && opcode <= Opcodes.IF_ACMPNE)
+            return 2;
+
+        return opcode == Opcodes.GOTO ? 0 : 1;
+    }
+
+    private static Boolean isTaken(JumpInsnNode jump, int operands) {
+        final int opcode = jump.getOpcode();
+        final AbstractInsnNode right = jump.getPrevious();
+        if (opcode == Opcodes.IFNULL || opcode == Opcodes.IFNONNULL)
+            return right.getOpcode() == Opcodes.ACONST_NULL ? opcode == Opcodes.IFNULL : null;
+
+        if (operands == 1 && constant(right) instanceof Integer x)
+            return compare(x, 0, opcode - Opcodes.IFEQ);
+        if (operands == 2 && opcode <= Opcodes.IF_ICMPLE
+                && constant(right) instanceof Integer y && constant(right.getPrevious()) instanceof Integer x)
+            return compare(x, y, opcode - Opcodes.IF_ICMPEQ);
+
+        return null;
+    }
+
+    // The comparisons are ordered like the IFEQ ... IFLE opcodes
+    private static boolean compare(int x, int y, int comparison) {
+        return switch (comparison) {
+            case 0 -> x == y;
+            case 1 -> x != y;
+            case 2 -> x < y;
+            case 3 -> x >= y;
+            case 4 -> x > y;
+            default -> x <= y;
+        };
+    }
+
+    /**
+     * Drops everything control can't reach, e.g. code after a return or a throw. Labels stay,
+     * they are cleaned up later if nothing refers to them anymore.
+     */
+    private void removeUnreachableCode() {
+        final Set<AbstractInsnNode> reachable = new HashSet<>();
+        final Deque<AbstractInsnNode> queue = new ArrayDeque<>();
+        queue.add(instructions.getFirst());
+
+        while (!queue.isEmpty()) {
+            AbstractInsnNode node = queue.poll();
+            while (node != null && reachable.add(node)) {
+                queue.addAll(targets(node));
+                if (isExit(node) || node.getOpcode() == Opcodes.GOTO
+                        || node instanceof TableSwitchInsnNode || node instanceof LookupSwitchInsnNode)
+                    break;
+
+                node = node.getNext();
+            }
+        }
+
+        for (AbstractInsnNode node : instructions.toArray())
+            if (node.getOpcode() != -1 && !reachable.contains(node))
+                instructions.remove(node);
+    }
+
+    /**
+     * Stores into locals that are never loaded only keep the side effects of their value.
+     */
+    private void removeUnusedLocals() {
+        final Set<Integer> loaded = new HashSet<>();
+        for (AbstractInsnNode node : instructions)
+            if (node instanceof VarInsnNode load && !isStore(load))
+                loaded.add(load.var);
+
+        for (AbstractInsnNode node : instructions.toArray()) {
+            if (node instanceof IincInsnNode iinc && !loaded.contains(iinc.var)) {
+                instructions.remove(iinc);
+
+                continue;
+            }
+
+            if (!(node instanceof VarInsnNode store) || !isStore(store) || loaded.contains(store.var))
+                continue;
+
+            final AbstractInsnNode value = store.getPrevious();
+            if (constant(value) != null || value.getOpcode() == Opcodes.ACONST_NULL
+                    || value instanceof LdcInsnNode ldc && (ldc.cst instanceof String || ldc.cst instanceof Type)
+                    || value instanceof VarInsnNode load && !isStore(load))
+                removeRange(value, store);
+            else {
+                final boolean wide = store.getOpcode() == Opcodes.LSTORE || store.getOpcode() == Opcodes.DSTORE;
+                instructions.set(store, new InsnNode(wide ? Opcodes.POP2 : Opcodes.POP));
+            }
+        }
+
+        final int parameters = parameterSize();
+        if (methodNode.localVariables != null)
+            methodNode.localVariables.removeIf(x -> x.index >= parameters && !loaded.contains(x.index));
+    }
+
+    private void removeRedundantJumps() {
+        for (AbstractInsnNode node : instructions.toArray()) {
+            if (!(node instanceof JumpInsnNode jump) || jump.getOpcode() != Opcodes.GOTO)
+                continue;
+
+            AbstractInsnNode next = jump.getNext();
+            while (next != null && next != jump.label && next.getOpcode() == -1)
+                next = next.getNext();
+
+            if (next == jump.label)
+                instructions.remove(jump);
+        }
+    }
+
+    private void removeUnusedLabels() {
+        final Set<LabelNode> used = jumpTargets();
+        if (methodNode.localVariables != null)
+            for (LocalVariableNode local : methodNode.localVariables) {
+                used.add(local.start);
+                used.add(local.end);
+            }
+
+        for (AbstractInsnNode node : instructions.toArray()) {
+            if (node instanceof LineNumberNode line)
+                used.add(line.start);
+            else if (node instanceof LabelNode label && !used.contains(label))
+                instructions.remove(label);
+        }
+    }
+
+    // endregion
+
+    // region Local slot reuse
+
+    /**
+     * Lets locals that are never needed at the same time share a slot, so the frame only has to be as large as the
+     * number of locals live at once. A local with a debug entry is needed for its whole scope, debuggers never see
+     * the value of another local under its name. Parameters keep their slots.
+     */
+    private void reuseLocalSlots() {
+        final int parameters = parameterSize();
+
+        final Map<Integer, Integer> widths = new TreeMap<>();
+        for (AbstractInsnNode node : instructions) {
+            final int var = var(node);
+            if (var < parameters)
+                continue;
+
+            final int width = isWide(node) ? 2 : 1;
+            final Integer previous = widths.put(var, width);
+            if (previous != null && previous != width)
+                return;
+        }
+
+        // Every slot has to belong to a single local, the compiler never hands out one twice
+        for (Map.Entry<Integer, Integer> entry : widths.entrySet())
+            if (entry.getValue() == 2 && widths.containsKey(entry.getKey() + 1))
+                return;
+
+        if (methodNode.localVariables != null)
+            methodNode.localVariables.removeIf(x -> x.index >= parameters && !widths.containsKey(x.index));
+        if (widths.isEmpty())
+            return;
+
+        final List<Integer> vars = new ArrayList<>(widths.keySet());
+        final Map<Integer, Integer> ids = new HashMap<>();
+        for (int i = 0; i < vars.size(); i++)
+            ids.put(vars.get(i), i);
+
+        final AbstractInsnNode[] nodes = instructions.toArray();
+        final BitSet[] needed = liveness(nodes, ids);
+
+        if (methodNode.localVariables != null)
+            for (LocalVariableNode local : methodNode.localVariables) {
+                final Integer id = ids.get(local.index);
+                if (id != null)
+                    needed[id].set(instructions.indexOf(local.start), instructions.indexOf(local.end) + 1);
+            }
+
+        final List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < vars.size(); i++)
+            order.add(i);
+        order.sort(Comparator.comparingInt(x -> needed[x].nextSetBit(0)));
+
+        final Map<Integer, List<Integer>> occupants = new HashMap<>();
+        final int[] slots = new int[vars.size()];
+        for (int id : order) {
+            final int width = widths.get(vars.get(id));
+
+            int slot = parameters;
+            while (!fits(occupants, needed, slot, width, id))
+                slot++;
+
+            slots[id] = slot;
+            for (int i = 0; i < width; i++)
+                occupants.computeIfAbsent(slot + i, x -> new ArrayList<>()).add(id);
+        }
+
+        for (AbstractInsnNode node : nodes) {
+            if (node instanceof VarInsnNode var && var.var >= parameters)
+                var.var = slots[ids.get(var.var)];
+            else if (node instanceof IincInsnNode iinc && iinc.var >= parameters)
+                iinc.var = slots[ids.get(iinc.var)];
+        }
+
+        if (methodNode.localVariables != null)
+            for (LocalVariableNode local : methodNode.localVariables)
+                if (local.index >= parameters)
+                    local.index = slots[ids.get(local.index)];
+    }
+
+    private static boolean fits(Map<Integer, List<Integer>> occupants, BitSet[] needed, int slot, int width, int id) {
+        for (int i = 0; i < width; i++)
+            for (int other : occupants.getOrDefault(slot + i, List.of()))
+                if (needed[other].intersects(needed[id]))
+                    return false;
+
+        return true;
+    }
+
+    /**
+     * For every local, the instructions after which its value is still going to be read, and the ones storing it.
+     */
+    private BitSet[] liveness(AbstractInsnNode[] nodes, Map<Integer, Integer> ids) {
+        final int[][] successors = new int[nodes.length][];
+        for (int i = 0; i < nodes.length; i++) {
+            final List<LabelNode> targets = targets(nodes[i]);
+            final boolean fallsThrough = i + 1 < nodes.length && !isExit(nodes[i]) && nodes[i].getOpcode() != Opcodes.GOTO
+                    && !(nodes[i] instanceof TableSwitchInsnNode) && !(nodes[i] instanceof LookupSwitchInsnNode);
+
+            successors[i] = new int[targets.size() + (fallsThrough ? 1 : 0)];
+            for (int j = 0; j < targets.size(); j++)
+                successors[i][j] = instructions.indexOf(targets.get(j));
+            if (fallsThrough)
+                successors[i][targets.size()] = i + 1;
+        }
+
+        final BitSet[] liveIn = new BitSet[nodes.length];
+        final BitSet[] liveOut = new BitSet[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            liveIn[i] = new BitSet();
+            liveOut[i] = new BitSet();
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = nodes.length - 1; i >= 0; i--) {
+                final BitSet out = new BitSet();
+                for (int successor : successors[i])
+                    out.or(liveIn[successor]);
+
+                final BitSet in = (BitSet) out.clone();
+                final Integer id = ids.get(var(nodes[i]));
+                if (id != null) {
+                    if (isStore(nodes[i]))
+                        in.clear(id);
+                    else in.set(id);
+                }
+
+                liveOut[i] = out;
+                if (!in.equals(liveIn[i])) {
+                    liveIn[i] = in;
+                    changed = true;
+                }
+            }
+        }
+
+        final BitSet[] needed = new BitSet[ids.size()];
+        for (int i = 0; i < needed.length; i++)
+            needed[i] = new BitSet();
+
+        for (int i = 0; i < nodes.length; i++) {
+            final BitSet out = liveOut[i];
+            for (int id = out.nextSetBit(0); id >= 0; id = out.nextSetBit(id + 1))
+                needed[id].set(i);
+
+            final Integer id = ids.get(var(nodes[i]));
+            if (id != null && (isStore(nodes[i]) || nodes[i] instanceof IincInsnNode))
+                needed[id].set(i);
+        }
+
+        return needed;
+    }
+
+    private static int var(AbstractInsnNode node) {
+        if (node instanceof VarInsnNode var)
+            return var.var;
+        if (node instanceof IincInsnNode iinc)
+            return iinc.var;
+
+        return -1;
+    }
+
+    private static boolean isWide(AbstractInsnNode node) {
+        final int opcode = node.getOpcode();
+        return opcode == Opcodes.LLOAD || opcode == Opcodes.DLOAD || opcode == Opcodes.LSTORE || opcode == Opcodes.DSTORE;
+    }
+
+    private static boolean isStore(AbstractInsnNode node) {
+        return node instanceof VarInsnNode var && isStore(var);
+    }
+
+    // endregion
+
+    // region Loop unrolling
+
+    /**
+     * Fully unrolls a counting loop whose bounds are constant and whose trip count is small.
+     * The first iteration keeps the original nodes, so the ranges of local variables stay valid.
+     */
+    private void unroll(Loop loop) {
+        final List<AbstractInsnNode> condition = condition(loop);
+        if (condition.size() != 3)
+            return;
+
+        final JumpInsnNode exit = (JumpInsnNode) condition.get(2);
+        final AbstractInsnNode increment = previousReal(loop.backEdge);
+        if (!(increment instanceof IincInsnNode step) || step.incr <= 0)
+            return;
+
+        int opcode = exit.getOpcode();
+        final AbstractInsnNode bound;
+        if (isLoadOf(condition.get(0), step.var))
+            bound = condition.get(1);
+        else if (isLoadOf(condition.get(1), step.var)) {
+            bound = condition.get(0);
+            opcode = mirror(opcode);
+        } else return;
+
+        final List<AbstractInsnNode> nodes = nodes(loop);
+        if (writes(nodes, step.var) != 1)
+            return;
+
+        final Integer first = constantAtEntry(step.var, loop.header);
+        final Integer limit = bound instanceof VarInsnNode load && load.getOpcode() == Opcodes.ILOAD
+                ? (writes(nodes, load.var) == 0 ? constantAtEntry(load.var, loop.header) : null)
+                : constant(bound) instanceof Integer value ? value : null;
+        if (first == null || limit == null)
+            return;
+
+        // The loop keeps going while "i < limit" or "i <= limit", anything else isn't a counting loop
+        final long span = switch (opcode) {
+            case Opcodes.IF_ICMPGE -> (long) limit - first;
+            case Opcodes.IF_ICMPGT -> (long) limit - first + 1;
+            default -> -1;
+        };
+        if (span <= 0)
+            return;
+
+        final long trips = (span + step.incr - 1) / step.incr;
+        if (trips > MAX_UNROLLED_TRIPS || (long) first + trips * step.incr > Integer.MAX_VALUE)
+            return;
+
+        final List<AbstractInsnNode> body = new ArrayList<>();
+        for (AbstractInsnNode node = exit.getNext(); node != increment; node = node.getNext())
+            body.add(node);
+
+        final Set<LabelNode> labels = new HashSet<>();
+        int size = 1;
+        for (AbstractInsnNode node : body) {
+            if (node instanceof LabelNode label)
+                labels.add(label);
+            else if (node.getOpcode() != -1)
+                size++;
+        }
+
+        if (size * trips > MAX_UNROLLED_SIZE)
+            return;
+
+        for (AbstractInsnNode node : body)
+            for (LabelNode target : targets(node))
+                if (!labels.contains(target))
+                    return;
+
+        final InsnList copies = new InsnList();
+        for (int i = 1; i < trips; i++) {
+            final Map<LabelNode, LabelNode> clones = new HashMap<>();
+            for (LabelNode label : labels)
+                clones.put(label, new LabelNode());
+
+            for (AbstractInsnNode node : body) {
+                if (node instanceof FrameNode || node instanceof LineNumberNode line && !labels.contains(line.start))
+                    continue;
+
+                copies.add(node.clone(clones));
+            }
+            copies.add(step.clone(clones));
+        }
+
+        instructions.insert(increment, copies);
+        for (AbstractInsnNode node : condition)
+            instructions.remove(node);
+        instructions.remove(loop.backEdge);
+    }
+
+    private static int mirror(int opcode) {
+        return switch (opcode) {
+            case Opcodes.IF_ICMPLT -> Opcodes.IF_ICMPGT;
+            case Opcodes.IF_ICMPGT -> Opcodes.IF_ICMPLT;
+            case Opcodes.IF_ICMPLE -> Opcodes.IF_ICMPGE;
+            case Opcodes.IF_ICMPGE -> Opcodes.IF_ICMPLE;
+            default -> opcode;
+        };
+    }
+
+    /**
+     * Follows the straight line code in front of the loop back to the last store into the local.
+     */
+    private Integer constantAtEntry(int var, LabelNode header) {
+        final Set<LabelNode> targets = jumpTargets();
+        for (AbstractInsnNode node = header.getPrevious(); node != null; node = node.getPrevious()) {
+            if (node instanceof LabelNode label && targets.contains(label))
+                return null;
+            if (node instanceof JumpInsnNode || !targets(node).isEmpty() || isExit(node))
+                return null;
+            if (node instanceof IincInsnNode iinc && iinc.var == var)
+                return null;
+
+            if (node instanceof VarInsnNode store && store.var == var && isStore(store))
+                return store.getOpcode() == Opcodes.ISTORE && constant(store.getPrevious()) instanceof Integer value
+                        ? value
+                        : null;
+        }
+
+        return null;
+    }
+
+    // endregion
+
+    // region Loop invariant code motion
+
+    private void hoistInvariants(Loop loop) {
+        AbstractInsnNode[] invariant;
+        while ((invariant = findInvariant(loop)) != null) {
+            final Type type = invariant[1] instanceof FieldInsnNode field
+                    ? Type.getType(field.desc)
+                    : Type.INT_TYPE;
+            final int local = newLocal(type);
+
+            final InsnList hoisted = new InsnList();
+            hoisted.add(invariant[0].clone(Map.of()));
+            hoisted.add(invariant[1].clone(Map.of()));
+            hoisted.add(new VarInsnNode(type.getOpcode(Opcodes.ISTORE), local));
+
+            for (AbstractInsnNode node : nodes(loop)) {
+                if (!same(node, invariant[0]) || !same(node.getNext(), invariant[1]))
+                    continue;
+
+                instructions.insertBefore(node, new VarInsnNode(type.getOpcode(Opcodes.ILOAD), local));
+                removeRange(node, node.getNext());
+            }
+
+            instructions.insertBefore(loop.header, hoisted);
+        }
+    }
+
+    /**
+     * Finds a value the loop loads over and over again that can't change while it runs.
+     * Only the condition is evaluated on every entry, so anything that might throw has to come from there.
+     */
+    private AbstractInsnNode[] findInvariant(Loop loop) {
+        final List<AbstractInsnNode> nodes = nodes(loop);
+        final List<AbstractInsnNode> condition = condition(loop);
+
+        boolean effects = false;
+        final Set<String> storedFields = new HashSet<>();
+        for (AbstractInsnNode node : nodes) {
+            if (node instanceof FieldInsnNode field && (field.getOpcode() == Opcodes.PUTFIELD || field.getOpcode() == Opcodes.PUTSTATIC))
+                storedFields.add(field.owner + "." + field.name);
+            else if (node instanceof MethodInsnNode || node instanceof InvokeDynamicInsnNode)
+                effects |= !isReadOnly(node);
+            else if (node.getOpcode() == Opcodes.MONITORENTER)
+                effects = true;
+        }
+
+        for (AbstractInsnNode node : nodes) {
+            if (!(node instanceof VarInsnNode load) || load.getOpcode() != Opcodes.ALOAD || writes(nodes, load.var) != 0)
+                continue;
+
+            final AbstractInsnNode next = load.getNext();
+            if (next == null)
+                continue;
+
+            if (!effects && next instanceof FieldInsnNode field && isThisField(load, field)
+                    && !storedFields.contains(field.owner + "." + field.name))
+                return new AbstractInsnNode[] { load, next };
+
+            if (!condition.contains(load))
+                continue;
+
+            if (next.getOpcode() == Opcodes.ARRAYLENGTH
+                    || isCall(next, "java/lang/String.length()I")
+                    || !effects && isSize(next))
+                return new AbstractInsnNode[] { load, next };
+        }
+
+        return null;
+    }
+
+    // "this" is never null, so its fields can be loaded up front even if the loop doesn't run
+    private boolean isThisField(VarInsnNode load, FieldInsnNode field) {
+        if (load.var != 0 || field.getOpcode() != Opcodes.GETFIELD || (methodNode.access & Opcodes.ACC_STATIC) != 0
+                || !field.owner.equals(classNode.name))
+            return false;
+
+        for (FieldNode fieldNode : classNode.fields)
+            if (fieldNode.name.equals(field.name) && fieldNode.desc.equals(field.desc))
+                return (fieldNode.access & (Opcodes.ACC_STATIC | Opcodes.ACC_VOLATILE)) == 0;
+
+        return false;
+    }
+
+    private static boolean isSize(AbstractInsnNode node) {
+        return node instanceof MethodInsnNode method && method.name.equals("size")
+                && READ_ONLY_METHODS.contains(method.owner + "." + method.name + method.desc);
+    }
+
+    private static boolean isReadOnly(AbstractInsnNode node) {
+        if (node instanceof InvokeDynamicInsnNode indy)
+            return indy.bsm.getOwner().equals("java/lang/invoke/StringConcatFactory") && hasPlainArguments(indy.desc);
+
+        final MethodInsnNode method = (MethodInsnNode) node;
+        if (READ_ONLY_METHODS.contains(method.owner + "." + method.name + method.desc))
+            return true;
+
+        return PURE_OWNERS.contains(method.owner) && hasPlainArguments(method.desc);
+    }
+
+    // Arguments that can't call back into code that changes state, unlike e.g. Object#toString
+    private static boolean hasPlainArguments(String descriptor) {
+        for (Type argument : Type.getArgumentTypes(descriptor))
+            if (argument.getSort() == Type.ARRAY
+                    || argument.getSort() == Type.OBJECT && !argument.getInternalName().equals("java/lang/String"))
+                return false;
+
+        return true;
+    }
+
+    // endregion
+
+    // region Strength reduction
+
+    /**
+     * Replaces "i * k", where i is only ever changed by a single increment in the loop, with a new
+     * local that is kept at i * k by its own increment.
+     */
+    private void reduceInductionVariables(Loop loop) {
+        final List<AbstractInsnNode> nodes = nodes(loop);
+
+        final Map<Integer, IincInsnNode> increments = new HashMap<>();
+        for (AbstractInsnNode node : nodes)
+            if (node instanceof IincInsnNode iinc && writes(nodes, iinc.var) == 1)
+                increments.put(iinc.var, iinc);
+
+        final Map<Long, Integer> reduced = new LinkedHashMap<>();
+        for (AbstractInsnNode node : nodes) {
+            if (node.getOpcode() != Opcodes.IMUL)
+                continue;
+
+            final AbstractInsnNode right = node.getPrevious();
+            final AbstractInsnNode left = right == null ? null : right.getPrevious();
+
+            final VarInsnNode load;
+            final Number factor;
+            if (left instanceof VarInsnNode var && var.getOpcode() == Opcodes.ILOAD && constant(right) instanceof Integer) {
+                load = var;
+                factor = constant(right);
+            } else if (right instanceof VarInsnNode var && var.getOpcode() == Opcodes.ILOAD && constant(left) instanceof Integer) {
+                load = var;
+                factor = constant(left);
+            } else continue;
+
+            final IincInsnNode increment = increments.get(load.var);
+            final int k = factor.intValue();
+            if (increment == null || k == 0 || k == 1)
+                continue;
+
+            final int local = reduced.computeIfAbsent(((long) load.var << 32) | (k & 0xFFFFFFFFL),
+                    x -> newInductionVariable(loop, load.var, k, increment));
+
+            instructions.insertBefore(left, new VarInsnNode(Opcodes.ILOAD, local));
+            removeRange(left, node);
+        }
+    }
+
+    private int newInductionVariable(Loop loop, int var, int factor, IincInsnNode increment) {
+        final int local = newLocal(Type.INT_TYPE);
+
+        final InsnList initial = new InsnList();
+        initial.add(new VarInsnNode(Opcodes.ILOAD, var));
+        initial.add(new LdcInsnNode(factor));
+        initial.add(new InsnNode(Opcodes.IMUL));
+        initial.add(new VarInsnNode(Opcodes.ISTORE, local));
+        instructions.insertBefore(loop.header, initial);
+
+        final int step = increment.incr * factor;
+        if (step >= Short.MIN_VALUE && step <= Short.MAX_VALUE)
+            instructions.insert(increment, new IincInsnNode(local, step));
+        else {
+            final InsnList update = new InsnList();
+            update.add(new VarInsnNode(Opcodes.ILOAD, local));
+            update.add(new LdcInsnNode(step));
+            update.add(new InsnNode(Opcodes.IADD));
+            update.add(new VarInsnNode(Opcodes.ISTORE, local));
+            instructions.insert(increment, update);
+        }
+
+        return local;
+    }
+
+    /**
+     * Turns multiplications and divisions by a power of two into shifts. Division rounds towards zero,
+     * so negative dividends are biased by the divisor minus one first.
+     */
+    private void reduceArithmetic() {
+        for (AbstractInsnNode node = instructions.getFirst(); node != null; node = node.getNext()) {
+            final int opcode = node.getOpcode();
+            if (opcode != Opcodes.IMUL && opcode != Opcodes.LMUL && opcode != Opcodes.IDIV && opcode != Opcodes.LDIV)
+                continue;
+
+            final boolean wide = opcode == Opcodes.LMUL || opcode == Opcodes.LDIV;
+            final boolean multiply = opcode == Opcodes.IMUL || opcode == Opcodes.LMUL;
+
+            AbstractInsnNode operand = node.getPrevious();
+            // "8 * x" is the same as "x * 8"
+            if (multiply && operand instanceof VarInsnNode load && load.getOpcode() == (wide ? Opcodes.LLOAD : Opcodes.ILOAD)
+                    && constant(load.getPrevious()) != null) {
+                final AbstractInsnNode factor = load.getPrevious();
+                instructions.remove(factor);
+                instructions.insert(load, factor);
+
+                operand = factor;
+            }
+
+            final Number value = constant(operand);
+            if (!(wide ? value instanceof Long : value instanceof Integer))
+                continue;
+
+            final long divisor = value.longValue();
+            if (divisor <= 0 || Long.bitCount(divisor) != 1)
+                continue;
+
+            final int shift = Long.numberOfTrailingZeros(divisor);
+            final int bits = wide ? 64 : 32;
+
+            final InsnList reduced = new InsnList();
+            if (shift != 0 && multiply) {
+                reduced.add(new LdcInsnNode(shift));
+                reduced.add(new InsnNode(wide ? Opcodes.LSHL : Opcodes.ISHL));
+            } else if (shift != 0) {
+                reduced.add(new InsnNode(wide ? Opcodes.DUP2 : Opcodes.DUP));
+                reduced.add(new LdcInsnNode(bits - 1));
+                reduced.add(new InsnNode(wide ? Opcodes.LSHR : Opcodes.ISHR));
+                reduced.add(new LdcInsnNode(bits - shift));
+                reduced.add(new InsnNode(wide ? Opcodes.LUSHR : Opcodes.IUSHR));
+                reduced.add(new InsnNode(wide ? Opcodes.LADD : Opcodes.IADD));
+                reduced.add(new LdcInsnNode(shift));
+                reduced.add(new InsnNode(wide ? Opcodes.LSHR : Opcodes.ISHR));
+            }
+
+            final AbstractInsnNode resume = reduced.size() == 0 ? operand.getPrevious() : reduced.getLast();
+            instructions.insertBefore(operand, reduced);
+            removeRange(operand, node);
+
+            node = resume;
+        }
+    }
+
+    // endregion
+
+    // region Loops
+
+    /**
+     * All loops that can only be entered through their header, innermost first.
+     */
+    private List<Loop> loops() {
+        final Map<LabelNode, JumpInsnNode> backEdges = new LinkedHashMap<>();
+        final Set<LabelNode> seen = new HashSet<>();
+        for (AbstractInsnNode node : instructions) {
+            if (node instanceof LabelNode label)
+                seen.add(label);
+            else if (node instanceof JumpInsnNode jump && jump.getOpcode() == Opcodes.GOTO && seen.contains(jump.label))
+                backEdges.put(jump.label, jump);
+        }
+
+        final List<Loop> loops = new ArrayList<>();
+        for (Map.Entry<LabelNode, JumpInsnNode> entry : backEdges.entrySet()) {
+            final Loop loop = new Loop(entry.getKey(), entry.getValue());
+            if (isSingleEntry(loop))
+                loops.add(loop);
+        }
+
+        loops.sort(Comparator.comparingInt(x -> instructions.indexOf(x.backEdge) - instructions.indexOf(x.header)));
+        return loops;
+    }
+
+    private boolean isSingleEntry(Loop loop) {
+        final int from = instructions.indexOf(loop.header);
+        final int to = instructions.indexOf(loop.backEdge);
+
+        for (AbstractInsnNode node : instructions) {
+            final int index = instructions.indexOf(node);
+            if (index >= from && index <= to)
+                continue;
+
+            for (LabelNode target : targets(node)) {
+                final int targetIndex = instructions.indexOf(target);
+                if (targetIndex >= from && targetIndex <= to)
+                    return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static List<AbstractInsnNode> nodes(Loop loop) {
+        final List<AbstractInsnNode> nodes = new ArrayList<>();
+        for (AbstractInsnNode node = loop.header; node != loop.backEdge.getNext(); node = node.getNext())
+            nodes.add(node);
+
+        return nodes;
+    }
+
+    /**
+     * The instructions from the header up to the jump that leaves the loop, empty if the loop doesn't start with one.
+     */
+    private List<AbstractInsnNode> condition(Loop loop) {
+        final List<AbstractInsnNode> condition = new ArrayList<>();
+        for (AbstractInsnNode node = loop.header; node != loop.backEdge; node = node.getNext()) {
+            if (node.getOpcode() == -1)
+                continue;
+
+            condition.add(node);
+            if (node instanceof JumpInsnNode jump)
+                return jump.getOpcode() != Opcodes.GOTO
+                        && instructions.indexOf(jump.label) > instructions.indexOf(loop.backEdge)
+                        ? condition
+                        : List.of();
+            if (!targets(node).isEmpty() || isExit(node))
+                return List.of();
+        }
+
+        return List.of();
+    }
+
+    private static int writes(List<AbstractInsnNode> nodes, int var) {
+        int writes = 0;
+        for (AbstractInsnNode node : nodes)
+            if (node instanceof VarInsnNode store && store.var == var && isStore(store)
+                    || node instanceof IincInsnNode iinc && iinc.var == var)
+                writes++;
+
+        return writes;
+    }
+
+    private Set<LabelNode> jumpTargets() {
+        final Set<LabelNode> targets = new HashSet<>();
+        for (AbstractInsnNode node : instructions)
+            targets.addAll(targets(node));
+
+        return targets;
+    }
+
+    private static List<LabelNode> targets(AbstractInsnNode node) {
+        if (node instanceof JumpInsnNode jump)
+            return List.of(jump.label);
+        if (node instanceof TableSwitchInsnNode tableSwitch) {
+            final List<LabelNode> targets = new ArrayList<>(tableSwitch.labels);
+            targets.add(tableSwitch.dflt);
+
+            return targets;
+        }
+        if (node instanceof LookupSwitchInsnNode lookupSwitch) {
+            final List<LabelNode> targets = new ArrayList<>(lookupSwitch.labels);
+            targets.add(lookupSwitch.dflt);
+
+            return targets;
+        }
+
+        return List.of();
+    }
+
+    // endregion
+
+    private static AbstractInsnNode previousReal(AbstractInsnNode node) {
+        node = node.getPrevious();
+        while (node != null && node.getOpcode() == -1)
+            node = node.getPrevious();
+
+        return node;
+    }
+
+    private static boolean isExit(AbstractInsnNode node) {
+        final int opcode = node.getOpcode();
+        return opcode == Opcodes.ATHROW || opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN;
+    }
+
+    private static boolean isStore(VarInsnNode node) {
+        return node.getOpcode() >= Opcodes.ISTORE && node.getOpcode() <= Opcodes.ASTORE;
+    }
+
+    private static boolean isLoadOf(AbstractInsnNode node, int var) {
+        return node instanceof VarInsnNode load && load.getOpcode() == Opcodes.ILOAD && load.var == var;
+    }
+
+    private static boolean isCall(AbstractInsnNode node, String method) {
+        return node instanceof MethodInsnNode call && method.equals(call.owner + "." + call.name + call.desc);
+    }
+
+    private static boolean same(AbstractInsnNode a, AbstractInsnNode b) {
+        if (a == null || b == null || a.getOpcode() != b.getOpcode())
+            return false;
+
+        if (a instanceof VarInsnNode x)
+            return x.var == ((VarInsnNode) b).var;
+        if (a instanceof FieldInsnNode x)
+            return b instanceof FieldInsnNode y && x.owner.equals(y.owner) && x.name.equals(y.name) && x.desc.equals(y.desc);
+        if (a instanceof MethodInsnNode x)
+            return b instanceof MethodInsnNode y && x.owner.equals(y.owner) && x.name.equals(y.name) && x.desc.equals(y.desc);
+
+        return a instanceof InsnNode;
+    }
+
+    private static Number constant(AbstractInsnNode node) {
+        if (node == null)
+            return null;
+
+        final int opcode = node.getOpcode();
+        if (opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.ICONST_5)
+            return opcode - Opcodes.ICONST_0;
+        if (opcode == Opcodes.LCONST_0 || opcode == Opcodes.LCONST_1)
+            return (long) (opcode - Opcodes.LCONST_0);
+        if (opcode >= Opcodes.FCONST_0 && opcode <= Opcodes.FCONST_2)
+            return (float) (opcode - Opcodes.FCONST_0);
+        if (opcode == Opcodes.DCONST_0 || opcode == Opcodes.DCONST_1)
+            return (double) (opcode - Opcodes.DCONST_0);
+        if (opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH)
+            return ((IntInsnNode) node).operand;
+        if (node instanceof LdcInsnNode ldc && ldc.cst instanceof Number number)
+            return number;
+
+        return null;
+    }
+
+    private void removeRange(AbstractInsnNode from, AbstractInsnNode to) {
+        AbstractInsnNode node = from;
+        while (true) {
+            final AbstractInsnNode next = node.getNext();
+            instructions.remove(node);
+            if (node == to)
+                return;
+
+            node = next;
+        }
+    }
+}
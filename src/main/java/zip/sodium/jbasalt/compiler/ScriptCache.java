@@ -0,0 +1,272 @@
+package zip.sodium.jbasalt.compiler;
+
+import zip.sodium.jbasalt.Parser;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the bytecode of compiled scripts, keyed by the SHA-256 of their source, the compiler version and options
+ * and their parent loader, so running the same script again only has to define its classes. The least recently used scripts are evicted
+ * once there are more than {@code maxEntries} of them or their classes take more than {@code maxBytes}.
+ * Threads compiling the same script at the same time share a single compilation.
+ * Every script gets a package of its own, derived from its key, so scripts compiled side by side never share a class.
+ * Misses go to the {@link BytecodeCache} first, if there is one.
+ */
+public final class ScriptCache {
+    public static final String SCRIPT_PACKAGE = "zip.sodium.generated";
+    public static final String SCRIPT_NAME = "Main";
+
+    public static final ScriptCache DEFAULT = new ScriptCache(
+            Integer.getInteger("basalt.cache.entries", 256),
+            Long.getLong("basalt.cache.bytes", 64L * 1024 * 1024));
+
+    private final int maxEntries;
+    private final long maxBytes;
+
+    // Guarded by itself, iterates from the least to the most recently used script
+    private final LinkedHashMap<String, Script> scripts = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final Map<String, CompletableFuture<Compilation>> compiling = new ConcurrentHashMap<>();
+
+    // Loaders with the same class path can still define different classes, each one gets its own scripts in memory
+    private static final Map<ClassLoader, Long> LOADER_IDS = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final AtomicLong NEXT_LOADER_ID = new AtomicLong(1);
+
+    private volatile BytecodeCache bytecodeCache = BytecodeCache.DEFAULT;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ScriptCache(int maxEntries, long maxBytes) {
+        if (maxEntries < 0 || maxBytes < 0)
+            throw new IllegalArgumentException("Cache bounds can't be negative!");
+
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the classes of a script, compiling it only if it isn't cached yet.
+     * Scripts with errors are compiled again every time, so their errors are reported every time.
+     */
+    public Script compile(String source, ClassLoader parent) {
+        return compileShared(source, parent).script();
+    }
+
+    /**
+     * Like {@link #compile(String, ClassLoader)}, but nothing is returned if the script had errors.
+     */
+    public Optional<Script> tryCompile(String source, ClassLoader parent) {
+        final Compilation compilation;
+        try {
+            compilation = compileShared(source, parent);
+        } catch (CompilationException e) {
+            return Optional.empty();
+        }
+
+        return compilation.hadError() ? Optional.empty() : Optional.of(compilation.script());
+    }
+
+    /**
+     * Like {@link #compile(String, ClassLoader)}, but a script with errors throws them.
+     *
+     * @throws CompilationException if the script had errors
+     */
+    public Script compileOrThrow(String source, ClassLoader parent) {
+        final Compilation compilation = compileShared(source, parent);
+        if (compilation.hadError())
+            throw new CompilationException(compilation.errors());
+
+        return compilation.script();
+    }
+
+    private Compilation compileShared(String source, ClassLoader parent) {
+        final String key = key(source, parent);
+        final String memoryKey = memoryKey(key, parent);
+
+        final Script cached = get(memoryKey);
+        if (cached != null) {
+            hits.increment();
+
+            return new Compilation(cached, List.of());
+        }
+
+        final CompletableFuture<Compilation> compilation = new CompletableFuture<>();
+        final CompletableFuture<Compilation> running = compiling.putIfAbsent(memoryKey, compilation);
+        if (running != null) {
+            hits.increment();
+
+            return join(running);
+        }
+
+        misses.increment();
+        try {
+            final Compilation result = compileUncached(key, memoryKey, source, parent);
+            compilation.complete(result);
+
+            return result;
+        } catch (RuntimeException | Error e) {
+            compilation.completeExceptionally(e);
+
+            throw e;
+        } finally {
+            compiling.remove(memoryKey, compilation);
+        }
+    }
+
+    private Compilation compileUncached(String key, String memoryKey, String source, ClassLoader parent) {
+        // A compilation that just finished might have put it in between the lookup and claiming the key
+        final Script cached = get(memoryKey);
+        if (cached != null)
+            return new Compilation(cached, List.of());
+
+        // Survives restarts. A script only sees the classes of its parent, the key covers their class path.
+        // Loaders that define classes some other way are only told apart by their class and name there.
+        final BytecodeCache bytecodeCache = this.bytecodeCache;
+        final BytecodeCache.Entry stored = bytecodeCache == null ? null : bytecodeCache.load(key);
+        final String className = scriptPackage(key) + "." + SCRIPT_NAME;
+        if (stored != null) {
+            final Script script = new Script(className, stored.classes());
+            put(memoryKey, script);
+
+            return new Compilation(script, List.of());
+        }
+
+        final EphemeralRunner runner = new EphemeralRunner(parent);
+        final Compiler compiler = new Compiler(scriptPackage(key), SCRIPT_NAME, runner, true);
+        try {
+            compiler.compileToEphemeralRunner(source);
+        } catch (RuntimeException e) {
+            // Some errors still make the compiler bail out with an exception, the ones reported until then say why
+            if (compiler.parser.hadError())
+                throw new CompilationException(compiler.parser.getErrors(), e);
+
+            throw e;
+        } finally {
+            // Otherwise the static map keeps the trees of every script around long after it ran
+            compiler.forgetClasses();
+        }
+
+        final Script script = new Script(className, Map.copyOf(runner.classes));
+        if (!compiler.parser.hadError()) {
+            put(memoryKey, script);
+
+            if (bytecodeCache != null)
+                bytecodeCache.store(key, script.classes(), Map.of());
+        }
+
+        return new Compilation(script, compiler.parser.getErrors());
+    }
+
+    private Script get(String key) {
+        synchronized (scripts) {
+            return scripts.get(key);
+        }
+    }
+
+    private void put(String key, Script script) {
+        final long size = size(script);
+
+        synchronized (scripts) {
+            final Script previous = scripts.put(key, script);
+            if (previous != null)
+                bytes -= size(previous);
+            bytes += size;
+
+            final Iterator<Script> eldest = scripts.values().iterator();
+            while ((scripts.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+                bytes -= size(eldest.next());
+                eldest.remove();
+
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Sets the directory scripts are also kept in between restarts, null only keeps them in memory.
+     */
+    public void setBytecodeCache(BytecodeCache bytecodeCache) {
+        this.bytecodeCache = bytecodeCache;
+    }
+
+    public void clear() {
+        synchronized (scripts) {
+            scripts.clear();
+            bytes = 0;
+        }
+    }
+
+    public Stats stats() {
+        synchronized (scripts) {
+            return new Stats(hits.sum(), misses.sum(), evictions.sum(), scripts.size(), bytes);
+        }
+    }
+
+    public record Stats(long hits, long misses, long evictions, int entries, long bytes) {}
+
+    /**
+     * The classes of a script by their binary name, and the name of its Main class.
+     */
+    public record Script(String className, Map<String, byte[]> classes) {}
+
+    private record Compilation(Script script, List<Parser.Diagnostic> errors) {
+        boolean hadError() {
+            return !errors.isEmpty();
+        }
+    }
+
+    /**
+     * The SHA-256 of a source and everything else that changes what it compiles to, the classes of the parent included.
+     */
+    static String key(String source, ClassLoader parent) {
+        return BytecodeCache.key(BytecodeCache.fingerprint(parent), SCRIPT_PACKAGE, source);
+    }
+
+    /**
+     * The key along with the identity of the parent, scripts in memory are only shared by the same loader.
+     */
+    private static String memoryKey(String key, ClassLoader parent) {
+        final long loaderId = parent == null ? 0 : LOADER_IDS.computeIfAbsent(parent, x -> NEXT_LOADER_ID.getAndIncrement());
+
+        return key + "@" + loaderId;
+    }
+
+    private static String scriptPackage(String key) {
+        return SCRIPT_PACKAGE + ".s" + key.substring(0, 16);
+    }
+
+    private static long size(Script script) {
+        long size = 0;
+        for (byte[] bytes : script.classes().values())
+            size += bytes.length;
+
+        return size;
+    }
+
+    private static Compilation join(CompletableFuture<Compilation> compilation) {
+        try {
+            return compilation.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtime)
+                throw runtime;
+            if (e.getCause() instanceof Error error)
+                throw error;
+
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package zip.sodium.jbasalt.compiler;
+
+import org.apache.commons.io.FilenameUtils;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InnerClassNode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+public class SourceCompiler implements CompileFunction {
+    private final File sourceDirectory;
+    private final File outputDirectory;
+
+    public SourceCompiler(File sourceDirectory, File outputDirectory) {
+        this.sourceDirectory = sourceDirectory;
+        this.outputDirectory = outputDirectory;
+    }
+
+    public String getPackage(File f) {
+        final Path relative = sourceDirectory.toPath().toAbsolutePath()
+                .relativize(f.getAbsoluteFile().getParentFile().toPath());
+
+        return relative.toString().replace(File.separatorChar, '.');
+    }
+
+    @Override
+    public void apply(EphemeralRunner runner, File f) throws IOException {
+        final String filePackage = getPackage(f);
+        final String className = FilenameUtils.removeExtension(f.getName());
+
+        final Compiler compiler = new Compiler(filePackage, f.getName(), runner);
+
+        try (FileInputStream din = new FileInputStream(f)) {
+            compiler.compileToEphemeralRunner(new String(din.readAllBytes()));
+        }
+
+        if (compiler.parser.hadError())
+            throw new IOException("Failed to compile \"" + f + "\"");
+
+        final String qualifiedName = filePackage.isEmpty() ? className : filePackage + "." + className;
+        write(new File(outputDirectory, qualifiedName.replace(".", "/") + ".class"), runner.classes.get(qualifiedName));
+
+        for (InnerClassNode innerClass : compiler.getCurrentClass().innerClasses) {
+            final ClassNode classNode = Compiler.classes.get(innerClass.name);
+            if (classNode == null)
+                continue;
+
+            write(new File(outputDirectory, innerClass.name + ".class"), Compiler.toByteArray(classNode));
+        }
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        file.getParentFile().mkdirs();
+
+        // Other compilations may be loading classes from the output directory at the same time,
+        // so they must never observe a partially written class file.
+        final Path temp = Files.createTempFile(file.getParentFile().toPath(), file.getName(), ".tmp");
+        Files.write(temp, bytes);
+        Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
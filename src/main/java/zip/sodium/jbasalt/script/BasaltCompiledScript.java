@@ -0,0 +1,101 @@
+package zip.sodium.jbasalt.script;
+
+import zip.sodium.jbasalt.compiler.EphemeralRunner;
+import zip.sodium.jbasalt.compiler.ScriptCache;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * A script whose classes are defined once and reused by every evaluation.
+ * If the script has a static "eval" function, every evaluation calls it with the bindings named like its parameters
+ * and returns its result, otherwise main is called with the {@link ScriptEngine#ARGV} binding.
+ */
+public final class BasaltCompiledScript extends CompiledScript {
+    private final BasaltScriptEngine engine;
+    private final EphemeralRunner runner;
+    private final String className;
+    private final Class<?> scriptClass;
+
+    private final MethodHandle entry;
+    private final String[] parameterNames;
+    private final Class<?>[] parameterTypes;
+
+    BasaltCompiledScript(BasaltScriptEngine engine, ScriptCache.Script script, ClassLoader parent) throws ScriptException {
+        this.engine = engine;
+        this.className = script.className();
+
+        runner = EphemeralRunner.disposable(parent);
+        runner.classes.putAll(script.classes());
+
+        try {
+            scriptClass = runner.loadClass(className);
+
+            final Optional<Method> eval = Arrays.stream(scriptClass.getMethods())
+                    .filter(x -> x.getName().equals("eval") && Modifier.isStatic(x.getModifiers()))
+                    .findFirst();
+            final Method method = eval.isPresent() ? eval.get() : scriptClass.getMethod("main", String[].class);
+
+            // Spread once here, every evaluation calls it with invokeExact
+            entry = MethodHandles.publicLookup().unreflect(method)
+                    .asType(MethodType.genericMethodType(method.getParameterCount()))
+                    .asSpreader(Object[].class, method.getParameterCount());
+            parameterTypes = method.getParameterTypes();
+            parameterNames = eval.isPresent()
+                    ? Arrays.stream(method.getParameters()).map(Parameter::getName).toArray(String[]::new)
+                    : null;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw BasaltScriptEngine.scriptException("Couldn't load the script", e);
+        }
+    }
+
+    @Override
+    public Object eval(ScriptContext context) throws ScriptException {
+        final Object[] arguments = new Object[parameterTypes.length];
+        if (parameterNames == null)
+            arguments[0] = context.getAttribute(ScriptEngine.ARGV) instanceof String[] argv ? argv : new String[0];
+        else for (int i = 0; i < arguments.length; i++) {
+            final Object value = context.getAttribute(parameterNames[i]);
+            if (value == null && parameterTypes[i].isPrimitive())
+                throw new ScriptException("Missing binding \"" + parameterNames[i] + "\"!");
+
+            arguments[i] = value;
+        }
+
+        try {
+            return (Object) entry.invokeExact(arguments);
+        } catch (Throwable e) {
+            throw BasaltScriptEngine.scriptException("The script threw " + e, e);
+        }
+    }
+
+    /**
+     * Binds a static function of the script to a functional interface, calls through it don't go through reflection.
+     */
+    public <T> T bind(String function, Class<T> functionalInterface) throws ScriptException {
+        try {
+            return runner.bind(className, function, functionalInterface);
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            throw BasaltScriptEngine.scriptException("Couldn't bind \"" + function + "\" to " + functionalInterface.getName(), e);
+        }
+    }
+
+    @Override
+    public ScriptEngine getEngine() {
+        return engine;
+    }
+
+    Class<?> getScriptClass() {
+        return scriptClass;
+    }
+}
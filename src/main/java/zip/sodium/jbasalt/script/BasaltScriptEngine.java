@@ -0,0 +1,239 @@
+package zip.sodium.jbasalt.script;
+
+import zip.sodium.jbasalt.Parser;
+import zip.sodium.jbasalt.compiler.CompilationException;
+import zip.sodium.jbasalt.compiler.ScriptCache;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Runs Basalt sources through {@link ScriptCache#DEFAULT}, a source is a file with a Main class.
+ * Functions of the script evaluated last can be called through {@link Invocable}.
+ */
+public final class BasaltScriptEngine extends AbstractScriptEngine implements Compilable, Invocable {
+    private final BasaltScriptEngineFactory factory;
+    private final ClassLoader parent;
+
+    private volatile BasaltCompiledScript lastScript;
+
+    BasaltScriptEngine(BasaltScriptEngineFactory factory) {
+        this.factory = factory;
+
+        final ClassLoader contextLoader = Thread.currentThread().getContextClassLoader();
+        this.parent = contextLoader == null ? BasaltScriptEngine.class.getClassLoader() : contextLoader;
+    }
+
+    @Override
+    public Object eval(String script, ScriptContext context) throws ScriptException {
+        return compile(script).eval(context);
+    }
+
+    @Override
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+        return eval(read(reader), context);
+    }
+
+    @Override
+    public CompiledScript compile(String script) throws ScriptException {
+        final ScriptCache.Script compiledScript;
+        try {
+            compiledScript = ScriptCache.DEFAULT.compileOrThrow(script, parent);
+        } catch (CompilationException e) {
+            // Points at the first error, the message lists all of them
+            final Parser.Diagnostic first = e.getErrors().get(0);
+            final Object fileName = context.getAttribute(ScriptEngine.FILENAME);
+
+            final ScriptException exception = new ScriptException(e.getMessage(),
+                    fileName == null ? first.fileName() : fileName.toString(), first.line());
+            exception.initCause(e);
+
+            throw exception;
+        } catch (RuntimeException e) {
+            // Some errors still make the compiler bail out with an exception
+            throw scriptException("Failed to compile script", e);
+        }
+
+        final BasaltCompiledScript compiled = new BasaltCompiledScript(this, compiledScript, parent);
+        lastScript = compiled;
+
+        return compiled;
+    }
+
+    @Override
+    public CompiledScript compile(Reader script) throws ScriptException {
+        return compile(read(script));
+    }
+
+    @Override
+    public Object invokeFunction(String name, Object... args) throws ScriptException, NoSuchMethodException {
+        final BasaltCompiledScript script = lastScript;
+        if (script == null)
+            throw new IllegalStateException("No script has been evaluated yet!");
+
+        return invoke(findMethod(script.getScriptClass(), name, args, true), null, args);
+    }
+
+    @Override
+    public Object invokeMethod(Object thiz, String name, Object... args) throws ScriptException, NoSuchMethodException {
+        if (thiz == null)
+            throw new IllegalArgumentException("Can't invoke a method on null!");
+
+        return invoke(findMethod(thiz.getClass(), name, args, false), thiz, args);
+    }
+
+    @Override
+    public <T> T getInterface(Class<T> clasz) {
+        final BasaltCompiledScript script = lastScript;
+        if (script == null)
+            return null;
+
+        // Functional interfaces are bound directly, everything else goes through a proxy
+        final List<Method> abstractMethods = clasz == null ? List.of() : Arrays.stream(clasz.getMethods())
+                .filter(BasaltScriptEngine::isImplemented)
+                .toList();
+        if (clasz != null && clasz.isInterface() && abstractMethods.size() == 1) {
+            try {
+                return script.bind(abstractMethods.get(0).getName(), clasz);
+            } catch (ScriptException e) {
+                return null;
+            }
+        }
+
+        return implement(clasz, script.getScriptClass(), true, null);
+    }
+
+    @Override
+    public <T> T getInterface(Object thiz, Class<T> clasz) {
+        if (thiz == null)
+            throw new IllegalArgumentException("Can't implement an interface with null!");
+
+        return implement(clasz, thiz.getClass(), false, thiz);
+    }
+
+    @Override
+    public Bindings createBindings() {
+        return new SimpleBindings();
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    // Each abstract method of the interface is forwarded to the function with the same name and number of parameters
+    private <T> T implement(Class<T> clasz, Class<?> owner, boolean isStatic, Object thiz) {
+        if (clasz == null || !clasz.isInterface())
+            throw new IllegalArgumentException("Expected an interface!");
+
+        for (Method method : clasz.getMethods())
+            if (isImplemented(method) && findMethod(owner, method.getName(), method.getParameterCount(), isStatic).isEmpty())
+                return null;
+
+        return clasz.cast(Proxy.newProxyInstance(clasz.getClassLoader(), new Class<?>[] { clasz }, (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class)
+                return switch (method.getName()) {
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    default -> clasz.getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+                };
+
+            final Object[] arguments = args == null ? new Object[0] : args;
+            // The interface doesn't declare these, they'd reach the caller as an UndeclaredThrowableException otherwise
+            try {
+                return isStatic ? invokeFunction(method.getName(), arguments) : invokeMethod(thiz, method.getName(), arguments);
+            } catch (ScriptException | NoSuchMethodException e) {
+                throw new IllegalStateException("Calling \"" + method.getName() + "\" failed: " + e.getMessage(), e);
+            }
+        }));
+    }
+
+    // Interfaces like Comparator redeclare equals, every object already has that one
+    private static boolean isImplemented(Method method) {
+        if (!Modifier.isAbstract(method.getModifiers()))
+            return false;
+
+        try {
+            Object.class.getMethod(method.getName(), method.getParameterTypes());
+
+            return false;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
+    private static Method findMethod(Class<?> owner, String name, Object[] args, boolean isStatic) throws NoSuchMethodException {
+        return Arrays.stream(owner.getMethods())
+                .filter(x -> x.getName().equals(name) && Modifier.isStatic(x.getModifiers()) == isStatic)
+                .filter(x -> accepts(x.getParameterTypes(), args))
+                .findFirst()
+                .orElseThrow(() -> new NoSuchMethodException(name));
+    }
+
+    private static Optional<Method> findMethod(Class<?> owner, String name, int arity, boolean isStatic) {
+        return Arrays.stream(owner.getMethods())
+                .filter(x -> x.getName().equals(name) && Modifier.isStatic(x.getModifiers()) == isStatic)
+                .filter(x -> x.getParameterCount() == arity)
+                .findFirst();
+    }
+
+    private static boolean accepts(Class<?>[] parameterTypes, Object[] args) {
+        if (parameterTypes.length != args.length)
+            return false;
+
+        // Primitives take any box, reflection widens or rejects them once it's invoked
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] == null ? parameterTypes[i].isPrimitive() : !parameterTypes[i].isPrimitive() && !parameterTypes[i].isInstance(args[i]))
+                return false;
+            if (parameterTypes[i].isPrimitive() && !(args[i] instanceof Number || args[i] instanceof Character || args[i] instanceof Boolean))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static Object invoke(Method method, Object thiz, Object[] args) throws ScriptException {
+        try {
+            return method.invoke(thiz, args);
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            final Throwable cause = e.getCause() == null ? e : e.getCause();
+
+            throw scriptException("The script threw " + cause, cause);
+        }
+    }
+
+    static ScriptException scriptException(String message, Throwable cause) {
+        final ScriptException exception = new ScriptException(message);
+        exception.initCause(cause);
+
+        return exception;
+    }
+
+    private static String read(Reader reader) throws ScriptException {
+        final StringWriter writer = new StringWriter();
+        try {
+            reader.transferTo(writer);
+        } catch (IOException e) {
+            throw scriptException("Couldn't read the script", e);
+        }
+
+        return writer.toString();
+    }
+}
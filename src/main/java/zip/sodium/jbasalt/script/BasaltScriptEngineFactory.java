@@ -0,0 +1,98 @@
+package zip.sodium.jbasalt.script;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public final class BasaltScriptEngineFactory implements ScriptEngineFactory {
+    private static final String ENGINE_NAME = "Basalt";
+    private static final String ENGINE_VERSION = "1.0-SNAPSHOT";
+    private static final String LANGUAGE_NAME = "Basalt";
+    private static final String LANGUAGE_VERSION = "1.0";
+
+    private static final List<String> NAMES = List.of("basalt", "Basalt");
+    private static final List<String> EXTENSIONS = List.of("bas");
+    private static final List<String> MIME_TYPES = List.of("application/x-basalt", "text/x-basalt");
+
+    @Override
+    public String getEngineName() {
+        return ENGINE_NAME;
+    }
+
+    @Override
+    public String getEngineVersion() {
+        return ENGINE_VERSION;
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return EXTENSIONS;
+    }
+
+    @Override
+    public List<String> getMimeTypes() {
+        return MIME_TYPES;
+    }
+
+    @Override
+    public List<String> getNames() {
+        return NAMES;
+    }
+
+    @Override
+    public String getLanguageName() {
+        return LANGUAGE_NAME;
+    }
+
+    @Override
+    public String getLanguageVersion() {
+        return LANGUAGE_VERSION;
+    }
+
+    @Override
+    public Object getParameter(String key) {
+        return switch (key) {
+            case ScriptEngine.NAME -> NAMES.get(0);
+            case ScriptEngine.ENGINE -> ENGINE_NAME;
+            case ScriptEngine.ENGINE_VERSION -> ENGINE_VERSION;
+            case ScriptEngine.LANGUAGE -> LANGUAGE_NAME;
+            case ScriptEngine.LANGUAGE_VERSION -> LANGUAGE_VERSION;
+            // Not thread-safe, evaluations share the engine's context and the static state of compiled scripts
+            case "THREADING" -> null;
+            default -> null;
+        };
+    }
+
+    @Override
+    public String getMethodCallSyntax(String obj, String m, String... args) {
+        return obj + "." + m + "(" + String.join(", ", args) + ")";
+    }
+
+    @Override
+    public String getOutputStatement(String toDisplay) {
+        // Basalt strings have no escapes, so a quote in the text can't be printed this way
+        return "println(\"" + toDisplay + "\")";
+    }
+
+    @Override
+    public String getProgram(String... statements) {
+        final String body = List.of(statements).stream()
+                .map(x -> "        " + x + "\n")
+                .collect(Collectors.joining());
+
+        return "import basalt.lang.STDLib\n" +
+                "import java.lang.String\n" +
+                "\n" +
+                "class Main {\n" +
+                "    static fn main(args: String[]) {\n" +
+                body +
+                "    }\n" +
+                "}\n";
+    }
+
+    @Override
+    public ScriptEngine getScriptEngine() {
+        return new BasaltScriptEngine(this);
+    }
+}
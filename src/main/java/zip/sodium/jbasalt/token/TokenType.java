@@ -18,7 +18,7 @@ public enum TokenType {
     TOKEN_GREATER, TOKEN_GREATER_EQUAL,
     TOKEN_LESS, TOKEN_LESS_EQUAL,
     TOKEN_QMARK, TOKEN_QDOT, TOKEN_ELVIS,
-    TOKEN_INTO,
+    TOKEN_INTO, TOKEN_DOT_DOT, TOKEN_DOT_DOT_LESS,
     // Literals.
     TOKEN_IDENTIFIER, TOKEN_STRING, TOKEN_NUMBER,
     // Keywords.
@@ -26,7 +26,7 @@ public enum TokenType {
     TOKEN_FOR, TOKEN_FN, TOKEN_IF, TOKEN_NULL, TOKEN_OR,
     TOKEN_IN, TOKEN_RETURN, TOKEN_TRUE, TOKEN_LET,
     TOKEN_CONST, TOKEN_WHILE, TOKEN_IMPORT, TOKEN_ENUM,
-    TOKEN_TRAIT,
+    TOKEN_TRAIT, TOKEN_WHEN,
 
     // Modifiers.
     TOKEN_STATIC(Opcodes.ACC_STATIC),
@@ -34,7 +34,7 @@ public enum TokenType {
     TOKEN_PRIVATE(Opcodes.ACC_PRIVATE),
 
     // Special Modifiers.
-    TOKEN_MAGIC, TOKEN_INLINE,
+    TOKEN_MAGIC, TOKEN_INLINE, TOKEN_LAZY,
     TOKEN_SETTER, TOKEN_GETTER,
 
 
@@ -0,0 +1,185 @@
+package zip.sodium.jbasalt.test;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import zip.sodium.jbasalt.compiler.BytecodeCache;
+import zip.sodium.jbasalt.compiler.EphemeralRunner;
+import zip.sodium.jbasalt.compiler.Optimization;
+import zip.sodium.jbasalt.compiler.ScriptCache;
+import zip.sodium.jbasalt.compiler.SourceCompiler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BytecodeCacheTest {
+    private static final String SCRIPT = """
+            class Main {
+                static fn answer(): int {
+                    return 42
+                }
+            }
+            """;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void unchangedSourcesAreLoadedFromTheCache() throws Throwable {
+        writeSources(21);
+
+        final Set<String> first = new TreeSet<>();
+        assertEquals(42, value(first));
+        assertEquals(Set.of("B.bas", "C.bas", "Main.bas"), first);
+        awaitEntries(3);
+
+        final Set<String> second = new TreeSet<>();
+        assertEquals(42, value(second));
+        assertEquals(Set.of(), second);
+    }
+
+    @Test
+    public void changingAnIndirectImportCompilesItsImportersAgain() throws Throwable {
+        writeSources(21);
+        value(new TreeSet<>());
+        awaitEntries(3);
+
+        // Main only imports B, it still has to follow C
+        writeSources(50);
+
+        final Set<String> compiled = new TreeSet<>();
+        assertEquals(100, value(compiled));
+        assertEquals(Set.of("B.bas", "C.bas", "Main.bas"), compiled);
+    }
+
+    @Test
+    public void damagedEntriesAreCompiledAgain() throws Throwable {
+        writeSources(21);
+        value(new TreeSet<>());
+        awaitEntries(3);
+
+        for (Path entry : entries())
+            Files.write(entry, new byte[] { 1, 2, 3 });
+
+        final Set<String> compiled = new TreeSet<>();
+        assertEquals(42, value(compiled));
+        assertEquals(Set.of("B.bas", "C.bas", "Main.bas"), compiled);
+    }
+
+    @Test
+    public void scriptsSurviveTheirCache() throws IOException {
+        final BytecodeCache bytecodeCache = new BytecodeCache(directory.resolve("cache"));
+        final ClassLoader parent = BytecodeCacheTest.class.getClassLoader();
+
+        final ScriptCache.Script stored = compileScript(bytecodeCache, parent);
+        final Path entry = entries().get(0);
+        final FileTime written = Files.getLastModifiedTime(entry);
+        Files.setLastModifiedTime(entry, FileTime.fromMillis(written.toMillis() - 60_000));
+        final FileTime aged = Files.getLastModifiedTime(entry);
+
+        // Loading an entry doesn't write it again
+        final ScriptCache.Script loaded = compileScript(bytecodeCache, parent);
+        assertEquals(stored.className(), loaded.className());
+        assertEquals(1, entries().size());
+        assertEquals(aged, Files.getLastModifiedTime(entry));
+
+        // The options are part of the key
+        Optimization.CONSTANT_FOLDING.setEnabled(false);
+        try {
+            compileScript(bytecodeCache, parent);
+        } finally {
+            Optimization.CONSTANT_FOLDING.setEnabled(true);
+        }
+        assertEquals(2, entries().size());
+    }
+
+    private ScriptCache.Script compileScript(BytecodeCache bytecodeCache, ClassLoader parent) {
+        final ScriptCache cache = new ScriptCache(16, Long.MAX_VALUE);
+        cache.setBytecodeCache(bytecodeCache);
+
+        return cache.compile(SCRIPT, parent);
+    }
+
+    /**
+     * Main imports B, which imports C, which returns the given value.
+     */
+    private void writeSources(int value) throws IOException {
+        final Path sources = Files.createDirectories(directory.resolve("src").resolve("cached"));
+
+        Files.writeString(sources.resolve("Main.bas"), """
+                import cached.B
+
+                class Main {
+                    static fn value(): int {
+                        return B.twice()
+                    }
+                }
+                """);
+        Files.writeString(sources.resolve("B.bas"), """
+                import cached.C
+
+                class B {
+                    static fn twice(): int {
+                        return C.value() * 2
+                    }
+                }
+                """);
+        Files.writeString(sources.resolve("C.bas"), """
+                class C {
+                    static fn value(): int {
+                        return %d
+                    }
+                }
+                """.formatted(value));
+    }
+
+    /**
+     * Runs Main.value() in a runner of its own, collecting the names of the sources it had to compile.
+     */
+    private Object value(Set<String> compiled) throws Throwable {
+        final Path sources = directory.resolve("src");
+        final SourceCompiler compiler = new SourceCompiler(sources.toFile(), directory.resolve("out").toFile());
+
+        final EphemeralRunner runner = new EphemeralRunner(BytecodeCacheTest.class.getClassLoader());
+        runner.setSourceDirectory(sources.toFile());
+        runner.setBytecodeCache(new BytecodeCache(directory.resolve("cache")));
+        runner.setCompileFunction((r, f) -> {
+            synchronized (compiled) {
+                compiled.add(f.getName());
+            }
+
+            compiler.apply(r, f);
+        });
+
+        return CoreFeaturesTest.call(runner.loadClass("cached.Main"), "value");
+    }
+
+    /**
+     * The precompiler may still be storing a source whose classes were already taken by the thread that loaded them.
+     */
+    private void awaitEntries(int count) throws IOException, InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (entries().size() < count) {
+            assertTrue(System.nanoTime() < deadline, "Only " + entries().size() + " of " + count + " entries were stored");
+
+            Thread.sleep(10);
+        }
+    }
+
+    private List<Path> entries() throws IOException {
+        if (!Files.isDirectory(directory.resolve("cache")))
+            return List.of();
+
+        try (Stream<Path> files = Files.walk(directory.resolve("cache"))) {
+            return files.filter(x -> x.toString().endsWith(".bin")).toList();
+        }
+    }
+}
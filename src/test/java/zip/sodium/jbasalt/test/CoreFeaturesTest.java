@@ -1,11 +1,695 @@
 package zip.sodium.jbasalt.test;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import zip.sodium.jbasalt.Parser;
+import zip.sodium.jbasalt.compiler.CompileFunction;
 import zip.sodium.jbasalt.compiler.Compiler;
 import zip.sodium.jbasalt.compiler.EphemeralRunner;
+import zip.sodium.jbasalt.compiler.SourceCompiler;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 public class CoreFeaturesTest {
-    // TODO: Add tests!
+    private static final AtomicInteger SCRIPTS = new AtomicInteger();
+
+    // Counts the computations of lazy fields, sources under test increment it
+    public static final AtomicInteger LAZY_COMPUTATIONS = new AtomicInteger();
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void primitiveMapsAreIteratedThroughTheirKeys() throws Throwable {
+        final Class<?> main = compile("""
+                import basalt.lang.IntIntMap
+                import basalt.lang.LongObjectMap
+                import java.lang.String
+
+                class Main {
+                    static fn ints(): int {
+                        let map = IntIntMap:new()
+                        map[0] = 1
+                        map[5] = 10
+                        map[7] += 3
+                        map[5] += 10
+
+                        let sum = 0
+                        for key in map.keys() {
+                            sum = sum + key * 100 + map[key]
+                        }
+                        return sum
+                    }
+
+                    static fn longs(): long {
+                        let map: LongObjectMap<String> = LongObjectMap:new()
+                        map[4000000000l] = "a"
+                        map[2l] = "b"
+
+                        let sum: long = 0l
+                        for key in map.keys() {
+                            sum = sum + key
+                        }
+                        return sum
+                    }
+                }
+                """);
+
+        assertEquals(1 + 520 + 703, call(main, "ints"));
+        assertEquals(4000000002L, call(main, "longs"));
+    }
+
+    @Test
+    public void rangesIncludeTheirEndUnlessExclusive() throws Throwable {
+        final Class<?> main = compile("""
+                class Main {
+                    static fn inclusive(from: int, to: int): int {
+                        let sum = 0
+                        for i in from..to {
+                            sum = sum + i
+                        }
+                        return sum
+                    }
+
+                    static fn exclusive(from: int, to: int): int {
+                        let count = 0
+                        for i in from..<to {
+                            count = count + 1
+                        }
+                        return count
+                    }
+
+                    static fn untilMax(): int {
+                        let count = 0
+                        for i in 2147483646..2147483647 {
+                            count = count + 1
+                            if count > 5 { return -1 }
+                        }
+                        return count
+                    }
+
+                    static fn longs(): long {
+                        let sum: long = 0l
+                        for i in 0l..2l {
+                            sum = sum + i
+                        }
+                        return sum
+                    }
+
+                    static fn mixed(from: int, to: long): long {
+                        let sum: long = 0l
+                        for i in from..to {
+                            sum = sum + i
+                        }
+                        return sum
+                    }
+
+                    static fn array(values: int[]): int {
+                        let sum = 0
+                        for v in values {
+                            sum = sum + v
+                        }
+                        return sum
+                    }
+                }
+                """);
+
+        assertEquals(55, call(main, "inclusive", 1, 10));
+        assertEquals(0, call(main, "inclusive", 3, 2));
+        assertEquals(5, call(main, "exclusive", 0, 5));
+        assertEquals(0, call(main, "exclusive", 3, 3));
+        // Stops at Integer.MAX_VALUE instead of overflowing past it
+        assertEquals(2, call(main, "untilMax"));
+        assertEquals(3L, call(main, "longs"));
+        // The wider bound decides the type of the counter
+        assertEquals(4 * 2147483646L + 6, call(main, "mixed", 2147483646, 2147483649L));
+        assertEquals(6, call(main, "array", (Object) new int[] { 1, 2, 3 }));
+    }
+
+    @Test
+    public void whenMatchesIntStringAndEnumLabels() throws Throwable {
+        final Class<?> main = compile("""
+                import java.lang.String
+                import java.util.concurrent.TimeUnit
+
+                class Main {
+                    static fn dense(n: int): String {
+                        return when n {
+                            1 -> "one"
+                            2, 3 -> "few"
+                            -4 -> "minus four"
+                            else -> "many"
+                        }
+                    }
+
+                    static fn sparse(n: int): int {
+                        return when n {
+                            10 -> 1
+                            1000 -> 2
+                            100000 -> 3
+                            -2147483648 -> 4
+                            else -> 0
+                        }
+                    }
+
+                    static fn adjacent(n: int): int {
+                        return when n { 1 -> 10 -5 -> 20 else -> 30 }
+                    }
+
+                    static fn color(s: String): int {
+                        return when s {
+                            "red" -> 1
+                            "Aa", "BB" -> 2
+                            else -> 3
+                        }
+                    }
+
+                    static fn unit(u: TimeUnit): String {
+                        return when u {
+                            SECONDS -> "s"
+                            MINUTES, HOURS -> "long"
+                            else -> "other"
+                        }
+                    }
+                }
+                """);
+
+        assertEquals("one", call(main, "dense", 1));
+        assertEquals("few", call(main, "dense", 3));
+        assertEquals("minus four", call(main, "dense", -4));
+        assertEquals("many", call(main, "dense", 4));
+
+        assertEquals(2, call(main, "sparse", 1000));
+        assertEquals(4, call(main, "sparse", Integer.MIN_VALUE));
+        assertEquals(0, call(main, "sparse", 11));
+
+        // A negative label right after an arm isn't subtracted from it
+        assertEquals(20, call(main, "adjacent", -5));
+        assertEquals(30, call(main, "adjacent", 5));
+
+        // "Aa" and "BB" share their hash code
+        assertEquals(2, call(main, "color", "Aa"));
+        assertEquals(2, call(main, "color", "BB"));
+        assertEquals(3, call(main, "color", "x"));
+
+        assertEquals("s", call(main, "unit", TimeUnit.SECONDS));
+        assertEquals("long", call(main, "unit", TimeUnit.HOURS));
+        assertEquals("other", call(main, "unit", TimeUnit.DAYS));
+    }
+
+    @Test
+    public void selfTailCallsDontGrowTheStack() throws Throwable {
+        final Class<?> main = compile("""
+                import basalt.lang.TailRec
+
+                class Main {
+                    @TailRec
+                    static fn sum(n: int, acc: int): int {
+                        if n == 0 { return acc }
+                        return sum(n - 1, acc + n)
+                    }
+
+                    static fn count(n: int): int -> when n {
+                        0 -> 0
+                        else -> count(n - 1)
+                    }
+                }
+                """);
+
+        assertEquals(1250025000, call(main, "sum", 50000, 0));
+        assertEquals(0, call(main, "count", 1000000));
+    }
+
+    @Test
+    public void tailRecRejectsCallsOutsideTailPosition() {
+        final List<Parser.Diagnostic> errors = errors("""
+                import basalt.lang.TailRec
+
+                class Main {
+                    @TailRec
+                    static fn fact(n: int): int {
+                        if n == 0 { return 1 }
+                        return n * fact(n - 1)
+                    }
+                }
+                """);
+
+        assertEquals(1, errors.size());
+        assertEquals(7, errors.get(0).line());
+        assertTrue(errors.get(0).message().contains("not in tail position"), errors.get(0).message());
+    }
+
+    @Test
+    public void importsAreCompiledAgainstTheirHeaders() throws Throwable {
+        final EphemeralRunner runner = runner("headers", Map.of(
+                "Main.bas", """
+                        import headers.Other
+
+                        class Main {
+                            static fn run(): int {
+                                return Other.later() + 1
+                            }
+                        }
+                        """,
+                "Other.bas", """
+                        class Other {
+                            static fn sooner(): int {
+                                return later() * 2
+                            }
+
+                            static fn later(): int {
+                                return 20
+                            }
+                        }
+                        """));
+
+        // The precompiler may well compile Other in the background, Main mustn't wait for it
+        final Thread thread = Thread.currentThread();
+        final List<String> compiledHere = new ArrayList<>();
+        final CompileFunction compileFunction = new SourceCompiler(directory.resolve("src").toFile(), directory.resolve("out").toFile());
+        runner.setCompileFunction((r, f) -> {
+            if (Thread.currentThread() == thread)
+                compiledHere.add(f.getName());
+
+            compileFunction.apply(r, f);
+        });
+
+        final Class<?> main = runner.loadClass("headers.Main");
+        assertEquals(List.of("Main.bas"), compiledHere);
+
+        assertEquals(21, call(main, "run"));
+        assertEquals(40, call(runner.loadClass("headers.Other"), "sooner"));
+    }
+
+    @Test
+    public void magicClassesCompareByTheirComponents() throws Throwable {
+        final EphemeralRunner runner = runner("objects", Map.of(
+                "Point.bas", """
+                        magic class Point(x: int, y: int)
+                        """,
+                "Main.bas", """
+                        import basalt.lang.STDLib
+                        import java.lang.String
+                        import objects.Point
+
+                        class Main {
+                            static fn equal(): boolean {
+                                return Point:new(1, 2).equals(Point:new(1, 2))
+                            }
+
+                            static fn sameHash(): boolean {
+                                return Point:new(1, 2).hashCode() == Point:new(1, 2).hashCode()
+                            }
+
+                            static fn different(): boolean {
+                                return Point:new(1, 2).equals(Point:new(2, 1))
+                            }
+
+                            static fn describe(): String {
+                                return Point:new(1, 2).toString()
+                            }
+                        }
+                        """));
+
+        final Class<?> main = runner.loadClass("objects.Main");
+        assertEquals(true, call(main, "equal"));
+        assertEquals(true, call(main, "sameHash"));
+        assertEquals(false, call(main, "different"));
+        assertEquals("Point[x=1, y=2]", call(main, "describe"));
+    }
+
+    @Test
+    public void columnarClassesStoreEveryComponentInItsOwnArray() throws Throwable {
+        final EphemeralRunner runner = runner("columns", Map.of(
+                "Row.bas", """
+                        import basalt.lang.Columnar
+                        import java.lang.String
+
+                        @Columnar
+                        magic class Row(id: int, name: String)
+                        """,
+                "Main.bas", """
+                        import basalt.lang.STDLib
+                        import java.lang.String
+                        import columns.Row
+
+                        class Main {
+                            static fn run(): String {
+                                let rows = Row.columns(1)
+                                rows.add(1, "a")
+                                rows.add(Row:new(2, "b"))
+                                rows.add(3, "c")
+                                rows.name(2, "z")
+
+                                let ids = 0
+                                for i in 0..<rows.size() {
+                                    ids = ids + rows.id(i)
+                                }
+                                return toString(ids) + " " + rows.name(2) + " " + rows.get(1).toString()
+                            }
+                        }
+                        """));
+
+        assertEquals("6 z Row[id=2, name=b]", call(runner.loadClass("columns.Main"), "run"));
+    }
+
+    @Test
+    public void enumsGetValuesAndValueOf() throws Throwable {
+        final EphemeralRunner runner = runner("colors", Map.of(
+                "Color.bas", """
+                        import java.lang.String
+
+                        enum Color {
+                            RED, GREEN
+                            BLUE
+                        }
+                        """,
+                "Main.bas", """
+                        import basalt.lang.STDLib
+                        import java.lang.String
+                        import colors.Color
+
+                        class Main {
+                            static fn names(): String {
+                                let result = ""
+                                for c in Color.values() {
+                                    result = result + c.name() + toString(c.ordinal())
+                                }
+                                return result
+                            }
+
+                            static fn parse(name: String): Color {
+                                return Color.valueOf(name)
+                            }
+                        }
+                        """));
+
+        final Class<?> main = runner.loadClass("colors.Main");
+        // Ordinals continue across constant lists
+        assertEquals("RED0GREEN1BLUE2", call(main, "names"));
+
+        final Class<?> color = runner.loadClass("colors.Color");
+        assertTrue(color.isEnum());
+        assertSame(color.getEnumConstants()[2], call(main, "parse", "BLUE"));
+
+        final Method values = color.getMethod("values");
+        assertNotSame(values.invoke(null), values.invoke(null));
+
+        final IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> call(main, "parse", "blue"));
+        assertEquals("No enum constant colors.Color.blue", e.getMessage());
+        assertThrows(NullPointerException.class, () -> call(main, "parse", (Object) null));
+    }
+
+    @Test
+    public void constFunctionsWithConstantArgumentsAreFolded() throws Throwable {
+        final String filePackage = nextPackage();
+        final EphemeralRunner runner = new EphemeralRunner(CoreFeaturesTest.class.getClassLoader());
+        final Class<?> main = compile(filePackage, runner, """
+                import basalt.lang.CompileTime
+                import java.lang.String
+
+                class Main {
+                    const fn fib(n: int): int {
+                        if n < 2 {
+                            return n
+                        }
+                        return fib(n - 1) + fib(n - 2)
+                    }
+
+                    const fn greet(name: String): String {
+                        return "hello " + name + "!"
+                    }
+
+                    @CompileTime(steps = 1000)
+                    static fn spin(n: int): int {
+                        let s = 0
+                        for let i = 0; i < n; i += 1 {
+                            s = s + i
+                        }
+                        return s
+                    }
+
+                    static fn folded(): int {
+                        return fib(20) + spin(10)
+                    }
+
+                    static fn greeting(): String {
+                        return greet("basalt")
+                    }
+
+                    static fn called(n: int): int {
+                        return fib(n)
+                    }
+                }
+                """);
+
+        assertEquals(6765 + 45, call(main, "folded"));
+        assertEquals("hello basalt!", call(main, "greeting"));
+        assertEquals(13, call(main, "called", 7));
+
+        final List<String> calls = calls(runner.classes.get(filePackage + ".Main"));
+        assertFalse(calls.contains("folded -> fib"), calls::toString);
+        assertFalse(calls.contains("folded -> spin"), calls::toString);
+        assertFalse(calls.contains("greeting -> greet"), calls::toString);
+        assertTrue(calls.contains("called -> fib"), calls::toString);
+    }
+
+    @Test
+    public void compileTimeEvaluationStopsAtItsStepBudget() {
+        final List<Parser.Diagnostic> errors = errors("""
+                import basalt.lang.CompileTime
+
+                class Main {
+                    @CompileTime(steps = 1000)
+                    static fn spin(n: int): int {
+                        let s = 0
+                        for let i = 0; i < n; i += 1 {
+                            s = s + i
+                        }
+                        return s
+                    }
+
+                    static fn run(): int {
+                        return spin(100000)
+                    }
+                }
+                """);
+
+        assertEquals(1, errors.size());
+        assertEquals(14, errors.get(0).line());
+        assertTrue(errors.get(0).message().contains("ran out of steps (at most 1000 steps"), errors.get(0).message());
+    }
+
+    @Test
+    public void lazyFieldsAreComputedOnceOnFirstAccess() throws Throwable {
+        final Class<?> main = compile("""
+                import basalt.lang.STDLib
+                import java.lang.String
+                import zip.sodium.jbasalt.test.CoreFeaturesTest
+
+                class Main {
+                    lazy let answer: int = forty() + 2
+                    lazy let later: String = "later " + toString(CoreFeaturesTest.LAZY_COMPUTATIONS.get())
+
+                    static fn forty(): int {
+                        CoreFeaturesTest.LAZY_COMPUTATIONS.incrementAndGet()
+                        return 40
+                    }
+
+                    static fn first(): int {
+                        return answer
+                    }
+
+                    static fn second(): int {
+                        return answer + 1
+                    }
+
+                    static fn describe(): String {
+                        return later
+                    }
+                }
+                """);
+
+        final int before = LAZY_COMPUTATIONS.get();
+        assertEquals(42, call(main, "first"));
+        assertEquals(43, call(main, "second"));
+        assertEquals(before + 1, LAZY_COMPUTATIONS.get());
+
+        // Computed when it's first read, not along with the other lazy field
+        LAZY_COMPUTATIONS.addAndGet(10);
+        assertEquals("later " + (before + 11), call(main, "describe"));
+    }
+
+    @Test
+    public void lambdaKeepsCaptureUsedInNestedBlock() throws Throwable {
+        final Class<?> main = compile("""
+                import basalt.lang.STDLib
+                import java.lang.String
+                import java.util.function.Supplier
+
+                class Main {
+                    static fn run(): String {
+                        let n = 3
+                        let word = "hi"
+                        let s: Supplier = fn<Supplier>() {
+                            let result = ""
+                            if (n > 1) {
+                                result = result + word + toString(n)
+                            }
+                            return result + toString(n + 1) + word
+                        }
+                        return <String> s.get()
+                    }
+                }
+                """);
+
+        assertEquals("hi34hi", call(main, "run"));
+    }
+
+    @Test
+    public void everyArgumentIsConvertedToItsParameter() throws Throwable {
+        final Class<?> main = compile("""
+                import basalt.lang.STDLib
+                import java.lang.Math
+                import java.lang.String
+
+                class Main {
+                    static fn run(): String {
+                        return mix(1, 2, "z") + " " + mix(3, 4, "w") + " " + toString(Math.hypot(3, 4))
+                    }
+
+                    static fn mix(a: int, b: double, c: String): String {
+                        return toString(a) + " " + toString(b) + " " + c
+                    }
+                }
+                """);
+
+        assertEquals("1 2.0 z 3 4.0 w 5.0", call(main, "run"));
+    }
+
+    @Test
+    public void dynamicArithmeticOnlyComputesOnPrimitiveBoxes() throws Throwable {
+        final Class<?> main = compile("""
+                import java.lang.Object
+
+                class Main {
+                    static fn add(a: Object, b: Object): Object {
+                        return a + b
+                    }
+
+                    static fn less(a: Object, b: Object): boolean {
+                        return a < b
+                    }
+                }
+                """);
+
+        assertEquals(3, call(main, "add", 1, 2));
+        assertEquals(3L, call(main, "add", 1L, 2));
+        assertEquals(3.5, call(main, "add", 1, 2.5));
+        assertEquals(true, call(main, "less", (byte) 1, (short) 2));
+
+        final BigInteger big = BigInteger.ONE.shiftLeft(40);
+        assertThrows(UnsupportedOperationException.class, () -> call(main, "add", big, 1));
+        assertThrows(UnsupportedOperationException.class, () -> call(main, "add", 1, big));
+        assertThrows(UnsupportedOperationException.class, () -> call(main, "add", new AtomicLong(1), 1));
+        // Comparable without arithmetic, compareTo still applies
+        assertEquals(true, call(main, "less", BigInteger.ONE, big));
+    }
+
+    /**
+     * Writes the sources into a package of the temporary directory, they're compiled as their classes are loaded.
+     */
+    EphemeralRunner runner(String filePackage, Map<String, String> sources) throws IOException {
+        final Path sourceDirectory = directory.resolve("src");
+        final Path packageDirectory = Files.createDirectories(sourceDirectory.resolve(filePackage.replace(".", "/")));
+        for (Map.Entry<String, String> source : sources.entrySet())
+            Files.writeString(packageDirectory.resolve(source.getKey()), source.getValue());
+
+        final EphemeralRunner runner = new EphemeralRunner(CoreFeaturesTest.class.getClassLoader());
+        runner.setSourceDirectory(sourceDirectory.toFile());
+        runner.setCompileFunction(new SourceCompiler(sourceDirectory.toFile(), directory.resolve("out").toFile()));
+
+        return runner;
+    }
+
+    /**
+     * Compiles a source into a runner of its own, the class is called Main and gets a package of its own.
+     */
+    static Class<?> compile(String source) throws ClassNotFoundException {
+        return compile(nextPackage(), new EphemeralRunner(CoreFeaturesTest.class.getClassLoader()), source);
+    }
+
+    static Class<?> compile(String filePackage, EphemeralRunner runner, String source) throws ClassNotFoundException {
+        final Compiler compiler = new Compiler(filePackage, "Main.bas", runner);
+        compiler.compileToEphemeralRunner(source);
+        compiler.forgetClasses();
+        assertFalse(compiler.parser.hadError(), "Failed to compile");
+
+        return runner.loadClass(filePackage + ".Main");
+    }
+
+    /**
+     * Compiles a source like {@link #compile(String)}, returning the errors it reported instead of its class.
+     */
+    static List<Parser.Diagnostic> errors(String source) {
+        final EphemeralRunner runner = new EphemeralRunner(CoreFeaturesTest.class.getClassLoader());
+
+        final Compiler compiler = new Compiler(nextPackage(), "Main.bas", runner);
+        compiler.compileToEphemeralRunner(source);
+        compiler.forgetClasses();
+
+        return compiler.parser.getErrors();
+    }
+
+    static String nextPackage() {
+        return "zip.sodium.generated.test" + SCRIPTS.incrementAndGet();
+    }
+
+    /**
+     * Every method called from the class, as "caller -> callee".
+     */
+    static List<String> calls(byte[] classBytes) {
+        final ClassNode classNode = new ClassNode();
+        new ClassReader(classBytes).accept(classNode, 0);
+
+        final List<String> calls = new ArrayList<>();
+        for (MethodNode method : classNode.methods)
+            for (AbstractInsnNode node : method.instructions)
+                if (node instanceof MethodInsnNode call)
+                    calls.add(method.name + " -> " + call.name);
+
+        return calls;
+    }
+
+    static Object call(Class<?> clazz, String name, Object... arguments) throws Throwable {
+        final Method method = Arrays.stream(clazz.getMethods())
+                .filter(x -> x.getName().equals(name) && x.getParameterCount() == arguments.length)
+                .findFirst()
+                .orElseThrow(() -> new NoSuchMethodException(name));
+
+        try {
+            return method.invoke(null, arguments);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
 }
@@ -0,0 +1,107 @@
+package zip.sodium.jbasalt.test;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import zip.sodium.jbasalt.compiler.CyclicCompilationException;
+import zip.sodium.jbasalt.compiler.EphemeralRunner;
+import zip.sodium.jbasalt.compiler.SourceCompiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CyclicImportsTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void sourcesImportingEachOtherLoadConcurrently() throws Exception {
+        final EphemeralRunner runner = runner("cyclic.headers", """
+                import cyclic.headers.%s
+                import java.lang.String
+
+                class %s {
+                    static fn describe(other: %s): String {
+                        return other.toString()
+                    }
+                }
+                """);
+
+        final Class<?>[] loaded = assertTimeoutPreemptively(TIMEOUT, () -> loadConcurrently(runner, "cyclic.headers"));
+
+        final Object b = loaded[1].getConstructor().newInstance();
+        assertEquals(b.toString(), loaded[0].getMethod("describe", loaded[1]).invoke(null, b));
+    }
+
+    @Test
+    public void sourcesNeedingEachOthersClassesFailOnOneThread() throws IOException {
+        final EphemeralRunner runner = runner("cyclic.single", subscriptingSource("cyclic.single"));
+
+        final CyclicCompilationException e = assertTimeoutPreemptively(TIMEOUT,
+                () -> assertThrows(CyclicCompilationException.class, () -> runner.loadClass("cyclic.single.A")));
+        assertEquals(3, e.getSources().size());
+        assertEquals(e.getSources().get(0), e.getSources().get(2));
+    }
+
+    @Test
+    public void sourcesNeedingEachOthersClassesFailOnTwoThreads() throws IOException {
+        final EphemeralRunner runner = runner("cyclic.threads", subscriptingSource("cyclic.threads"));
+
+        final ExecutionException e = assertTimeoutPreemptively(TIMEOUT,
+                () -> assertThrows(ExecutionException.class, () -> loadConcurrently(runner, "cyclic.threads")));
+        assertInstanceOf(CyclicCompilationException.class, e.getCause());
+    }
+
+    // Subscripting a Basalt class looks for its operators on the loaded class, the header isn't enough
+    private static String subscriptingSource(String filePackage) {
+        return """
+                import %1$s.%%s
+                import java.lang.Object
+
+                class %%s {
+                    static fn first(other: %%s): Object {
+                        return other[0]
+                    }
+                }
+                """.formatted(filePackage);
+    }
+
+    /**
+     * Writes A.bas and B.bas, each one imports the other. The template takes the imported, the declared
+     * and the parameter class name.
+     */
+    private EphemeralRunner runner(String filePackage, String template) throws IOException {
+        final Path sources = Files.createDirectories(directory.resolve("src").resolve(filePackage.replace(".", "/")));
+        Files.writeString(sources.resolve("A.bas"), template.formatted("B", "A", "B"));
+        Files.writeString(sources.resolve("B.bas"), template.formatted("A", "B", "A"));
+
+        final File sourceDirectory = directory.resolve("src").toFile();
+        final EphemeralRunner runner = new EphemeralRunner(CyclicImportsTest.class.getClassLoader());
+        runner.setSourceDirectory(sourceDirectory);
+        runner.setCompileFunction(new SourceCompiler(sourceDirectory, directory.resolve("out").toFile()));
+
+        return runner;
+    }
+
+    private static Class<?>[] loadConcurrently(EphemeralRunner runner, String filePackage) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Class<?>> a = executor.submit(() -> runner.loadClass(filePackage + ".A"));
+            final Future<Class<?>> b = executor.submit(() -> runner.loadClass(filePackage + ".B"));
+
+            return new Class<?>[] { a.get(), b.get() };
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package zip.sodium.jbasalt.test;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestFactory;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.IincInsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import zip.sodium.jbasalt.compiler.EphemeralRunner;
+import zip.sodium.jbasalt.compiler.Optimization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OptimizationTest {
+    // Every pass has something to do in here, the results mustn't depend on which of them ran
+    private static final String SOURCE = """
+            import java.lang.String
+
+            class Main {
+                static fn folded(): int {
+                    return 2 * 3 + 10 / 2
+                }
+
+                static fn dead(x: int): int {
+                    return x
+                    x = x * 100
+                }
+
+                static fn unrolled(values: int[]): int {
+                    let sum = 0
+                    for let i = 0; i < 4; i += 1 {
+                        sum = sum + values[i]
+                    }
+                    return sum
+                }
+
+                static fn invariant(digits: String): int {
+                    let sum = 0
+                    for let i = 0; i < digits.length(); i += 1 {
+                        sum = sum + (digits.charAt(i) - 48) * 6
+                    }
+                    return sum
+                }
+
+                static fn reduced(x: int): int {
+                    return x * 16 + x / 4 - x / 1
+                }
+
+                static fn slots(n: int): int {
+                    let total = 0
+                    {
+                        let a = n * 2
+                        total = total + a
+                    }
+                    {
+                        let b = n * 3
+                        total = total + b
+                    }
+                    return total
+                }
+            }
+            """;
+
+    private static final int[] VALUES = { 1, 2, 3, 4, 5 };
+
+    @TestFactory
+    public Stream<DynamicTest> everyPassKeepsResultsAndChangesTheBytecode() throws Throwable {
+        final Compiled optimized = compile();
+
+        return Arrays.stream(Optimization.values()).map(optimization -> DynamicTest.dynamicTest(optimization.name(), () -> {
+            optimization.setEnabled(false);
+            final Compiled unoptimized;
+            try {
+                unoptimized = compile();
+            } finally {
+                optimization.setEnabled(true);
+            }
+
+            assertEquals(optimized.results(), unoptimized.results());
+            assertNotEquals(optimized.instructions(), unoptimized.instructions(), optimization + " didn't change anything");
+        }));
+    }
+
+    @Test
+    public void resultsWithoutAnyPassMatch() throws Throwable {
+        final Compiled optimized = compile();
+
+        for (Optimization optimization : Optimization.values())
+            optimization.setEnabled(false);
+
+        final Compiled unoptimized;
+        try {
+            unoptimized = compile();
+        } finally {
+            for (Optimization optimization : Optimization.values())
+                optimization.setEnabled(true);
+        }
+
+        assertEquals(Map.of(
+                "folded", 11,
+                "dead", 7,
+                "unrolled", 10,
+                "invariant", 90,
+                "reduced", -7 * 16 + -7 / 4 + 7,
+                "slots", 35), optimized.results());
+        assertEquals(optimized.results(), unoptimized.results());
+    }
+
+    private record Compiled(Map<String, Object> results, Map<String, List<String>> instructions) {}
+
+    private static Compiled compile() throws Throwable {
+        final String filePackage = CoreFeaturesTest.nextPackage();
+        final EphemeralRunner runner = new EphemeralRunner(OptimizationTest.class.getClassLoader());
+        final Class<?> main = CoreFeaturesTest.compile(filePackage, runner, SOURCE);
+
+        final Map<String, Object> results = new LinkedHashMap<>();
+        results.put("folded", CoreFeaturesTest.call(main, "folded"));
+        results.put("dead", CoreFeaturesTest.call(main, "dead", 7));
+        results.put("unrolled", CoreFeaturesTest.call(main, "unrolled", (Object) VALUES));
+        results.put("invariant", CoreFeaturesTest.call(main, "invariant", "12345"));
+        results.put("reduced", CoreFeaturesTest.call(main, "reduced", -7));
+        results.put("slots", CoreFeaturesTest.call(main, "slots", 7));
+
+        return new Compiled(results, instructions(runner.classes.get(filePackage + ".Main")));
+    }
+
+    /**
+     * The instructions of every method without anything naming the class, which differs between compilations.
+     */
+    private static Map<String, List<String>> instructions(byte[] classBytes) {
+        final ClassNode classNode = new ClassNode();
+        new ClassReader(classBytes).accept(classNode, 0);
+
+        final Map<String, List<String>> instructions = new LinkedHashMap<>();
+        for (MethodNode method : classNode.methods) {
+            final List<String> listing = new ArrayList<>();
+            for (AbstractInsnNode node : method.instructions) {
+                if (node.getOpcode() < 0)
+                    continue;
+
+                String instruction = Integer.toString(node.getOpcode());
+                if (node instanceof VarInsnNode var)
+                    instruction += " " + var.var;
+                else if (node instanceof IincInsnNode increment)
+                    instruction += " " + increment.var + " " + increment.incr;
+                else if (node instanceof IntInsnNode operand)
+                    instruction += " " + operand.operand;
+                else if (node instanceof LdcInsnNode constant)
+                    instruction += " " + constant.cst;
+                else if (node instanceof MethodInsnNode call)
+                    instruction += " " + call.name + call.desc;
+
+                listing.add(instruction);
+            }
+
+            instructions.put(method.name + method.desc, listing);
+        }
+
+        return instructions;
+    }
+}
@@ -0,0 +1,90 @@
+package zip.sodium.jbasalt.test;
+
+import org.junit.jupiter.api.Test;
+import zip.sodium.jbasalt.compiler.ScriptCache;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ScriptCacheTest {
+    private static final String SOURCE = """
+            class Main {
+                static fn answer(): int {
+                    return 42
+                }
+            }
+            """;
+
+    private final ClassLoader parent = ScriptCacheTest.class.getClassLoader();
+
+    @Test
+    public void sameScriptIsOnlyCompiledOnce() {
+        final ScriptCache cache = new ScriptCache(16, Long.MAX_VALUE);
+
+        final ScriptCache.Script first = cache.compile(SOURCE, parent);
+        final ScriptCache.Script second = cache.compile(SOURCE, parent);
+
+        assertSame(first, second);
+        assertEquals(1, cache.stats().misses());
+        assertEquals(1, cache.stats().hits());
+    }
+
+    @Test
+    public void loadersWithTheSameClassPathDontShareScripts() throws Exception {
+        final ScriptCache cache = new ScriptCache(16, Long.MAX_VALUE);
+
+        try (URLClassLoader a = new URLClassLoader(new URL[0], parent);
+             URLClassLoader b = new URLClassLoader(new URL[0], parent)) {
+            cache.compile(SOURCE, a);
+            cache.compile(SOURCE, b);
+            cache.compile(SOURCE, a);
+        }
+
+        assertEquals(2, cache.stats().misses());
+        assertEquals(1, cache.stats().hits());
+    }
+
+    @Test
+    public void cachesDontShareCompilations() {
+        final ScriptCache first = new ScriptCache(16, Long.MAX_VALUE);
+        final ScriptCache second = new ScriptCache(16, Long.MAX_VALUE);
+
+        first.compile(SOURCE, parent);
+        second.compile(SOURCE, parent);
+
+        assertEquals(1, first.stats().misses());
+        assertEquals(1, second.stats().misses());
+    }
+
+    @Test
+    public void leastRecentlyUsedScriptIsEvicted() {
+        final ScriptCache cache = new ScriptCache(2, Long.MAX_VALUE);
+
+        cache.compile(SOURCE, parent);
+        cache.compile(SOURCE.replace("42", "1"), parent);
+        cache.compile(SOURCE, parent);
+        cache.compile(SOURCE.replace("42", "2"), parent);
+
+        assertEquals(1, cache.stats().evictions());
+        assertEquals(2, cache.stats().entries());
+
+        // The script used in between is still there, the other one has to be compiled again
+        cache.compile(SOURCE, parent);
+        assertEquals(3, cache.stats().misses());
+        cache.compile(SOURCE.replace("42", "1"), parent);
+        assertEquals(4, cache.stats().misses());
+    }
+
+    @Test
+    public void scriptsWithErrorsAreNotCached() {
+        final ScriptCache cache = new ScriptCache(16, Long.MAX_VALUE);
+
+        assertTrue(cache.tryCompile("class Main { fn }", parent).isEmpty());
+        assertTrue(cache.tryCompile("class Main { fn }", parent).isEmpty());
+
+        assertEquals(0, cache.stats().entries());
+        assertEquals(2, cache.stats().misses());
+    }
+}
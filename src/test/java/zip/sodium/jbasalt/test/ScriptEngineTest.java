@@ -0,0 +1,127 @@
+package zip.sodium.jbasalt.test;
+
+import org.junit.jupiter.api.Test;
+
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import java.util.Comparator;
+import java.util.function.IntBinaryOperator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ScriptEngineTest {
+    private final ScriptEngine engine = new ScriptEngineManager().getEngineByName("basalt");
+
+    @Test
+    public void compiledScriptTakesItsArgumentsFromTheBindings() throws ScriptException {
+        final CompiledScript script = ((Compilable) engine).compile("""
+                import basalt.lang.STDLib
+                import java.lang.String
+
+                class Main {
+                    static fn eval(x: int, name: String): String {
+                        return name + toString(x * 2)
+                    }
+                }
+                """);
+
+        for (int i = 0; i < 3; i++) {
+            final Bindings bindings = engine.createBindings();
+            bindings.put("x", i);
+            bindings.put("name", "n");
+
+            assertEquals("n" + i * 2, script.eval(bindings));
+        }
+
+        final ScriptException e = assertThrows(ScriptException.class, () -> script.eval(engine.createBindings()));
+        assertTrue(e.getMessage().contains("Missing binding"), e.getMessage());
+    }
+
+    @Test
+    public void functionsOfTheLastScriptCanBeInvoked() throws Exception {
+        engine.eval("""
+                import java.lang.String
+
+                class Main {
+                    static fn main(args: String[]) {}
+
+                    static fn applyAsInt(a: int, b: int): int {
+                        return a * b + 1
+                    }
+                }
+                """);
+
+        assertEquals(43, ((Invocable) engine).invokeFunction("applyAsInt", 6, 7));
+        assertEquals(13, ((Invocable) engine).getInterface(IntBinaryOperator.class).applyAsInt(3, 4));
+    }
+
+    @Test
+    public void interfacesAreImplementedByTheFunctionsOfTheLastScript() throws ScriptException {
+        engine.eval("""
+                import java.lang.Object
+                import java.lang.String
+
+                class Main {
+                    static fn main(args: String[]) {}
+
+                    static fn compare(a: Object, b: Object): int {
+                        return a.hashCode() - b.hashCode()
+                    }
+
+                    static fn area(width: int, height: int): int {
+                        return width * height
+                    }
+
+                    static fn name(): String {
+                        return "rectangle"
+                    }
+                }
+                """);
+
+        // Comparator redeclares equals, it's still functional
+        final Comparator<Object> comparator = ((Invocable) engine).getInterface(Comparator.class);
+        assertNotNull(comparator);
+        assertTrue(comparator.compare(1, 2) < 0);
+
+        final Shape shape = ((Invocable) engine).getInterface(Shape.class);
+        assertEquals(12, shape.area(3, 4));
+        assertEquals("rectangle", shape.name());
+
+        assertNull(((Invocable) engine).getInterface(Runnable.class));
+    }
+
+    public interface Shape {
+        int area(int width, int height);
+
+        String name();
+    }
+
+    @Test
+    public void compileErrorsReportTheirLine() {
+        final ScriptException e = assertThrows(ScriptException.class, () -> engine.eval("""
+                class Main {
+                    static fn main() {
+                    }
+
+                    fn }
+                }
+                """));
+
+        assertEquals(5, e.getLineNumber());
+        assertTrue(e.getMessage().contains("Expected \"(\" after function name!"), e.getMessage());
+    }
+
+    @Test
+    public void compileErrorsUseTheFileNameOfTheContext() {
+        engine.put(ScriptEngine.FILENAME, "broken.bas");
+
+        final ScriptException e = assertThrows(ScriptException.class, () -> engine.eval("class Main { fn }"));
+        assertEquals("broken.bas", e.getFileName());
+        assertEquals(1, e.getLineNumber());
+    }
+}